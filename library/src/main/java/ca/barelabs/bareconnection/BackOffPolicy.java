@@ -1,7 +1,21 @@
 package ca.barelabs.bareconnection;
 
 
+/**
+ * RestConnection calls reset() when a request starts and backOff() between its attempts, all on the
+ * calling thread. A connection used from several threads at once, e.g. by SegmentedDownload or
+ * MicroBatcher, shares its policy between them, so keep that state per thread like
+ * ExponentialBackOffPolicy does.
+ */
 public interface BackOffPolicy {
+
+    /**
+     * For callers that run independent retry loops, e.g. one per ChunkedUpload part, since a
+     * policy keeps the state of the loop it's used in.
+     */
+    interface Factory {
+        BackOffPolicy createBackOffPolicy();
+    }
     
     boolean isBackOffRequired(int statusCode);
 
@@ -0,0 +1,345 @@
+package ca.barelabs.bareconnection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sends several requests as the application/http parts of one multipart/mixed POST to the
+ * connection's batch endpoint, and splits the multipart/mixed answer back into one Response each.
+ * <p>
+ * Sub-request bodies are serialized like RestConnection would (Strings as is, Maps as form data,
+ * anything else with the parser for the connection's content type). Responses are matched to
+ * requests by Content-ID ("response-" + request id) when the server sends one, otherwise by order.
+ */
+public class BatchRequest {
+
+    private static final String HTTP_VERSION = "HTTP/1.1";
+    private static final String RESPONSE_ID_PREFIX = "response-";
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private final RestConnection mConnection;
+    private final List<Request> mRequests = new ArrayList<>();
+
+    public BatchRequest(RestConnection connection) {
+        if (connection == null) {
+            throw new IllegalStateException("BatchRequest must be created with a RestConnection");
+        }
+        mConnection = connection;
+    }
+
+    public BatchRequest add(String method, String path) {
+        return add(method, path, null, null);
+    }
+
+    public BatchRequest add(String method, String path, Object body) {
+        return add(method, path, body, null);
+    }
+
+    /**
+     * Path is sent as the request target of the sub-request, e.g. "/v1/items/42".
+     */
+    public BatchRequest add(String method, String path, Object body, Map<String, String> headers) {
+        mRequests.add(new Request(String.valueOf(mRequests.size() + 1), method, path, body, headers));
+        return this;
+    }
+
+    public int size() {
+        return mRequests.size();
+    }
+
+    /**
+     * Returns one Response per added request, in the order they were added. The batch call itself
+     * failing throws, sub-requests failing only shows in their own Response.
+     */
+    public List<Response> execute() throws IOException {
+        if (mRequests.isEmpty()) {
+            return Collections.emptyList();
+        }
+        mConnection.ensureDefaultObjectParser();
+        List<Entity> entities = new ArrayList<>(mRequests.size());
+        Map<String, Integer> indexes = new HashMap<>();
+        for (int i = 0; i < mRequests.size(); i++) {
+            Request request = mRequests.get(i);
+            entities.add(new HttpEntity(request.mId, encode(request)));
+            indexes.put(request.mId, i);
+        }
+        DefaultMultipartFormWriter writer = new DefaultMultipartFormWriter(entities, RestConnection.CONTENT_TYPE_MULTIPART_MIXED);
+        MultipartReader reader = mConnection.execute(RestConnection.METHOD_POST, writer).parseAsMultipart();
+        Response[] responses = new Response[mRequests.size()];
+        try {
+            int next = 0;
+            MultipartReader.Part part;
+            while ((part = reader.nextPart()) != null) {
+                Integer index = indexes.get(getRequestId(part.getHeader(RestConnection.HEADER_CONTENT_ID)));
+                if (index == null || responses[index] != null) {
+                    while (next < responses.length && responses[next] != null) {
+                        next++;
+                    }
+                    if (next == responses.length) {
+                        throw new IOException("Batch response has more parts than the " + responses.length + " requests sent");
+                    }
+                    index = next;
+                }
+                responses[index] = readResponse(part.getBody());
+            }
+        } finally {
+            reader.close();
+        }
+        for (int i = 0; i < responses.length; i++) {
+            if (responses[i] == null) {
+                throw new IOException("Batch response is missing the response to request " + mRequests.get(i).mId);
+            }
+        }
+        return Arrays.asList(responses);
+    }
+
+    private byte[] encode(Request request) throws IOException {
+        String charset = mConnection.getOutgoingCharset();
+        byte[] body = null;
+        String contentType = null;
+        if (request.mBody instanceof String) {
+            body = ((String) request.mBody).getBytes(charset);
+            contentType = mConnection.getContentType() + ";" + RestConnection.KEY_CHARSET + "=" + charset;
+        } else if (request.mBody instanceof Map) {
+            body = RestUtils.toQuery((Map<?,?>) request.mBody, charset).getBytes(charset);
+            contentType = RestConnection.CONTENT_TYPE_FORM_URLENCODED + ";" + RestConnection.KEY_CHARSET + "=" + charset;
+        } else if (request.mBody instanceof MultiMap) {
+            body = RestUtils.toQuery((MultiMap<?,?>) request.mBody, charset).getBytes(charset);
+            contentType = RestConnection.CONTENT_TYPE_FORM_URLENCODED + ";" + RestConnection.KEY_CHARSET + "=" + charset;
+        } else if (request.mBody != null) {
+            ObjectParser parser = mConnection.getParserRegistry().getParser(mConnection.getContentType(), mConnection.getParser());
+            if (parser == null) {
+                throw new IllegalStateException("Missing ObjectParser. See RestConnection.setParser() or include Gson dependency to default to GsonParser.");
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            parser.saveAndClose(request.mBody, out, charset);
+            body = out.toByteArray();
+            contentType = mConnection.getContentType() + ";" + RestConnection.KEY_CHARSET + "=" + charset;
+        }
+        StringBuilder head = new StringBuilder();
+        head.append(request.mMethod).append(' ').append(request.mPath).append(' ').append(HTTP_VERSION).append(DefaultMultipartFormWriter.CRLF);
+        if (request.mHeaders != null) {
+            for (Map.Entry<String, String> header : request.mHeaders.entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append(DefaultMultipartFormWriter.CRLF);
+            }
+        }
+        if (body != null) {
+            head.append(RestConnection.HEADER_CONTENT_TYPE).append(": ").append(contentType).append(DefaultMultipartFormWriter.CRLF);
+            head.append(RestConnection.HEADER_CONTENT_LENGTH).append(": ").append(body.length).append(DefaultMultipartFormWriter.CRLF);
+        }
+        head.append(DefaultMultipartFormWriter.CRLF);
+        byte[] encodedHead = head.toString().getBytes(StandardCharsets.UTF_8);
+        if (body == null) {
+            return encodedHead;
+        }
+        byte[] encoded = new byte[encodedHead.length + body.length];
+        System.arraycopy(encodedHead, 0, encoded, 0, encodedHead.length);
+        System.arraycopy(body, 0, encoded, encodedHead.length, body.length);
+        return encoded;
+    }
+
+    private Response readResponse(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        while (statusLine != null && statusLine.isEmpty()) {
+            statusLine = readLine(in); // Some servers put a blank line before the status line
+        }
+        if (statusLine == null) {
+            throw new EOFException("Batch response part has no status line");
+        }
+        // HTTP/1.1 200 OK
+        String[] status = statusLine.split(" ", 3);
+        int statusCode;
+        try {
+            statusCode = status.length > 1 ? Integer.parseInt(status[1]) : RestConnection.SC_UNKNOWN;
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed batch response status line: " + statusLine);
+        }
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                String previous = headers.get(name);
+                headers.put(name, previous == null ? value : previous + ", " + value);
+            }
+        }
+        long contentLength = -1;
+        String length = headers.get(RestConnection.HEADER_CONTENT_LENGTH);
+        if (length != null) {
+            try {
+                contentLength = Long.parseLong(length);
+            } catch (NumberFormatException e) {
+                // Read up to the part boundary instead
+            }
+        }
+        byte[] content = IOUtils.toByteArray(in, contentLength);
+        return new Response(statusCode, status.length > 2 ? status[2] : null, Collections.unmodifiableMap(headers), content,
+                mConnection.getParserRegistry(), mConnection.getParser(), mConnection.getIncomingCharset());
+    }
+
+    // Status and header lines are ASCII, a lone LF is accepted as well as CRLF
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int last = line.length() - 1;
+                if (last >= 0 && line.charAt(last) == '\r') {
+                    line.setLength(last);
+                }
+                return line.toString();
+            }
+            if (line.length() == MAX_LINE_LENGTH) {
+                throw new IOException("Batch response header line too long");
+            }
+            line.append((char) b);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static String getRequestId(String contentId) {
+        if (contentId == null) {
+            return null;
+        }
+        String id = contentId.trim();
+        if (id.startsWith("<") && id.endsWith(">")) {
+            id = id.substring(1, id.length() - 1);
+        }
+        return id.startsWith(RESPONSE_ID_PREFIX) ? id.substring(RESPONSE_ID_PREFIX.length()) : id;
+    }
+
+
+    public static final class Response {
+
+        private final int mStatusCode;
+        private final String mReasonPhrase;
+        private final Map<String, String> mHeaders;
+        private final byte[] mContent;
+        private final ObjectParser mParser;
+        private final String mIncomingCharset;
+
+        Response(int statusCode, String reasonPhrase, Map<String, String> headers, byte[] content,
+                ParserRegistry parsers, ObjectParser defaultParser, String incomingCharset) {
+            mStatusCode = statusCode;
+            mReasonPhrase = reasonPhrase;
+            mHeaders = headers;
+            mContent = content;
+            String contentType = headers.get(RestConnection.HEADER_CONTENT_TYPE);
+            mParser = parsers == null || parsers.isEmpty() ? defaultParser : parsers.getParser(contentType, defaultParser);
+            MediaType mediaType = MediaType.parse(contentType);
+            String charset = mediaType == null ? null : mediaType.getCharset();
+            mIncomingCharset = charset == null ? incomingCharset : charset;
+        }
+
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        public String getReasonPhrase() {
+            return mReasonPhrase;
+        }
+
+        /**
+         * Header names are case insensitive. Repeated headers are joined with ", ".
+         */
+        public Map<String, String> getHeaders() {
+            return mHeaders;
+        }
+
+        public String getHeader(String name) {
+            return mHeaders.get(name);
+        }
+
+        public String getIncomingCharset() {
+            return mIncomingCharset;
+        }
+
+        public InputStream getContent() throws IOException {
+            ensureValidStatusCode();
+            return new ByteArrayInputStream(mContent);
+        }
+
+        public String parse() throws IOException {
+            ensureValidStatusCode();
+            return new String(mContent, mIncomingCharset);
+        }
+
+        public byte[] parseBytes() throws IOException {
+            ensureValidStatusCode();
+            return mContent.clone();
+        }
+
+        public <T> T parseAs(Type type) throws IOException {
+            ensureValidStatusCode();
+            if (mParser == null) {
+                throw new IllegalStateException("Missing ObjectParser. See RestConnection.setParser() or include Gson dependency to default to GsonParser.");
+            }
+            return mParser.parseAndClose(new ByteArrayInputStream(mContent), mIncomingCharset, type);
+        }
+
+        private void ensureValidStatusCode() throws IOException {
+            if (mStatusCode / 100 != 2) {
+                throw new RestException(mStatusCode, new String(mContent, mIncomingCharset));
+            }
+        }
+    }
+
+
+    private static final class Request {
+
+        final String mId;
+        final String mMethod;
+        final String mPath;
+        final Object mBody;
+        final Map<String, String> mHeaders;
+
+        Request(String id, String method, String path, Object body, Map<String, String> headers) {
+            mId = id;
+            mMethod = method;
+            mPath = path;
+            mBody = body;
+            mHeaders = headers;
+        }
+    }
+
+
+    private static final class HttpEntity extends Entity {
+
+        private final byte[] mMessage;
+
+        HttpEntity(String contentId, byte[] message) {
+            super(contentId);
+            mMessage = message;
+        }
+
+        @Override
+        public String getContentType() {
+            return RestConnection.CONTENT_TYPE_HTTP;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mMessage.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(mMessage);
+        }
+    }
+}
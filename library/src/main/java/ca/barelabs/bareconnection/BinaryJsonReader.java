@@ -0,0 +1,499 @@
+package ca.barelabs.bareconnection;
+
+import com.google.gson.internal.JsonReaderInternalAccess;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Base for JsonReaders that decode a binary format straight off the stream, so Gson binds objects
+ * without an intermediate JsonElement tree. Tracks arrays, maps and name/value pairing; subclasses
+ * decode one item at a time and describe it through the *Item() methods. Byte strings are handed to
+ * Gson as arrays of numbers, the way it reads a byte[].
+ */
+abstract class BinaryJsonReader extends JsonReader {
+
+    protected static final long INDEFINITE_LENGTH = -1;
+
+    private static final int ARRAY = 1;
+    private static final int OBJECT = 2;
+    private static final int BYTES = 3;
+
+    private static final int NUMBER_LONG = 1;
+    private static final int NUMBER_FLOAT = 2;
+    private static final int NUMBER_DOUBLE = 3;
+    private static final int NUMBER_TEXT = 4;
+
+    // Every method that would reach the text stream is overridden below
+    private static final Reader UNUSED_READER = new Reader() {
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            throw new UnsupportedOperationException("Not a text reader");
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    static {
+        // Gson's Map adapter turns names into keys through this hook, which otherwise only knows Gson's own readers
+        final JsonReaderInternalAccess access = JsonReaderInternalAccess.INSTANCE;
+        JsonReaderInternalAccess.INSTANCE = new JsonReaderInternalAccess() {
+            @Override
+            public void promoteNameToValue(JsonReader reader) throws IOException {
+                if (reader instanceof BinaryJsonReader) {
+                    ((BinaryJsonReader) reader).promoteNameToValue();
+                } else {
+                    access.promoteNameToValue(reader);
+                }
+            }
+        };
+    }
+
+    protected final DataInputStream mIn;
+    private int[] mScopes = new int[32];
+    private long[] mRemaining = new long[32];
+    private int mDepth;
+    private boolean mExpectName;
+    private byte[] mBytes;
+    private int mBytesIndex;
+
+    // The item peek() decoded but nobody consumed yet
+    private JsonToken mPeeked;
+    private boolean mPeekedName;
+    private byte[] mPeekedBytes;
+    private String mString;
+    private boolean mBoolean;
+    private int mNumberType;
+    private long mLong;
+    private double mDouble;
+    private long mCount;
+
+    protected BinaryJsonReader(DataInputStream in) {
+        super(UNUSED_READER);
+        mIn = in;
+    }
+
+    /**
+     * Decodes the item starting with the given (already consumed) initial byte and describes it
+     * through exactly one of the *Item() methods. Containers only read their header.
+     */
+    protected abstract void readItem(int initialByte) throws IOException;
+
+    /**
+     * True if the byte ends an array or map of INDEFINITE_LENGTH.
+     */
+    protected abstract boolean isBreak(int initialByte);
+
+    protected final void arrayItem(long count) {
+        mPeeked = JsonToken.BEGIN_ARRAY;
+        mCount = count;
+    }
+
+    protected final void mapItem(long count) {
+        mPeeked = JsonToken.BEGIN_OBJECT;
+        mCount = count;
+    }
+
+    protected final void bytesItem(byte[] bytes) {
+        mPeeked = JsonToken.BEGIN_ARRAY;
+        mPeekedBytes = bytes;
+    }
+
+    protected final void stringItem(String value) {
+        mPeeked = JsonToken.STRING;
+        mString = value;
+    }
+
+    protected final void booleanItem(boolean value) {
+        mPeeked = JsonToken.BOOLEAN;
+        mBoolean = value;
+    }
+
+    protected final void nullItem() {
+        mPeeked = JsonToken.NULL;
+    }
+
+    protected final void longItem(long value) {
+        mPeeked = JsonToken.NUMBER;
+        mNumberType = NUMBER_LONG;
+        mLong = value;
+    }
+
+    protected final void floatItem(float value) {
+        mPeeked = JsonToken.NUMBER;
+        mNumberType = NUMBER_FLOAT;
+        mDouble = value;
+    }
+
+    protected final void doubleItem(double value) {
+        mPeeked = JsonToken.NUMBER;
+        mNumberType = NUMBER_DOUBLE;
+        mDouble = value;
+    }
+
+    protected final void bigIntegerItem(BigInteger value) {
+        mPeeked = JsonToken.NUMBER;
+        mNumberType = NUMBER_TEXT;
+        mString = value.toString();
+    }
+
+    @Override
+    public JsonToken peek() throws IOException {
+        if (mPeeked != null) {
+            return mPeeked;
+        }
+        mPeekedName = false;
+        mPeekedBytes = null;
+        if (mDepth == 0) {
+            int initialByte = mIn.read();
+            if (initialByte == -1) {
+                return mPeeked = JsonToken.END_DOCUMENT;
+            }
+            readItem(initialByte);
+            return mPeeked;
+        }
+        int scope = mScopes[mDepth - 1];
+        long remaining = mRemaining[mDepth - 1];
+        if (scope == BYTES) {
+            if (mBytesIndex == mBytes.length) {
+                return mPeeked = JsonToken.END_ARRAY;
+            }
+            mNumberType = NUMBER_LONG;
+            mLong = mBytes[mBytesIndex];
+            return mPeeked = JsonToken.NUMBER;
+        }
+        boolean name = scope == OBJECT && mExpectName;
+        if (remaining == 0 && (scope == ARRAY || name)) {
+            return mPeeked = scope == ARRAY ? JsonToken.END_ARRAY : JsonToken.END_OBJECT;
+        }
+        int initialByte = readInitialByte();
+        if (remaining == INDEFINITE_LENGTH && isBreak(initialByte)) {
+            if (scope == OBJECT && !name) {
+                throw new IOException("Map ended between a key and its value");
+            }
+            return mPeeked = scope == ARRAY ? JsonToken.END_ARRAY : JsonToken.END_OBJECT;
+        }
+        readItem(initialByte);
+        if (name) {
+            mString = toName();
+            mPeeked = JsonToken.NAME;
+            mPeekedName = true;
+        }
+        return mPeeked;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        JsonToken token = peek();
+        return token != JsonToken.END_ARRAY && token != JsonToken.END_OBJECT && token != JsonToken.END_DOCUMENT;
+    }
+
+    @Override
+    public void beginArray() throws IOException {
+        expect(JsonToken.BEGIN_ARRAY);
+        if (mPeekedBytes != null) {
+            mBytes = mPeekedBytes;
+            mBytesIndex = 0;
+            mPeekedBytes = null;
+            push(BYTES, mBytes.length);
+        } else {
+            push(ARRAY, mCount);
+        }
+    }
+
+    @Override
+    public void endArray() throws IOException {
+        expect(JsonToken.END_ARRAY);
+        if (mScopes[mDepth - 1] == BYTES) {
+            mBytes = null;
+        }
+        mDepth--;
+        afterValue();
+    }
+
+    @Override
+    public void beginObject() throws IOException {
+        expect(JsonToken.BEGIN_OBJECT);
+        push(OBJECT, mCount);
+        mExpectName = true;
+    }
+
+    @Override
+    public void endObject() throws IOException {
+        expect(JsonToken.END_OBJECT);
+        mDepth--;
+        afterValue();
+    }
+
+    @Override
+    public String nextName() throws IOException {
+        expect(JsonToken.NAME);
+        mExpectName = false;
+        return mString;
+    }
+
+    @Override
+    public String nextString() throws IOException {
+        JsonToken token = peek();
+        String value;
+        if (token == JsonToken.STRING) {
+            value = mString;
+        } else if (token == JsonToken.NUMBER) {
+            value = getNumberText();
+        } else {
+            throw unexpected("a string", token);
+        }
+        consumeValue();
+        return value;
+    }
+
+    @Override
+    public boolean nextBoolean() throws IOException {
+        expect(JsonToken.BOOLEAN);
+        afterValue();
+        return mBoolean;
+    }
+
+    @Override
+    public void nextNull() throws IOException {
+        expect(JsonToken.NULL);
+        afterValue();
+    }
+
+    @Override
+    public double nextDouble() throws IOException {
+        JsonToken token = peek();
+        double value;
+        if (token == JsonToken.NUMBER && mNumberType == NUMBER_LONG) {
+            value = mLong;
+        } else if (token == JsonToken.NUMBER && mNumberType != NUMBER_TEXT) {
+            value = mDouble;
+        } else if (token == JsonToken.NUMBER || token == JsonToken.STRING) {
+            value = Double.parseDouble(mString); // Same NumberFormatException as JsonReader
+        } else {
+            throw unexpected("a double", token);
+        }
+        consumeValue();
+        return value;
+    }
+
+    @Override
+    public long nextLong() throws IOException {
+        JsonToken token = peek();
+        long value;
+        if (token == JsonToken.NUMBER && mNumberType == NUMBER_LONG) {
+            value = mLong;
+        } else if (token == JsonToken.NUMBER || token == JsonToken.STRING) {
+            value = toLong();
+        } else {
+            throw unexpected("a long", token);
+        }
+        consumeValue();
+        return value;
+    }
+
+    @Override
+    public int nextInt() throws IOException {
+        JsonToken token = peek();
+        long value;
+        if (token == JsonToken.NUMBER && mNumberType == NUMBER_LONG) {
+            value = mLong;
+        } else if (token == JsonToken.NUMBER || token == JsonToken.STRING) {
+            value = toLong();
+        } else {
+            throw unexpected("an int", token);
+        }
+        if ((int) value != value) {
+            throw new NumberFormatException("Expected an int but was " + value);
+        }
+        consumeValue();
+        return (int) value;
+    }
+
+    @Override
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            JsonToken token = peek();
+            switch (token) {
+                case BEGIN_ARRAY:
+                    beginArray();
+                    depth++;
+                    break;
+                case BEGIN_OBJECT:
+                    beginObject();
+                    depth++;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    depth--;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    depth--;
+                    break;
+                case NAME:
+                    nextName();
+                    break;
+                case END_DOCUMENT:
+                    throw new EOFException("End of input");
+                default:
+                    consumeValue();
+                    break;
+            }
+        } while (depth > 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mPeeked = null;
+        mDepth = 0;
+        mIn.close();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName();
+    }
+
+    protected final int readInitialByte() throws IOException {
+        int initialByte = mIn.read();
+        if (initialByte == -1) {
+            throw new EOFException();
+        }
+        return initialByte;
+    }
+
+    /**
+     * Reads length bytes in bounded steps, so a corrupt or hostile length fails at the end of the
+     * stream instead of allocating the whole amount up front.
+     */
+    protected final byte[] readBytes(long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Unsupported length: " + length);
+        }
+        int size = (int) length;
+        byte[] bytes = new byte[Math.min(size, BufferPool.MIN_SIZE)];
+        int count = 0;
+        while (count < size) {
+            if (count == bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(size, bytes.length * 2L));
+            }
+            int read = mIn.read(bytes, count, bytes.length - count);
+            if (read == -1) {
+                throw new EOFException("Stream ended after " + count + " of " + size + " bytes");
+            }
+            count += read;
+        }
+        return bytes;
+    }
+
+    protected final String readString(long length) throws IOException {
+        return new String(readBytes(length), StandardCharsets.UTF_8);
+    }
+
+    void promoteNameToValue() throws IOException {
+        expect(JsonToken.NAME);
+        mPeeked = JsonToken.STRING; // Still consumed as the name, see consumeValue()
+    }
+
+    private void expect(JsonToken expected) throws IOException {
+        JsonToken token = peek();
+        if (token != expected) {
+            throw unexpected(expected.toString(), token);
+        }
+        mPeeked = null;
+    }
+
+    private void consumeValue() {
+        mPeeked = null;
+        if (mPeekedName) {
+            mExpectName = false; // A name promoted to a map key
+        } else {
+            afterValue();
+        }
+    }
+
+    private void afterValue() {
+        if (mDepth == 0) {
+            return;
+        }
+        int scope = mScopes[mDepth - 1];
+        if (scope == BYTES) {
+            mBytesIndex++;
+            return;
+        }
+        if (scope == OBJECT) {
+            mExpectName = true;
+        }
+        if (mRemaining[mDepth - 1] > 0) {
+            mRemaining[mDepth - 1]--;
+        }
+    }
+
+    private void push(int scope, long remaining) {
+        if (mDepth == mScopes.length) {
+            mScopes = Arrays.copyOf(mScopes, mDepth * 2);
+            mRemaining = Arrays.copyOf(mRemaining, mDepth * 2);
+        }
+        mScopes[mDepth] = scope;
+        mRemaining[mDepth] = remaining;
+        mDepth++;
+    }
+
+    private String toName() throws IOException {
+        switch (mPeeked) {
+            case STRING:
+                return mString;
+            case NUMBER:
+                return getNumberText();
+            case BOOLEAN:
+                return String.valueOf(mBoolean);
+            case NULL:
+                return "null";
+            default:
+                throw new IOException("Unsupported map key: " + mPeeked);
+        }
+    }
+
+    private String getNumberText() {
+        switch (mNumberType) {
+            case NUMBER_LONG:
+                return Long.toString(mLong);
+            case NUMBER_FLOAT:
+                return Float.toString((float) mDouble);
+            case NUMBER_DOUBLE:
+                return Double.toString(mDouble);
+            default:
+                return mString;
+        }
+    }
+
+    // Same rules as JsonReader: integral text or a double without a fraction, else NumberFormatException
+    private long toLong() {
+        String text = mPeeked == JsonToken.STRING ? mString : getNumberText();
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            double value = mPeeked == JsonToken.NUMBER && mNumberType != NUMBER_TEXT ? mDouble : Double.parseDouble(text);
+            long result = (long) value;
+            if (result != value) {
+                throw new NumberFormatException("Expected a long but was " + text);
+            }
+            return result;
+        }
+    }
+
+    private IllegalStateException unexpected(String expected, JsonToken token) {
+        return new IllegalStateException("Expected " + expected + " but was " + token);
+    }
+}
@@ -0,0 +1,294 @@
+package ca.barelabs.bareconnection;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base for JsonWriters that encode Gson's output into a binary format instead of text.
+ * Handles name/value pairing and null skipping so subclasses only encode values.
+ */
+abstract class BinaryJsonWriter extends JsonWriter {
+
+    private static final int ARRAY = 1;
+    private static final int OBJECT = 2;
+
+    // Every method that would reach the text stream is overridden below
+    private static final Writer UNUSED_WRITER = new Writer() {
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            throw new UnsupportedOperationException("Not a text writer");
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private int[] mStack = new int[32];
+    private int mStackSize;
+    private String mDeferredName;
+
+    protected BinaryJsonWriter() {
+        super(UNUSED_WRITER);
+    }
+
+    protected abstract void writeBeginArray() throws IOException;
+
+    protected abstract void writeEndArray() throws IOException;
+
+    protected abstract void writeBeginObject() throws IOException;
+
+    protected abstract void writeEndObject() throws IOException;
+
+    protected abstract void writeName(String name) throws IOException;
+
+    protected abstract void writeNull() throws IOException;
+
+    protected abstract void writeBoolean(boolean value) throws IOException;
+
+    protected abstract void writeLong(long value) throws IOException;
+
+    protected abstract void writeFloat(float value) throws IOException;
+
+    protected abstract void writeDouble(double value) throws IOException;
+
+    protected abstract void writeString(String value) throws IOException;
+
+    protected abstract void flushOutput() throws IOException;
+
+    protected abstract void closeOutput() throws IOException;
+
+    @Override
+    public JsonWriter beginArray() throws IOException {
+        beforeValue();
+        push(ARRAY);
+        writeBeginArray();
+        return this;
+    }
+
+    @Override
+    public JsonWriter endArray() throws IOException {
+        pop(ARRAY);
+        writeEndArray();
+        return this;
+    }
+
+    @Override
+    public JsonWriter beginObject() throws IOException {
+        beforeValue();
+        push(OBJECT);
+        writeBeginObject();
+        return this;
+    }
+
+    @Override
+    public JsonWriter endObject() throws IOException {
+        pop(OBJECT);
+        writeEndObject();
+        return this;
+    }
+
+    @Override
+    public JsonWriter name(String name) throws IOException {
+        if (name == null) {
+            throw new NullPointerException("name == null");
+        }
+        if (mDeferredName != null || mStackSize == 0 || mStack[mStackSize - 1] != OBJECT) {
+            throw new IllegalStateException("Unexpected name: " + name);
+        }
+        mDeferredName = name;
+        return this;
+    }
+
+    @Override
+    public JsonWriter nullValue() throws IOException {
+        if (mDeferredName != null && !getSerializeNulls()) {
+            mDeferredName = null; // Skip the whole name/value pair, same as JsonWriter
+            return this;
+        }
+        beforeValue();
+        writeNull();
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        writeString(value);
+        return this;
+    }
+
+    /**
+     * Adapters that write raw JSON text go through here. The text is parsed and re-encoded
+     * value by value, so it must be well formed JSON; malformed text fails with an IOException.
+     */
+    @Override
+    public JsonWriter jsonValue(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        JsonElement element;
+        try {
+            element = new JsonParser().parse(value);
+        } catch (JsonParseException e) {
+            throw new IOException("Malformed raw JSON value", e);
+        }
+        writeElement(element);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(boolean value) throws IOException {
+        beforeValue();
+        writeBoolean(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(Boolean value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        return value(value.booleanValue());
+    }
+
+    // Gson 2.9.1+ writes Float values through this overload
+    public JsonWriter value(float value) throws IOException {
+        beforeValue();
+        writeFloat(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(double value) throws IOException {
+        beforeValue();
+        writeDouble(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(long value) throws IOException {
+        beforeValue();
+        writeLong(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(Number value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+                || value instanceof AtomicInteger || value instanceof AtomicLong) {
+            writeLong(value.longValue());
+        } else if (value instanceof Float) {
+            writeFloat(value.floatValue());
+        } else if (value instanceof Double) {
+            writeDouble(value.doubleValue());
+        } else if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64) {
+            writeLong(value.longValue());
+        } else if (value instanceof BigInteger || value instanceof BigDecimal) {
+            writeString(value.toString()); // Lossless, Gson reads numbers back from strings
+        } else {
+            String text = value.toString();
+            try {
+                writeLong(Long.parseLong(text));
+            } catch (NumberFormatException e) {
+                writeDouble(value.doubleValue());
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushOutput();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mStackSize > 0 || mDeferredName != null) {
+                throw new IOException("Incomplete document");
+            }
+            flushOutput();
+        } finally {
+            closeOutput();
+        }
+    }
+
+    // Nulls inside raw JSON are kept, like JsonWriter copies the text as is
+    private void writeElement(JsonElement element) throws IOException {
+        if (element.isJsonNull()) {
+            beforeValue();
+            writeNull();
+        } else if (element.isJsonPrimitive()) {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isBoolean()) {
+                value(primitive.getAsBoolean());
+            } else if (primitive.isNumber()) {
+                value(primitive.getAsNumber());
+            } else {
+                value(primitive.getAsString());
+            }
+        } else if (element.isJsonArray()) {
+            beginArray();
+            for (JsonElement child : element.getAsJsonArray()) {
+                writeElement(child);
+            }
+            endArray();
+        } else {
+            beginObject();
+            for (Map.Entry<String, JsonElement> member : element.getAsJsonObject().entrySet()) {
+                name(member.getKey());
+                writeElement(member.getValue());
+            }
+            endObject();
+        }
+    }
+
+    private void beforeValue() throws IOException {
+        if (mDeferredName != null) {
+            String name = mDeferredName;
+            mDeferredName = null;
+            writeName(name);
+        } else if (mStackSize > 0 && mStack[mStackSize - 1] == OBJECT) {
+            throw new IllegalStateException("Expected a name before the value");
+        }
+    }
+
+    private void push(int scope) {
+        if (mStackSize == mStack.length) {
+            int[] stack = new int[mStackSize * 2];
+            System.arraycopy(mStack, 0, stack, 0, mStackSize);
+            mStack = stack;
+        }
+        mStack[mStackSize++] = scope;
+    }
+
+    private void pop(int scope) {
+        if (mStackSize == 0 || mStack[mStackSize - 1] != scope || mDeferredName != null) {
+            throw new IllegalStateException("Nesting problem");
+        }
+        mStackSize--;
+    }
+}
@@ -0,0 +1,118 @@
+package ca.barelabs.bareconnection;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+
+/**
+ * Base for compact binary formats bound through Gson's type model. Objects are written through a
+ * streaming JsonWriter and read through a streaming JsonReader, both encoding the binary format
+ * directly, so Gson's adapters run against the bytes without JSON text or a JsonElement tree.
+ */
+public abstract class BinaryObjectParser implements StreamingObjectParser {
+
+    private final Gson mGson;
+
+    protected BinaryObjectParser(Gson gson) {
+        mGson = gson;
+    }
+
+    public Gson getGson() {
+        return mGson;
+    }
+
+    protected abstract JsonReader newReader(InputStream in);
+
+    protected abstract JsonWriter newWriter(OutputStream out);
+
+    /**
+     * A binary body only survives as a String when each byte was read as one char, so value is
+     * expected to be ISO-8859-1 text (e.g. RestConnection.setIncomingCharset("ISO-8859-1")).
+     * Chars above 0xff can't have come from a byte and fail with an IOException.
+     */
+    @Override
+    public <T> T parse(String value, Type type) throws IOException {
+        if (type == null || value == null) {
+            return null;
+        }
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            char c = value.charAt(i);
+            if (c > 0xff) {
+                throw new IOException(getClass().getSimpleName() + " expects ISO-8859-1 text, found char 0x"
+                        + Integer.toHexString(c) + " at " + i);
+            }
+            bytes[i] = (byte) c;
+        }
+        return parseAndClose(new ByteArrayInputStream(bytes), null, type);
+    }
+
+    @Override
+    public <T> T parseAndClose(InputStream in, String charset, Type type) throws IOException {
+        try {
+            if (type == null) {
+                return null;
+            }
+            in = BufferPool.newBufferedInputStream(in);
+            in.mark(1);
+            if (in.read() == -1) {
+                return null;
+            }
+            in.reset();
+            JsonReader reader = newReader(in);
+            // Gson takes an EOFException from its first peek() for an empty body, so a truncated one fails here
+            reader.peek();
+            return mGson.fromJson(reader, type);
+        } catch(JsonParseException e) {
+            throw new IOException(e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    @Override
+    public <T> ObjectIterator<T> iterateAndClose(InputStream in, String charset, Type elementType) throws IOException {
+        try {
+            @SuppressWarnings("unchecked")
+            TypeAdapter<T> adapter = (TypeAdapter<T>) mGson.getAdapter(TypeToken.get(elementType));
+            in = BufferPool.newBufferedInputStream(in);
+            return new JsonArrayIterator<>(newReader(in), adapter);
+        } catch(RuntimeException e) {
+            IOUtils.closeQuietly(in);
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void saveAndClose(Object object, OutputStream out, String charset) throws IOException {
+        if (object == null) {
+            IOUtils.closeQuietly(out);
+            return;
+        }
+        BufferPool.PooledBufferedOutputStream buffered = BufferPool.newBufferedOutputStream(out);
+        boolean written = false;
+        try {
+            JsonWriter writer = newWriter(buffered);
+            mGson.toJson(object, object.getClass(), writer);
+            writer.close();
+            buffered.close();
+            written = true;
+        } catch(RuntimeException e) {
+            throw new IOException(e);
+        } finally {
+            if (!written) {
+                // Nothing buffered goes out and out stays open, so the caller aborts instead of sending half a document
+                buffered.release();
+            }
+        }
+    }
+}
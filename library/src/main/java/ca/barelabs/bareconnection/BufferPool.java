@@ -0,0 +1,353 @@
+package ca.barelabs.bareconnection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shared byte[], char[] and direct ByteBuffer buffers in power of two size classes from MIN_SIZE to MAX_SIZE.
+ * Each thread keeps one heap buffer per class for itself, the rest are shared up to MAX_SHARED per class.
+ * Requests outside the size classes are allocated and dropped as usual.
+ * <p>
+ * Acquired buffers may be larger than requested and may hold stale data. Release each buffer exactly once
+ * and stop using it afterwards.
+ */
+public final class BufferPool {
+
+    public static final int MIN_SIZE = 4 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+    public static final int MAX_SHARED = 8;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+    private static final int BYTES = 0;
+    private static final int CHARS = 1;
+
+    private static final SharedQueue[] sSharedBytes = newQueues();
+    private static final SharedQueue[] sSharedChars = newQueues();
+    private static final SharedQueue[] sSharedDirect = newQueues();
+    private static final ThreadLocal<Object[][]> sLocal = new ThreadLocal<Object[][]>() {
+        @Override
+        protected Object[][] initialValue() {
+            return new Object[][] {new Object[CLASS_COUNT], new Object[CLASS_COUNT]};
+        }
+    };
+
+    private static final Logger LOGGER = Logger.getLogger(BufferPool.class.getName());
+    private static final ReferenceQueue<Object> sLeakQueue = new ReferenceQueue<>();
+    // Keyed by identity hash since ByteBuffer.hashCode() depends on the contents
+    private static final Map<Integer, List<LeakReference>> sTracked = new HashMap<>();
+    private static volatile boolean sLeakDetectionEnabled;
+
+    private BufferPool() {
+    }
+
+    public static boolean isLeakDetectionEnabled() {
+        return sLeakDetectionEnabled;
+    }
+
+    /**
+     * Records where each buffer was acquired and logs a warning with that stack trace when a buffer
+     * is garbage collected without being released. Costs a stack trace per acquire, so debug builds only.
+     */
+    public static void setLeakDetectionEnabled(boolean leakDetectionEnabled) {
+        sLeakDetectionEnabled = leakDetectionEnabled;
+    }
+
+    public static byte[] acquireBytes(int minSize) {
+        IOMetrics.onBufferAcquired();
+        int index = getSizeClass(minSize);
+        byte[] bytes = null;
+        if (index >= 0) {
+            Object[] local = sLocal.get()[BYTES];
+            bytes = (byte[]) local[index];
+            local[index] = null;
+            if (bytes == null) {
+                bytes = (byte[]) sSharedBytes[index].poll();
+            }
+        }
+        if (bytes == null) {
+            bytes = new byte[index >= 0 ? MIN_SIZE << index : minSize];
+            IOMetrics.onBufferAllocated(bytes.length);
+        }
+        track(bytes);
+        return bytes;
+    }
+
+    public static void release(byte[] bytes) {
+        int index = bytes == null ? -1 : getReleaseClass(bytes.length);
+        if (index < 0) {
+            return;
+        }
+        untrack(bytes);
+        Object[] local = sLocal.get()[BYTES];
+        if (local[index] == null) {
+            local[index] = bytes;
+        } else {
+            sSharedBytes[index].offer(bytes);
+        }
+    }
+
+    public static char[] acquireChars(int minSize) {
+        IOMetrics.onBufferAcquired();
+        int index = getSizeClass(minSize);
+        char[] chars = null;
+        if (index >= 0) {
+            Object[] local = sLocal.get()[CHARS];
+            chars = (char[]) local[index];
+            local[index] = null;
+            if (chars == null) {
+                chars = (char[]) sSharedChars[index].poll();
+            }
+        }
+        if (chars == null) {
+            chars = new char[index >= 0 ? MIN_SIZE << index : minSize];
+            IOMetrics.onBufferAllocated(chars.length * 2L);
+        }
+        track(chars);
+        return chars;
+    }
+
+    public static void release(char[] chars) {
+        int index = chars == null ? -1 : getReleaseClass(chars.length);
+        if (index < 0) {
+            return;
+        }
+        untrack(chars);
+        Object[] local = sLocal.get()[CHARS];
+        if (local[index] == null) {
+            local[index] = chars;
+        } else {
+            sSharedChars[index].offer(chars);
+        }
+    }
+
+    /**
+     * Direct buffers aren't cached per thread since their memory lives outside the heap.
+     * The returned buffer is cleared.
+     */
+    public static ByteBuffer acquireDirect(int minSize) {
+        IOMetrics.onBufferAcquired();
+        int index = getSizeClass(minSize);
+        ByteBuffer buffer = index >= 0 ? (ByteBuffer) sSharedDirect[index].poll() : null;
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(index >= 0 ? MIN_SIZE << index : minSize);
+            IOMetrics.onBufferAllocated(buffer.capacity());
+        }
+        buffer.clear();
+        track(buffer);
+        return buffer;
+    }
+
+    public static void release(ByteBuffer buffer) {
+        int index = buffer == null || !buffer.isDirect() ? -1 : getReleaseClass(buffer.capacity());
+        if (index < 0) {
+            return;
+        }
+        untrack(buffer);
+        sSharedDirect[index].offer(buffer);
+    }
+
+    /**
+     * A BufferedInputStream whose buffer comes from the pool and goes back on close().
+     */
+    static InputStream newBufferedInputStream(InputStream in) {
+        return new PooledBufferedInputStream(in);
+    }
+
+    /**
+     * A BufferedOutputStream whose buffer comes from the pool and goes back on close().
+     */
+    static PooledBufferedOutputStream newBufferedOutputStream(OutputStream out) {
+        return new PooledBufferedOutputStream(out);
+    }
+
+    private static int getSizeClass(int size) {
+        if (size > MAX_SIZE) {
+            return -1;
+        }
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    private static int getReleaseClass(int length) {
+        if (length < MIN_SIZE || length > MAX_SIZE || Integer.bitCount(length) != 1) {
+            return -1; // Not one of ours
+        }
+        return Integer.numberOfTrailingZeros(length) - MIN_SHIFT;
+    }
+
+    private static SharedQueue[] newQueues() {
+        SharedQueue[] queues = new SharedQueue[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            queues[i] = new SharedQueue();
+        }
+        return queues;
+    }
+
+    private static void track(Object buffer) {
+        if (!sLeakDetectionEnabled) {
+            return;
+        }
+        reportLeaks();
+        LeakReference reference = new LeakReference(buffer, sLeakQueue);
+        synchronized (sTracked) {
+            List<LeakReference> references = sTracked.get(reference.mHash);
+            if (references == null) {
+                references = new ArrayList<>(1);
+                sTracked.put(reference.mHash, references);
+            }
+            references.add(reference);
+        }
+    }
+
+    private static void untrack(Object buffer) {
+        Integer hash = System.identityHashCode(buffer);
+        synchronized (sTracked) {
+            List<LeakReference> references = sTracked.get(hash);
+            if (references == null) {
+                return;
+            }
+            for (int i = 0; i < references.size(); i++) {
+                LeakReference reference = references.get(i);
+                if (reference.get() == buffer) {
+                    reference.clear();
+                    references.remove(i);
+                    break;
+                }
+            }
+            if (references.isEmpty()) {
+                sTracked.remove(hash);
+            }
+        }
+    }
+
+    private static void reportLeaks() {
+        LeakReference reference;
+        while ((reference = (LeakReference) sLeakQueue.poll()) != null) {
+            boolean leaked;
+            synchronized (sTracked) {
+                List<LeakReference> references = sTracked.get(reference.mHash);
+                leaked = references != null && references.remove(reference);
+                if (references != null && references.isEmpty()) {
+                    sTracked.remove(reference.mHash);
+                }
+            }
+            if (leaked) {
+                IOMetrics.onBufferLeaked();
+                LOGGER.log(Level.WARNING, "Pooled buffer was garbage collected without being released", reference.mAcquiredAt);
+            }
+        }
+    }
+
+
+    private static final class SharedQueue {
+
+        private final Queue<Object> mQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger mSize = new AtomicInteger();
+
+        Object poll() {
+            Object buffer = mQueue.poll();
+            if (buffer != null) {
+                mSize.decrementAndGet();
+            }
+            return buffer;
+        }
+
+        void offer(Object buffer) {
+            if (mSize.incrementAndGet() > MAX_SHARED) {
+                mSize.decrementAndGet();
+                return; // Full, let the GC have it
+            }
+            mQueue.offer(buffer);
+        }
+    }
+
+
+    private static final class LeakReference extends WeakReference<Object> {
+
+        private final Integer mHash;
+        private final Throwable mAcquiredAt = new Throwable("Buffer acquired here");
+
+        LeakReference(Object buffer, ReferenceQueue<Object> queue) {
+            super(buffer, queue);
+            mHash = System.identityHashCode(buffer);
+        }
+    }
+
+
+    private static final class PooledBufferedInputStream extends BufferedInputStream {
+
+        private byte[] mPooled;
+
+        PooledBufferedInputStream(InputStream in) {
+            super(in, 1);
+            mPooled = acquireBytes(PooledWriter.BUFFER_SIZE);
+            buf = mPooled;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (mPooled != null) {
+                    release(mPooled);
+                    mPooled = null;
+                }
+            }
+        }
+    }
+
+
+    static final class PooledBufferedOutputStream extends BufferedOutputStream {
+
+        private byte[] mPooled;
+
+        PooledBufferedOutputStream(OutputStream out) {
+            super(out, 1);
+            mPooled = acquireBytes(PooledWriter.BUFFER_SIZE);
+            buf = mPooled;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mPooled == null) {
+                return;
+            }
+            try {
+                super.close();
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Returns the buffer to the pool without flushing it or closing the stream, for when the output
+         * failed halfway and must not look complete.
+         */
+        void release() {
+            if (mPooled != null) {
+                buf = null; // Fail fast instead of writing into a buffer someone else now owns
+                BufferPool.release(mPooled);
+                mPooled = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package ca.barelabs.bareconnection;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * CBOR (RFC 7049) ObjectParser. Arrays and maps are written with indefinite lengths so
+ * objects stream straight to the output without being measured first.
+ */
+public class CborParser extends BinaryObjectParser {
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+    private static final int MAJOR_SIMPLE = 7;
+
+    private static final int INFO_INDEFINITE = 31;
+    private static final int TAG_POSITIVE_BIGNUM = 2;
+    private static final int TAG_NEGATIVE_BIGNUM = 3;
+
+    private static final int FALSE = 0xf4;
+    private static final int TRUE = 0xf5;
+    private static final int NULL = 0xf6;
+    private static final int UNDEFINED = 0xf7;
+    private static final int HALF_FLOAT = 0xf9;
+    private static final int SINGLE_FLOAT = 0xfa;
+    private static final int DOUBLE_FLOAT = 0xfb;
+    private static final int BREAK = 0xff;
+
+    public CborParser() {
+        this(new Gson());
+    }
+
+    public CborParser(Gson gson) {
+        super(gson);
+    }
+
+    @Override
+    protected JsonWriter newWriter(OutputStream out) {
+        return new CborWriter(out);
+    }
+
+    @Override
+    protected JsonReader newReader(InputStream in) {
+        return new CborReader(new DataInputStream(in));
+    }
+
+    // Returns the raw 64 bit argument, callers treat negative values as unsigned
+    private static long readArgument(DataInputStream in, int initialByte) throws IOException {
+        int info = initialByte & 0x1f;
+        if (info < 24) {
+            return info;
+        }
+        switch (info) {
+            case 24:
+                return in.readUnsignedByte();
+            case 25:
+                return in.readUnsignedShort();
+            case 26:
+                return in.readInt() & 0xffffffffL;
+            case 27:
+                return in.readLong();
+            default:
+                throw new IOException("Invalid CBOR argument 0x" + Integer.toHexString(initialByte));
+        }
+    }
+
+    private static BigInteger toUnsignedBigInteger(long value) {
+        return BigInteger.valueOf(value & Long.MAX_VALUE).setBit(63);
+    }
+
+    private static double toHalfFloat(int bits) {
+        int exponent = (bits >> 10) & 0x1f;
+        int mantissa = bits & 0x3ff;
+        double value;
+        if (exponent == 0) {
+            value = mantissa * Math.pow(2, -24);
+        } else if (exponent != 31) {
+            value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+        } else {
+            value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        }
+        return (bits & 0x8000) != 0 ? -value : value;
+    }
+    
+    
+    private static final class CborReader extends BinaryJsonReader {
+
+        CborReader(DataInputStream in) {
+            super(in);
+        }
+
+        @Override
+        protected boolean isBreak(int initialByte) {
+            return initialByte == BREAK;
+        }
+
+        @Override
+        protected void readItem(int initialByte) throws IOException {
+            int major = initialByte >> 5;
+            boolean indefinite = (initialByte & 0x1f) == INFO_INDEFINITE;
+            switch (major) {
+                case MAJOR_UNSIGNED: {
+                    long value = readArgument(mIn, initialByte);
+                    if (value >= 0) {
+                        longItem(value);
+                    } else {
+                        bigIntegerItem(toUnsignedBigInteger(value));
+                    }
+                    break;
+                }
+                case MAJOR_NEGATIVE: {
+                    long value = readArgument(mIn, initialByte);
+                    if (value >= 0) {
+                        longItem(-1 - value);
+                    } else {
+                        bigIntegerItem(toUnsignedBigInteger(value).not());
+                    }
+                    break;
+                }
+                case MAJOR_BYTES:
+                    bytesItem(readChunks(initialByte));
+                    break;
+                case MAJOR_TEXT:
+                    stringItem(new String(readChunks(initialByte), StandardCharsets.UTF_8));
+                    break;
+                case MAJOR_ARRAY:
+                    arrayItem(indefinite ? INDEFINITE_LENGTH : readArgument(mIn, initialByte));
+                    break;
+                case MAJOR_MAP:
+                    mapItem(indefinite ? INDEFINITE_LENGTH : readArgument(mIn, initialByte));
+                    break;
+                case MAJOR_TAG: {
+                    long tag = readArgument(mIn, initialByte);
+                    int content = readInitialByte();
+                    if ((tag == TAG_POSITIVE_BIGNUM || tag == TAG_NEGATIVE_BIGNUM) && content >> 5 == MAJOR_BYTES) {
+                        BigInteger value = new BigInteger(1, readChunks(content));
+                        bigIntegerItem(tag == TAG_POSITIVE_BIGNUM ? value : value.not());
+                    } else {
+                        readItem(content); // Other tags only add semantics to the content
+                    }
+                    break;
+                }
+                default:
+                    readSimple(initialByte);
+                    break;
+            }
+        }
+
+        private void readSimple(int initialByte) throws IOException {
+            switch (initialByte) {
+                case FALSE:
+                    booleanItem(false);
+                    break;
+                case TRUE:
+                    booleanItem(true);
+                    break;
+                case NULL:
+                case UNDEFINED:
+                    nullItem();
+                    break;
+                case HALF_FLOAT:
+                    doubleItem(toHalfFloat(mIn.readUnsignedShort()));
+                    break;
+                case SINGLE_FLOAT:
+                    floatItem(mIn.readFloat());
+                    break;
+                case DOUBLE_FLOAT:
+                    doubleItem(mIn.readDouble());
+                    break;
+                default:
+                    throw new IOException("Unsupported CBOR item 0x" + Integer.toHexString(initialByte));
+            }
+        }
+
+        private byte[] readChunks(int initialByte) throws IOException {
+            if ((initialByte & 0x1f) != INFO_INDEFINITE) {
+                return readBytes(readArgument(mIn, initialByte));
+            }
+            ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+            for (int b = readInitialByte(); b != BREAK; b = readInitialByte()) {
+                if (b >> 5 != initialByte >> 5 || (b & 0x1f) == INFO_INDEFINITE) {
+                    throw new IOException("Invalid CBOR string chunk 0x" + Integer.toHexString(b));
+                }
+                chunks.write(readBytes(readArgument(mIn, b)));
+            }
+            return chunks.toByteArray();
+        }
+    }
+    
+    
+    private static final class CborWriter extends BinaryJsonWriter {
+
+        private final OutputStream mOut;
+        private final byte[] mScratch = new byte[9];
+
+        CborWriter(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        protected void writeBeginArray() throws IOException {
+            mOut.write((MAJOR_ARRAY << 5) | INFO_INDEFINITE);
+        }
+
+        @Override
+        protected void writeEndArray() throws IOException {
+            mOut.write(BREAK);
+        }
+
+        @Override
+        protected void writeBeginObject() throws IOException {
+            mOut.write((MAJOR_MAP << 5) | INFO_INDEFINITE);
+        }
+
+        @Override
+        protected void writeEndObject() throws IOException {
+            mOut.write(BREAK);
+        }
+
+        @Override
+        protected void writeName(String name) throws IOException {
+            writeString(name);
+        }
+
+        @Override
+        protected void writeNull() throws IOException {
+            mOut.write(NULL);
+        }
+
+        @Override
+        protected void writeBoolean(boolean value) throws IOException {
+            mOut.write(value ? TRUE : FALSE);
+        }
+
+        @Override
+        protected void writeLong(long value) throws IOException {
+            if (value >= 0) {
+                writeHeader(MAJOR_UNSIGNED, value);
+            } else {
+                writeHeader(MAJOR_NEGATIVE, -1 - value);
+            }
+        }
+
+        @Override
+        protected void writeFloat(float value) throws IOException {
+            int bits = Float.floatToIntBits(value);
+            mScratch[0] = (byte) SINGLE_FLOAT;
+            mScratch[1] = (byte) (bits >> 24);
+            mScratch[2] = (byte) (bits >> 16);
+            mScratch[3] = (byte) (bits >> 8);
+            mScratch[4] = (byte) bits;
+            mOut.write(mScratch, 0, 5);
+        }
+
+        @Override
+        protected void writeDouble(double value) throws IOException {
+            mScratch[0] = (byte) DOUBLE_FLOAT;
+            writeLongBits(Double.doubleToLongBits(value));
+        }
+
+        @Override
+        protected void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeHeader(MAJOR_TEXT, bytes.length);
+            mOut.write(bytes);
+        }
+
+        @Override
+        protected void flushOutput() throws IOException {
+            mOut.flush();
+        }
+
+        @Override
+        protected void closeOutput() throws IOException {
+            mOut.close();
+        }
+
+        private void writeHeader(int major, long argument) throws IOException {
+            int type = major << 5;
+            if (argument < 24) {
+                mOut.write(type | (int) argument);
+            } else if (argument <= 0xff) {
+                mScratch[0] = (byte) (type | 24);
+                mScratch[1] = (byte) argument;
+                mOut.write(mScratch, 0, 2);
+            } else if (argument <= 0xffff) {
+                mScratch[0] = (byte) (type | 25);
+                mScratch[1] = (byte) (argument >> 8);
+                mScratch[2] = (byte) argument;
+                mOut.write(mScratch, 0, 3);
+            } else if (argument <= 0xffffffffL) {
+                mScratch[0] = (byte) (type | 26);
+                mScratch[1] = (byte) (argument >> 24);
+                mScratch[2] = (byte) (argument >> 16);
+                mScratch[3] = (byte) (argument >> 8);
+                mScratch[4] = (byte) argument;
+                mOut.write(mScratch, 0, 5);
+            } else {
+                mScratch[0] = (byte) (type | 27);
+                writeLongBits(argument);
+            }
+        }
+
+        // Writes mScratch[0] followed by the 8 bytes of bits
+        private void writeLongBits(long bits) throws IOException {
+            for (int i = 8; i > 0; i--) {
+                mScratch[i] = (byte) bits;
+                bits >>>= 8;
+            }
+            mOut.write(mScratch, 0, 9);
+        }
+    }
+}
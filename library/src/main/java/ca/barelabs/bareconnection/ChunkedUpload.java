@@ -0,0 +1,169 @@
+package ca.barelabs.bareconnection;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Uploads a file as fixed size parts sent concurrently through an UploadProtocol. A failed part is
+ * retried on its own instead of restarting the whole file, and the upload is aborted if any part gives up.
+ */
+public class ChunkedUpload {
+
+    public static final long DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private final UploadProtocol mProtocol;
+    private long mPartSize = DEFAULT_PART_SIZE;
+    private int mParallelism = DEFAULT_PARALLELISM;
+    private int mMaxRetryAttempts = RestConnection.DEFAULT_MAX_RETRY_ATTEMPTS;
+    private String mContentType = RestConnection.CONTENT_TYPE_OCTET_STREAM;
+    private BackOffPolicy.Factory mBackOffPolicyFactory = new ExponentialBackOffPolicy.Builder();
+    private ExecutorService mExecutor;
+
+    public ChunkedUpload(UploadProtocol protocol) {
+        if (protocol == null) {
+            throw new IllegalStateException("ChunkedUpload must be created with an UploadProtocol");
+        }
+        mProtocol = protocol;
+    }
+
+    public long getPartSize() {
+        return mPartSize;
+    }
+
+    public void setPartSize(long partSize) {
+        mPartSize = partSize;
+    }
+
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        mParallelism = parallelism;
+    }
+
+    public int getMaxRetryAttempts() {
+        return mMaxRetryAttempts;
+    }
+
+    public void setMaxRetryAttempts(int maxRetryAttempts) {
+        mMaxRetryAttempts = maxRetryAttempts;
+    }
+
+    public String getContentType() {
+        return mContentType;
+    }
+
+    public void setContentType(String contentType) {
+        mContentType = contentType;
+    }
+
+    /**
+     * Each part gets its own policy from the factory to pace its retries. When null failed parts are retried right away.
+     */
+    public BackOffPolicy.Factory getBackOffPolicyFactory() {
+        return mBackOffPolicyFactory;
+    }
+
+    public void setBackOffPolicyFactory(BackOffPolicy.Factory backOffPolicyFactory) {
+        mBackOffPolicyFactory = backOffPolicyFactory;
+    }
+
+    /**
+     * When null a fixed pool of getParallelism() threads is created and shut down for each upload.
+     */
+    public ExecutorService getExecutor() {
+        return mExecutor;
+    }
+
+    public void setExecutor(ExecutorService executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Returns the upload id from UploadProtocol.initiate().
+     */
+    public String upload(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("Not a file: " + file);
+        }
+        long length = file.length();
+        long partSize = Math.max(1, mPartSize);
+        int partCount = (int) Math.max(1, (length + partSize - 1) / partSize);
+        String uploadId = mProtocol.initiate(file.getName(), length, partCount);
+        boolean completed = false;
+        ExecutorService executor = mExecutor != null ? mExecutor : Executors.newFixedThreadPool(Math.max(1, Math.min(mParallelism, partCount)));
+        try {
+            List<Part> parts = new ArrayList<>(partCount);
+            for (int i = 0; i < partCount; i++) {
+                long offset = i * partSize;
+                RepeatableContent content = new RepeatableContent.FileRegionContent(file, offset, Math.min(partSize, length - offset), mContentType);
+                parts.add(new Part(uploadId, i + 1, content));
+            }
+            mProtocol.complete(uploadId, IOUtils.invokeAll(executor, parts));
+            completed = true;
+            return uploadId;
+        } finally {
+            if (executor != mExecutor) {
+                executor.shutdownNow();
+            }
+            if (!completed) {
+                try {
+                    mProtocol.abort(uploadId);
+                } catch (IOException e) {
+                    // Keep the original failure, the server will expire the upload eventually
+                }
+            }
+        }
+    }
+
+    private boolean isRetryable(IOException e) {
+        if (e instanceof RestException) {
+            RestException restException = (RestException) e;
+            return !restException.isStatusCodeKnown() || restException.getStatusCode() / 100 == 5;
+        }
+        return true;
+    }
+
+
+    private final class Part implements Callable<String> {
+
+        private final String mUploadId;
+        private final int mPartNumber;
+        private final RepeatableContent mContent;
+
+        Part(String uploadId, int partNumber, RepeatableContent content) {
+            mUploadId = uploadId;
+            mPartNumber = partNumber;
+            mContent = content;
+        }
+
+        @Override
+        public String call() throws IOException {
+            BackOffPolicy backOffPolicy = null;
+            int attempts = 0;
+            while (true) {
+                try {
+                    return mProtocol.uploadPart(mUploadId, mPartNumber, mContent);
+                } catch (IOException e) {
+                    if (attempts++ >= mMaxRetryAttempts || !isRetryable(e) || Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                    if (backOffPolicy == null && mBackOffPolicyFactory != null) {
+                        backOffPolicy = mBackOffPolicyFactory.createBackOffPolicy();
+                    }
+                    // False once the policy's max sleep is reached or the upload was cancelled
+                    if (backOffPolicy != null && !backOffPolicy.backOff()) {
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package ca.barelabs.bareconnection;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses a request body with a pooled Deflater, writing the gzip header and trailer itself
+ * since GZIPOutputStream always allocates its own. The Deflater goes back to the pool on close(), or on
+ * release() when the body failed part way and must not be terminated with a trailer.
+ */
+final class CompressingOutputStream extends DeflaterOutputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] GZIP_HEADER = {
+        0x1f, (byte) 0x8b, // Magic
+        8,                 // CM = deflate
+        0,                 // Flags
+        0, 0, 0, 0,        // MTIME
+        0,                 // XFL
+        (byte) 0xff        // OS = unknown
+    };
+
+    private final boolean mGzip;
+    private final CRC32 mCrc;
+    private boolean mFinished;
+    private boolean mClosed;
+
+    private CompressingOutputStream(OutputStream out, Deflater deflater, boolean gzip) throws IOException {
+        super(out, deflater, BUFFER_SIZE);
+        mGzip = gzip;
+        mCrc = gzip ? new CRC32() : null;
+        if (gzip) {
+            out.write(GZIP_HEADER);
+        }
+    }
+
+    static boolean isSupported(String encoding) {
+        return RestConnection.ENCODING_GZIP.equalsIgnoreCase(encoding) || RestConnection.ENCODING_DEFLATE.equalsIgnoreCase(encoding);
+    }
+
+    static CompressingOutputStream create(OutputStream out, String encoding) throws IOException {
+        if (!isSupported(encoding)) {
+            throw new IOException("Unsupported Content-Encoding: " + encoding);
+        }
+        boolean gzip = RestConnection.ENCODING_GZIP.equalsIgnoreCase(encoding);
+        ZlibPool<Deflater> pool = ZlibPool.deflaters(gzip);
+        Deflater deflater = pool.acquire();
+        try {
+            return new CompressingOutputStream(out, deflater, gzip);
+        } catch (IOException | RuntimeException e) {
+            pool.release(deflater); // The header write failed, nothing will close() this stream
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        if (mCrc != null) {
+            mCrc.update(b, off, len);
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        super.finish();
+        mFinished = true;
+        if (mGzip) {
+            writeIntLE((int) mCrc.getValue());
+            writeIntLE((int) def.getBytesRead()); // ISIZE is the input length mod 2^32
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            try {
+                finish();
+            } finally {
+                out.close();
+            }
+        } finally {
+            ZlibPool.deflaters(mGzip).release(def);
+        }
+    }
+
+    /**
+     * Returns the Deflater to the pool without finishing the deflate stream or closing the underlying one, so
+     * a body that failed part way stays incomplete rather than looking like a valid (truncated) payload.
+     */
+    void release() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        ZlibPool.deflaters(mGzip).release(def);
+    }
+
+    private void writeIntLE(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+}
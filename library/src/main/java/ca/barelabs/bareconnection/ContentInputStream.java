@@ -6,13 +6,17 @@ import java.io.InputStream;
 public class ContentInputStream extends FilterInputStream {
 	
 	private final String mContentType;
-	private final int mContentLength;
+	private final long mContentLength;
 	
 	public ContentInputStream(InputStream in, String contentType) {
-		this(in, contentType, -1);
+		this(in, contentType, -1L);
 	}
 
 	public ContentInputStream(InputStream in, String contentType, int contentLength) {
+		this(in, contentType, (long) contentLength);
+	}
+
+	public ContentInputStream(InputStream in, String contentType, long contentLength) {
 		super(in);
 		mContentType = contentType;
 		mContentLength = contentLength;
@@ -23,6 +27,10 @@ public class ContentInputStream extends FilterInputStream {
 	}
 
 	public int getContentLength() {
+		return mContentLength > Integer.MAX_VALUE ? -1 : (int) mContentLength;
+	}
+
+	public long getContentLengthLong() {
 		return mContentLength;
 	}
 }
@@ -0,0 +1,202 @@
+package ca.barelabs.bareconnection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Decodes gzip or deflate content with a pooled Inflater, which goes back to the pool on close().
+ * The gzip header and trailer are handled here since GZIPInputStream always allocates its own Inflater.
+ */
+final class DecompressingInputStream extends InflaterInputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final boolean mGzip;
+    private final boolean mNowrap;
+    private final CRC32 mCrc;
+    private int mBufferPosition;
+    private boolean mEof;
+    private boolean mClosed;
+
+    private DecompressingInputStream(InputStream in, boolean gzip, boolean nowrap) {
+        super(in, ZlibPool.inflaters(nowrap).acquire(), BUFFER_SIZE);
+        mGzip = gzip;
+        mNowrap = nowrap;
+        mCrc = gzip ? new CRC32() : null;
+    }
+
+    static boolean isSupported(String encoding) {
+        return RestConnection.ENCODING_GZIP.equalsIgnoreCase(encoding) || RestConnection.ENCODING_X_GZIP.equalsIgnoreCase(encoding)
+                || RestConnection.ENCODING_DEFLATE.equalsIgnoreCase(encoding);
+    }
+
+    static InputStream create(InputStream in, String encoding) throws IOException {
+        if (!isSupported(encoding)) {
+            throw new IOException("Unsupported Content-Encoding: " + encoding);
+        }
+        DecompressingInputStream stream;
+        if (RestConnection.ENCODING_DEFLATE.equalsIgnoreCase(encoding)) {
+            // Plenty of servers send raw deflate data instead of the zlib format the spec asks for
+            PushbackInputStream pushback = new PushbackInputStream(in, 2);
+            int cmf = pushback.read();
+            int flg = cmf == -1 ? -1 : pushback.read();
+            if (flg != -1) {
+                pushback.unread(flg);
+            }
+            if (cmf != -1) {
+                pushback.unread(cmf);
+            }
+            boolean zlib = flg != -1 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+            stream = new DecompressingInputStream(pushback, false, !zlib);
+        } else {
+            stream = new DecompressingInputStream(in, true, true);
+            try {
+                stream.readHeader();
+            } catch (IOException e) {
+                stream.close();
+                throw e;
+            }
+        }
+        return stream;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        while (!mEof) {
+            int read = super.read(b, off, len);
+            if (read != -1) {
+                if (mCrc != null) {
+                    mCrc.update(b, off, read);
+                }
+                return read;
+            }
+            // Whatever the inflater didn't use is the start of the trailer, and maybe of another member
+            mBufferPosition = this.len - inf.getRemaining();
+            if (!mGzip) {
+                mEof = true;
+            } else {
+                readTrailer();
+                mEof = !readNextMember();
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mEof ? 0 : super.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            super.close();
+        } finally {
+            ZlibPool.inflaters(mNowrap).release(inf);
+        }
+    }
+
+    private void readHeader() throws IOException {
+        if (readUShort() != GZIP_MAGIC) {
+            throw new ZipException("Not in GZIP format");
+        }
+        readHeaderAfterMagic();
+    }
+
+    private void readHeaderAfterMagic() throws IOException {
+        if (readUByte() != 8) {
+            throw new ZipException("Unsupported compression method");
+        }
+        int flags = readUByte();
+        skipBytes(6); // MTIME, XFL, OS
+        if ((flags & FEXTRA) == FEXTRA) {
+            skipBytes(readUShort());
+        }
+        if ((flags & FNAME) == FNAME) {
+            while (readUByte() != 0);
+        }
+        if ((flags & FCOMMENT) == FCOMMENT) {
+            while (readUByte() != 0);
+        }
+        if ((flags & FHCRC) == FHCRC) {
+            skipBytes(2);
+        }
+    }
+
+    private void readTrailer() throws IOException {
+        long crc = readUInt();
+        long size = readUInt();
+        if (crc != mCrc.getValue() || size != (inf.getBytesWritten() & 0xffffffffL)) {
+            throw new ZipException("Corrupt GZIP trailer");
+        }
+    }
+
+    /**
+     * Gzip allows several members back to back, which decode to their concatenation. Like GZIPInputStream,
+     * anything after a trailer that isn't another gzip header ends the stream.
+     */
+    private boolean readNextMember() throws IOException {
+        int first = nextByte();
+        if (first == -1) {
+            return false;
+        }
+        int second = nextByte();
+        if (second == -1 || (first | (second << 8)) != GZIP_MAGIC) {
+            return false;
+        }
+        readHeaderAfterMagic();
+        inf.reset();
+        mCrc.reset();
+        if (mBufferPosition < this.len) {
+            inf.setInput(buf, mBufferPosition, this.len - mBufferPosition);
+            mBufferPosition = this.len;
+        }
+        return true;
+    }
+
+    /**
+     * Reads bytes the inflater left unused in buf first, then the underlying stream.
+     */
+    private int nextByte() throws IOException {
+        if (mBufferPosition < this.len) {
+            return buf[mBufferPosition++] & 0xff;
+        }
+        return in.read();
+    }
+
+    private long readUInt() throws IOException {
+        return readUShort() | ((long) readUShort() << 16);
+    }
+
+    private int readUShort() throws IOException {
+        return readUByte() | (readUByte() << 8);
+    }
+
+    private int readUByte() throws IOException {
+        int b = nextByte();
+        if (b == -1) {
+            throw new EOFException("Unexpected end of GZIP input stream");
+        }
+        return b;
+    }
+
+    private void skipBytes(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            readUByte();
+        }
+    }
+}
@@ -1,66 +1,125 @@
 package ca.barelabs.bareconnection;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.URLConnection;
 import java.util.List;
 
-import ca.barelabs.bareconnection.Entity.BinaryFileEntity;
-import ca.barelabs.bareconnection.Entity.FileEntity;
-import ca.barelabs.bareconnection.Entity.StringEntity;
-import ca.barelabs.bareconnection.RestConnection.MultipartFormWriter;
+import ca.barelabs.bareconnection.RestConnection.SizedMultipartFormWriter;
 
-public class DefaultMultipartFormWriter implements MultipartFormWriter {
+public class DefaultMultipartFormWriter implements SizedMultipartFormWriter {
     
     public static final String CRLF = "\r\n";
     
+    private static final byte[] CRLF_BYTES = {'\r', '\n'};
+    
     
     private final List<Entity> mEntities;
+    private final String mMediaType;
+    // Part headers encoded once for the charset/boundary they were computed for
+    private byte[][] mHeaders;
+    private String mEncodedCharset;
+    private String mEncodedBoundary;
     
     public DefaultMultipartFormWriter(List<Entity> entities) {
+        this(entities, RestConnection.CONTENT_TYPE_MULTIPART_FORM);
+    }
+    
+    /**
+     * For a multipart type other than form-data each part is labelled with a Content-ID taken
+     * from the entity's name instead of a Content-Disposition.
+     */
+    public DefaultMultipartFormWriter(List<Entity> entities, String mediaType) {
         mEntities = entities;
+        mMediaType = mediaType;
+    }
+
+    
+    public String getMediaType() {
+        return mMediaType;
     }
 
     
+    /**
+     * False when any part can only be written once, so the request can't be retried.
+     */
+    public boolean isRepeatable() {
+        if (mEntities != null) {
+            for (Entity entity : mEntities) {
+                if (!entity.isRepeatable()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    @Override
+    public long getContentLength(String charset, String boundary) throws IOException {
+        if (mEntities == null) {
+            return 0;
+        }
+        encode(charset, boundary);
+        long length = 0;
+        for (int i = 0; i < mEntities.size(); i++) {
+            long bodyLength = mEntities.get(i).getContentLength();
+            if (bodyLength < 0) {
+                return -1;
+            }
+            length += mHeaders[i].length + bodyLength + CRLF_BYTES.length;
+        }
+        return length + getClosingBoundary(boundary).length;
+    }
+    
     @Override
     public void onWrite(OutputStream out, String charset, String boundary) throws IOException {
-        if(mEntities != null) {
-            PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, charset), true);
-            for(Entity entity : mEntities) {
-                if(entity instanceof StringEntity) {
-                    StringEntity stringEntity = (StringEntity) entity;
-                    writer.append("--" + boundary).append(CRLF);
-                    writer.append("Content-Disposition: form-data; name=\"" + stringEntity.getName() + "\"").append(CRLF);
-                    writer.append("Content-Type: text/plain; charset=" + stringEntity.getCharset()).append(CRLF);
-                    writer.append(CRLF).append(stringEntity.getValue()).append(CRLF).flush();
-                }
-                else if(entity instanceof FileEntity) {
-                    FileEntity fileEntity = (FileEntity) entity;
-                    writer.append("--" + boundary).append(CRLF);
-                    writer.append("Content-Disposition: form-data; name=\"textFile\"; filename=\"" + fileEntity.getName() + "\"").append(CRLF);
-                    writer.append("Content-Type: text/plain; charset=" + fileEntity.getCharset()).append(CRLF); // Text file itself must be saved in this charset!
-                    writer.append(CRLF).flush();
-                    IOUtils.copy(new FileInputStream(fileEntity.getFile()), out);
-                    out.flush(); // Important before continuing with writer!
-                    writer.append(CRLF).flush(); // CRLF is important! It indicates end of boundary.
-                }
-                else if(entity instanceof BinaryFileEntity) {
-                    BinaryFileEntity fileEntity = (BinaryFileEntity) entity;
-                    writer.append("--" + boundary).append(CRLF);
-                    writer.append("Content-Disposition: form-data; name=\"binaryFile\"; filename=\"" + fileEntity.getName() + "\"").append(CRLF);
-                    writer.append("Content-Type: " + URLConnection.guessContentTypeFromName(fileEntity.getFile().getName())).append(CRLF);
-                    writer.append("Content-Transfer-Encoding: binary").append(CRLF);
-                    writer.append(CRLF).flush();
-                    IOUtils.copy(new FileInputStream(fileEntity.getFile()), out);
-                    out.flush(); // Important before continuing with writer!
-                    writer.append(CRLF).flush(); // CRLF is important! It indicates end of boundary.
-                }
+        if (mEntities == null) {
+            return;
+        }
+        encode(charset, boundary);
+        for (int i = 0; i < mEntities.size(); i++) {
+            out.write(mHeaders[i]);
+            mEntities.get(i).writeTo(out);
+            out.write(CRLF_BYTES); // CRLF is important! It indicates end of boundary.
+        }
+        // End of multipart/form-data.
+        out.write(getClosingBoundary(boundary));
+    }
+    
+    private void encode(String charset, String boundary) throws IOException {
+        if (mHeaders != null && charset.equals(mEncodedCharset) && boundary.equals(mEncodedBoundary)) {
+            return;
+        }
+        byte[][] headers = new byte[mEntities.size()][];
+        for (int i = 0; i < mEntities.size(); i++) {
+            headers[i] = getHeader(mEntities.get(i), boundary, mMediaType).getBytes(charset);
+        }
+        mHeaders = headers;
+        mEncodedCharset = charset;
+        mEncodedBoundary = boundary;
+    }
+    
+    private static String getHeader(Entity entity, String boundary, String mediaType) {
+        StringBuilder header = new StringBuilder();
+        header.append("--").append(boundary).append(CRLF);
+        if (RestConnection.CONTENT_TYPE_MULTIPART_FORM.equals(mediaType)) {
+            header.append("Content-Disposition: form-data; name=\"").append(entity.getFieldName()).append("\"");
+            if (entity.getFileName() != null) {
+                header.append("; filename=\"").append(entity.getFileName()).append("\"");
             }
-            // End of multipart/form-data.
-            writer.append("--" + boundary + "--").append(CRLF);
+            header.append(CRLF);
+        } else if (entity.getName() != null) {
+            header.append(RestConnection.HEADER_CONTENT_ID).append(": <").append(entity.getName()).append(">").append(CRLF);
         }
+        if (entity.getContentType() != null) {
+            header.append("Content-Type: ").append(entity.getContentType()).append(CRLF);
+        }
+        if (entity.getTransferEncoding() != null) {
+            header.append("Content-Transfer-Encoding: ").append(entity.getTransferEncoding()).append(CRLF);
+        }
+        return header.append(CRLF).toString();
+    }
+    
+    private static byte[] getClosingBoundary(String boundary) throws IOException {
+        return ("--" + boundary + "--" + CRLF).getBytes(RestConnection.DEFAULT_CHARSET);
     }
 }
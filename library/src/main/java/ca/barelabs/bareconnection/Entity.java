@@ -1,6 +1,12 @@
 package ca.barelabs.bareconnection;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
 
 
 public abstract class Entity {
@@ -8,11 +14,11 @@ public abstract class Entity {
     protected final String mName;
     protected final String mCharset;
     
-    private Entity(String name) {
+    protected Entity(String name) {
         this(name, RestConnection.DEFAULT_CHARSET);
     }
     
-    private Entity(String name, String charset) {
+    protected Entity(String name, String charset) {
         mName = name;
         mCharset = charset;
     }
@@ -25,11 +31,55 @@ public abstract class Entity {
         return mCharset;
     }
     
+    /**
+     * The form field this part is sent as. Defaults to getName().
+     */
+    public String getFieldName() {
+        return mName;
+    }
+    
+    /**
+     * When not null the part is sent as a file upload with this filename.
+     */
+    public String getFileName() {
+        return null;
+    }
+    
+    /**
+     * The part's Content-Type, or null to leave it out.
+     */
+    public abstract String getContentType();
+    
+    /**
+     * The part's Content-Transfer-Encoding, or null to leave it out.
+     */
+    public String getTransferEncoding() {
+        return null;
+    }
+    
+    /**
+     * The exact number of bytes writeTo() will write, or -1 if unknown.
+     */
+    public abstract long getContentLength() throws IOException;
+    
+    /**
+     * Whether writeTo() can be called more than once, i.e. the request can be retried.
+     */
+    public boolean isRepeatable() {
+        return true;
+    }
+    
+    /**
+     * Writes the part's body, without closing out.
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+    
 
     
     public static final class StringEntity extends Entity {
         
         private final String mValue;
+        private byte[] mEncoded;
         
         public StringEntity(String name, String value) {
             this(name, value, RestConnection.DEFAULT_CHARSET);
@@ -43,6 +93,28 @@ public abstract class Entity {
         public String getValue() {
             return mValue;
         }
+
+        @Override
+        public String getContentType() {
+            return RestConnection.CONTENT_TYPE_TEXT + "; " + RestConnection.KEY_CHARSET + "=" + mCharset;
+        }
+
+        @Override
+        public long getContentLength() throws IOException {
+            return getEncoded().length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(getEncoded());
+        }
+        
+        private byte[] getEncoded() throws IOException {
+            if (mEncoded == null) {
+                mEncoded = mValue.getBytes(mCharset);
+            }
+            return mEncoded;
+        }
     }
     
     
@@ -62,6 +134,32 @@ public abstract class Entity {
         public File getFile() {
             return mFile;
         }
+
+        @Override
+        public String getFieldName() {
+            return "textFile";
+        }
+
+        @Override
+        public String getFileName() {
+            return mName;
+        }
+
+        @Override
+        public String getContentType() {
+            // Text file itself must be saved in this charset!
+            return RestConnection.CONTENT_TYPE_TEXT + "; " + RestConnection.KEY_CHARSET + "=" + mCharset;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mFile.length();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            writeFile(mFile, 0, mFile.length(), out);
+        }
     }
     
     
@@ -81,5 +179,192 @@ public abstract class Entity {
         public File getFile() {
             return mFile;
         }
+
+        @Override
+        public String getFieldName() {
+            return "binaryFile";
+        }
+
+        @Override
+        public String getFileName() {
+            return mName;
+        }
+
+        @Override
+        public String getContentType() {
+            return guessContentType(mFile.getName());
+        }
+
+        @Override
+        public String getTransferEncoding() {
+            return "binary";
+        }
+
+        @Override
+        public long getContentLength() {
+            return mFile.length();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            writeFile(mFile, 0, mFile.length(), out);
+        }
+    }
+    
+    
+    /**
+     * A slice of a byte array, sent straight from the array.
+     */
+    public static final class ByteArrayEntity extends Entity {
+        
+        private final String mFileName;
+        private final byte[] mBytes;
+        private final int mOffset;
+        private final int mLength;
+        private final String mContentType;
+        
+        public ByteArrayEntity(String name, byte[] bytes, String contentType) {
+            this(name, null, bytes, 0, bytes.length, contentType);
+        }
+        
+        public ByteArrayEntity(String name, String fileName, byte[] bytes, int offset, int length, String contentType) {
+            super(name);
+            if (offset < 0 || length < 0 || offset + length > bytes.length) {
+                throw new IndexOutOfBoundsException("offset=" + offset + ", length=" + length + ", size=" + bytes.length);
+            }
+            mFileName = fileName;
+            mBytes = bytes;
+            mOffset = offset;
+            mLength = length;
+            mContentType = contentType;
+        }
+
+        @Override
+        public String getFileName() {
+            return mFileName;
+        }
+
+        @Override
+        public String getContentType() {
+            return mContentType;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mLength;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(mBytes, mOffset, mLength);
+        }
+    }
+    
+    
+    /**
+     * The remaining bytes of a heap or direct ByteBuffer. The buffer's position is left untouched.
+     */
+    public static final class ByteBufferEntity extends Entity {
+        
+        private final String mFileName;
+        private final ByteBuffer mBuffer;
+        private final String mContentType;
+        
+        public ByteBufferEntity(String name, ByteBuffer buffer, String contentType) {
+            this(name, null, buffer, contentType);
+        }
+        
+        public ByteBufferEntity(String name, String fileName, ByteBuffer buffer, String contentType) {
+            super(name);
+            mFileName = fileName;
+            mBuffer = buffer;
+            mContentType = contentType;
+        }
+
+        @Override
+        public String getFileName() {
+            return mFileName;
+        }
+
+        @Override
+        public String getContentType() {
+            return mContentType;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mBuffer.remaining();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            IOUtils.write(mBuffer, out);
+        }
+    }
+    
+    
+    /**
+     * Streams a part from an InputStream, which is closed once written. Can only be sent once, and
+     * an unknown length (-1) means the whole request has to be sent chunked.
+     */
+    public static final class StreamEntity extends Entity {
+        
+        private final String mFileName;
+        private final InputStream mIn;
+        private final long mLength;
+        private final String mContentType;
+        
+        public StreamEntity(String name, String fileName, InputStream in, long length, String contentType) {
+            super(name);
+            mFileName = fileName;
+            mIn = in;
+            mLength = length;
+            mContentType = contentType;
+        }
+
+        @Override
+        public String getFileName() {
+            return mFileName;
+        }
+
+        @Override
+        public String getContentType() {
+            return mContentType;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mLength;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            if (mLength >= 0) {
+                // The announced length went out in Content-Length, so anything past it would corrupt the body
+                IOUtils.copyExactly(mIn, out, mLength);
+            } else {
+                IOUtils.copy(mIn, out, mLength);
+            }
+        }
+    }
+    
+    
+    private static void writeFile(File file, long position, long length, OutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            IOUtils.copy(in.getChannel(), position, length, out);
+        } finally {
+            in.close();
+        }
+    }
+    
+    private static String guessContentType(String fileName) {
+        String contentType = URLConnection.guessContentTypeFromName(fileName);
+        return contentType == null ? RestConnection.CONTENT_TYPE_OCTET_STREAM : contentType;
     }
 }
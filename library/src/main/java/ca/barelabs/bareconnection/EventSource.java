@@ -0,0 +1,178 @@
+package ca.barelabs.bareconnection;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+
+public class EventSource implements Closeable {
+
+    public static final long DEFAULT_RETRY = 3000;
+
+    public interface OnEventListener {
+        void onEvent(ServerSentEvent event) throws IOException;
+    }
+
+
+    private final RestConnection mConnection;
+    private BackOffPolicy mBackOffPolicy;
+    private volatile String mLastEventId;
+    private volatile long mRetry = DEFAULT_RETRY;
+    private volatile boolean mClosed;
+    private volatile RestResponse mResponse;
+
+    public EventSource(RestConnection connection) {
+        if (connection == null) {
+            throw new IllegalStateException("EventSource must be created with a RestConnection");
+        }
+        mConnection = connection;
+    }
+
+    public String getLastEventId() {
+        return mLastEventId;
+    }
+
+    public void setLastEventId(String lastEventId) {
+        mLastEventId = lastEventId;
+    }
+
+    /**
+     * When set, reconnects are paced by this policy and run() gives up once it stops backing off.
+     * Otherwise reconnects wait for the server supplied retry time and never give up.
+     */
+    public BackOffPolicy getBackOffPolicy() {
+        return mBackOffPolicy;
+    }
+
+    public void setBackOffPolicy(BackOffPolicy backOffPolicy) {
+        mBackOffPolicy = backOffPolicy;
+    }
+
+    public long getRetry() {
+        return mRetry;
+    }
+
+    public void setRetry(long retry) {
+        mRetry = retry;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Blocks delivering events until close() is called, the server answers 204 No Content,
+     * or the connection fails in a way that can't be retried.
+     */
+    public void run(OnEventListener listener) throws IOException {
+        if (mBackOffPolicy != null) {
+            mBackOffPolicy.reset();
+        }
+        boolean opened = false;
+        while (!mClosed) {
+            RestResponse response = null;
+            try {
+                response = mConnection.execute(RestConnection.METHOD_GET, null, createHeaders());
+                mResponse = response;
+                if (mClosed) {
+                    return;
+                }
+                if (response.getStatusCode() == RestConnection.SC_NO_CONTENT) {
+                    return; // Server asked us to stop reconnecting
+                }
+                if (response.getStatusCode() / 100 == 2 && !isEventStream(response)) {
+                    throw new RestException(response.getStatusCode(), "Expected " + RestConnection.CONTENT_TYPE_EVENT_STREAM
+                            + " but was " + response.getHeaders().get(RestConnection.HEADER_CONTENT_TYPE));
+                }
+                EventStreamReader reader = new EventStreamReader(response.getContent(), mLastEventId);
+                opened = true;
+                if (mBackOffPolicy != null) {
+                    mBackOffPolicy.reset();
+                }
+                try {
+                    ServerSentEvent event;
+                    while ((event = reader.next()) != null) {
+                        mLastEventId = reader.getLastEventId();
+                        listener.onEvent(event);
+                    }
+                } finally {
+                    reader.close();
+                    mLastEventId = reader.getLastEventId();
+                    if (reader.getRetry() >= 0) {
+                        mRetry = reader.getRetry();
+                    }
+                }
+            } catch (RestException e) {
+                if (mClosed) {
+                    return;
+                }
+                if (!isRetryable(e.getStatusCode())) {
+                    throw e;
+                }
+            } catch (IOException e) {
+                if (mClosed) {
+                    return;
+                }
+                if (!opened && mBackOffPolicy == null) {
+                    throw e; // Never connected at all, don't retry a bad URL forever
+                }
+            } finally {
+                mResponse = null;
+                if (response != null) {
+                    response.disconnect();
+                }
+            }
+            if (!mClosed) {
+                waitBeforeReconnect();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        RestResponse response = mResponse;
+        if (response != null) {
+            response.disconnect(); // Unblocks the reading thread
+        }
+    }
+
+    private Map<String, String> createHeaders() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put(RestConnection.HEADER_ACCEPT, RestConnection.CONTENT_TYPE_EVENT_STREAM);
+        headers.put(RestConnection.HEADER_CACHE_CONTROL, "no-cache");
+        // Compressed streams can hold back events until the compressor flushes
+        headers.put(RestConnection.HEADER_ACCEPT_ENCODING, RestConnection.ENCODING_IDENTITY);
+        String lastEventId = mLastEventId;
+        if (lastEventId != null) {
+            headers.put(RestConnection.HEADER_LAST_EVENT_ID, lastEventId);
+        }
+        return headers;
+    }
+
+    private boolean isEventStream(RestResponse response) {
+        MediaType contentType = response.getHeaders().getContentType();
+        return contentType != null && RestConnection.CONTENT_TYPE_EVENT_STREAM.equals(contentType.getBaseType());
+    }
+
+    private boolean isRetryable(int statusCode) {
+        return statusCode / 100 == 5 || (mBackOffPolicy != null && mBackOffPolicy.isBackOffRequired(statusCode));
+    }
+
+    private void waitBeforeReconnect() throws IOException {
+        if (mBackOffPolicy != null) {
+            if (!mBackOffPolicy.backOff()) {
+                throw new IOException("Gave up reconnecting to event stream");
+            }
+            return;
+        }
+        try {
+            Thread.sleep(mRetry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to reconnect");
+        }
+    }
+}
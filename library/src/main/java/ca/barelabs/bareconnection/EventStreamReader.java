@@ -0,0 +1,205 @@
+package ca.barelabs.bareconnection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental text/event-stream parser. Lines are scanned in place in a reusable byte buffer and
+ * field values are accumulated as bytes, so Strings are only created once per dispatched event.
+ */
+final class EventStreamReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final byte[] FIELD_DATA = {'d', 'a', 't', 'a'};
+    private static final byte[] FIELD_EVENT = {'e', 'v', 'e', 'n', 't'};
+    private static final byte[] FIELD_ID = {'i', 'd'};
+    private static final byte[] FIELD_RETRY = {'r', 'e', 't', 'r', 'y'};
+
+    private final InputStream mIn;
+    private byte[] mBuffer = BufferPool.acquireBytes(BUFFER_SIZE);
+    private int mStart;
+    private int mScan;
+    private int mEnd;
+    private boolean mSkipLineFeed;
+    private boolean mCheckBom = true;
+
+    private final Bytes mData = new Bytes();
+    private final Bytes mEvent = new Bytes();
+    private final Bytes mId = new Bytes();
+    private boolean mIdChanged;
+    private String mLastEventId;
+    private long mRetry = -1;
+
+    EventStreamReader(InputStream in, String lastEventId) {
+        mIn = in;
+        mLastEventId = lastEventId;
+    }
+
+    String getLastEventId() {
+        return mLastEventId;
+    }
+
+    /**
+     * The reconnection time sent by the server, or -1 if none was sent.
+     */
+    long getRetry() {
+        return mRetry;
+    }
+
+    /**
+     * Returns the next event, or null once the stream ends. A trailing incomplete event is discarded.
+     */
+    ServerSentEvent next() throws IOException {
+        while (true) {
+            if (mSkipLineFeed && mStart < mEnd) {
+                mSkipLineFeed = false;
+                if (mBuffer[mStart] == '\n') {
+                    mStart++;
+                    mScan = Math.max(mScan, mStart);
+                }
+            }
+            int lineEnd = -1;
+            while (mScan < mEnd) {
+                byte b = mBuffer[mScan++];
+                if (b == '\n' || b == '\r') {
+                    lineEnd = mScan - 1;
+                    break;
+                }
+            }
+            if (lineEnd == -1) {
+                if (!fill()) {
+                    return null;
+                }
+                continue;
+            }
+            int lineStart = mStart;
+            mCheckBom = false;
+            mSkipLineFeed = mBuffer[lineEnd] == '\r';
+            mStart = mScan;
+            ServerSentEvent event = processLine(lineStart, lineEnd);
+            if (event != null) {
+                return event;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        IOUtils.closeQuietly(mIn);
+        if (mBuffer != null) {
+            BufferPool.release(mBuffer);
+            mBuffer = null;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (mStart > 0) {
+            System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+            mEnd -= mStart;
+            mScan -= mStart;
+            mStart = 0;
+        }
+        if (mEnd == mBuffer.length) {
+            byte[] buffer = BufferPool.acquireBytes(mBuffer.length * 2); // A single line longer than the buffer
+            System.arraycopy(mBuffer, 0, buffer, 0, mEnd);
+            BufferPool.release(mBuffer);
+            mBuffer = buffer;
+        }
+        int read = mIn.read(mBuffer, mEnd, mBuffer.length - mEnd);
+        if (read == -1) {
+            return false;
+        }
+        mEnd += read;
+        if (mCheckBom && mStart == 0 && mEnd >= 3) {
+            mCheckBom = false;
+            if ((mBuffer[0] & 0xff) == 0xef && (mBuffer[1] & 0xff) == 0xbb && (mBuffer[2] & 0xff) == 0xbf) {
+                mStart = mScan = 3;
+            }
+        }
+        return true;
+    }
+
+    private ServerSentEvent processLine(int start, int end) {
+        if (start == end) {
+            return dispatch();
+        }
+        if (mBuffer[start] == ':') {
+            return null; // Comment, usually a keep-alive
+        }
+        int colon = start;
+        while (colon < end && mBuffer[colon] != ':') {
+            colon++;
+        }
+        int valueStart = colon < end ? colon + 1 : end;
+        if (valueStart < end && mBuffer[valueStart] == ' ') {
+            valueStart++;
+        }
+        int valueLength = end - valueStart;
+        if (isField(FIELD_DATA, start, colon)) {
+            mData.write(mBuffer, valueStart, valueLength);
+            mData.write('\n');
+        } else if (isField(FIELD_EVENT, start, colon)) {
+            mEvent.reset();
+            mEvent.write(mBuffer, valueStart, valueLength);
+        } else if (isField(FIELD_ID, start, colon)) {
+            for (int i = valueStart; i < end; i++) {
+                if (mBuffer[i] == 0) {
+                    return null;
+                }
+            }
+            mId.reset();
+            mId.write(mBuffer, valueStart, valueLength);
+            mIdChanged = true;
+        } else if (isField(FIELD_RETRY, start, colon) && valueLength > 0) {
+            long retry = 0;
+            for (int i = valueStart; i < end; i++) {
+                if (mBuffer[i] < '0' || mBuffer[i] > '9') {
+                    return null;
+                }
+                retry = retry * 10 + (mBuffer[i] - '0');
+            }
+            mRetry = retry;
+        }
+        return null;
+    }
+
+    private ServerSentEvent dispatch() {
+        if (mIdChanged) {
+            mIdChanged = false;
+            mLastEventId = mId.size() == 0 ? null : mId.toUtf8(0);
+        }
+        if (mData.size() == 0) {
+            mEvent.reset();
+            return null;
+        }
+        String event = mEvent.size() == 0 ? ServerSentEvent.DEFAULT_EVENT : mEvent.toUtf8(0);
+        ServerSentEvent sse = new ServerSentEvent(mLastEventId, event, mData.toUtf8(1)); // Drop the last line feed
+        mData.reset();
+        mEvent.reset();
+        return sse;
+    }
+
+    private boolean isField(byte[] field, int start, int end) {
+        if (end - start != field.length) {
+            return false;
+        }
+        for (int i = 0; i < field.length; i++) {
+            if (mBuffer[start + i] != field[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    
+    private static final class Bytes extends ByteArrayOutputStream {
+
+        String toUtf8(int trim) {
+            return new String(buf, 0, count - trim, StandardCharsets.UTF_8);
+        }
+    }
+}
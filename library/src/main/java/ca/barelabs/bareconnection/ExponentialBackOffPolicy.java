@@ -22,7 +22,13 @@ public class ExponentialBackOffPolicy implements BackOffPolicy {
     private final double mMultiplier;
     private final long mInitialSleep;
     private final long mMaxSleep;
-    private long mSleep;
+    // Per thread so concurrent requests on a shared RestConnection each back off on their own
+    private final ThreadLocal<long[]> mSleep = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[] {mInitialSleep};
+        }
+    };
        
     
     public ExponentialBackOffPolicy(List<Integer> retryStatusCodes, double multiplier, long initialSleep, long maxSleep) {
@@ -30,7 +36,6 @@ public class ExponentialBackOffPolicy implements BackOffPolicy {
         mMultiplier = multiplier < 1 ? 1 : multiplier;
         mInitialSleep = initialSleep < 0 ? 0 : initialSleep;
         mMaxSleep = maxSleep < initialSleep ? initialSleep : maxSleep;
-        reset();
     }
 
     @Override
@@ -41,8 +46,9 @@ public class ExponentialBackOffPolicy implements BackOffPolicy {
     @Override
     public boolean backOff() {
         try {
-            if (mSleep < mMaxSleep) {
-                Thread.sleep(getSleepAndIncrement());
+            long[] sleep = mSleep.get();
+            if (sleep[0] < mMaxSleep) {
+                Thread.sleep(getSleepAndIncrement(sleep));
                 return true;
             }
         } catch (InterruptedException e) {
@@ -52,19 +58,20 @@ public class ExponentialBackOffPolicy implements BackOffPolicy {
 
     @Override
     public void reset() {
-        mSleep = mInitialSleep;
+        mSleep.get()[0] = mInitialSleep;
     }
     
-    private long getSleepAndIncrement() {
+    private long getSleepAndIncrement(long[] sleep) {
         try {
-            return mSleep;
+            return sleep[0];
         } finally {
-            mSleep = (long) ((mSleep * mMultiplier) + (mRandom.nextInt(200) - 100)); // random offset +/- milliseconds
+            // Random offset +/- 100 milliseconds, never below the initial sleep so short sleeps can't go negative
+            sleep[0] = Math.max(mInitialSleep, (long) ((sleep[0] * mMultiplier) + (mRandom.nextInt(200) - 100)));
         }
     }
         
     
-    public static final class Builder {
+    public static final class Builder implements BackOffPolicy.Factory {
 
         private List<Integer> mRetryStatusCodes = new ArrayList<>();
         private double mMultiplier = DEFAULT_MULTIPLIER;
@@ -96,5 +103,10 @@ public class ExponentialBackOffPolicy implements BackOffPolicy {
         public ExponentialBackOffPolicy build() {
             return new ExponentialBackOffPolicy(mRetryStatusCodes, mMultiplier, mInitialSleep, mMaxSleep);
         }
+
+        @Override
+        public BackOffPolicy createBackOffPolicy() {
+            return build();
+        }
     }
 }
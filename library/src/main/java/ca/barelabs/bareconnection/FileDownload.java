@@ -0,0 +1,177 @@
+package ca.barelabs.bareconnection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Downloads a byte range of a resource into a FileChannel at the matching offset. Each call to
+ * transfer() continues from the last byte written, using Range/If-Range once something was received.
+ */
+final class FileDownload {
+
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final String BYTES_UNIT = "bytes";
+    private static final String WEAK_ETAG_PREFIX = "W/";
+
+    private final RestConnection mConnection;
+    private final FileChannel mFile;
+    private final long mStart;
+    private final long mEnd;
+    private long mPosition;
+    private long mTotalLength = -1;
+    private String mValidator;
+    private boolean mComplete;
+    private boolean mResumable;
+
+    /**
+     * @param end last byte (inclusive) to fetch, or -1 for the rest of the resource
+     */
+    FileDownload(RestConnection connection, FileChannel file, long start, long end, String validator) {
+        mConnection = connection;
+        mFile = file;
+        mStart = start;
+        mEnd = end;
+        mPosition = start;
+        mValidator = validator;
+    }
+
+    long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Bytes written so far for this download's range.
+     */
+    long getTransferred() {
+        return mPosition - mStart;
+    }
+
+    long getTotalLength() {
+        return mTotalLength;
+    }
+
+    boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * True when the last transfer() failed while receiving the body, so calling it again resumes from getPosition().
+     * Failures before that, such as the request itself or an unexpected Content-Range, aren't worth repeating here.
+     */
+    boolean isResumable() {
+        return mResumable;
+    }
+
+    void transfer() throws IOException {
+        mResumable = false;
+        Map<String, String> headers = new HashMap<>();
+        // Ranges apply to the encoded bytes, so ask for them unencoded
+        headers.put(RestConnection.HEADER_ACCEPT_ENCODING, RestConnection.ENCODING_IDENTITY);
+        if (mPosition > 0 || mEnd >= 0) {
+            headers.put(RestConnection.HEADER_RANGE, BYTES_UNIT + "=" + mPosition + "-" + (mEnd >= 0 ? String.valueOf(mEnd) : ""));
+            if (mValidator != null) {
+                headers.put(RestConnection.HEADER_IF_RANGE, mValidator);
+            }
+        }
+        // The caller retries around transfer() and resets the BackOffPolicy once for all attempts
+        RestResponse response = mConnection.execute(RestConnection.METHOD_GET, null, headers, false);
+        try {
+            HttpURLConnection connection = response.getConnection();
+            int statusCode = response.getStatusCode();
+            if (statusCode == RestConnection.SC_PARTIAL) {
+                long[] range = parseContentRange(connection.getHeaderField(RestConnection.HEADER_CONTENT_RANGE));
+                if (range == null || range[0] != mPosition) {
+                    throw new IOException("Unexpected Content-Range: " + connection.getHeaderField(RestConnection.HEADER_CONTENT_RANGE));
+                }
+                mTotalLength = range[2];
+            } else if (statusCode == RestConnection.SC_OK) {
+                if (mStart > 0 || mEnd >= 0) {
+                    // Ranges unsupported or the resource changed, retrying this segment won't help
+                    throw new RestException(statusCode, "Server ignored the Range request");
+                }
+                // Either the first request or the resource changed (If-Range failed), start over
+                mPosition = 0;
+                mFile.truncate(0);
+                mTotalLength = connection.getContentLengthLong();
+            } else if (statusCode == RestConnection.SC_RANGE_NOT_SATISFIABLE && mEnd < 0) {
+                long[] range = parseContentRange(connection.getHeaderField(RestConnection.HEADER_CONTENT_RANGE));
+                if (range != null && range[2] == mPosition) {
+                    mTotalLength = mPosition; // Everything was already received before the failure
+                    mComplete = true;
+                    return;
+                }
+            }
+            String validator = getValidator(connection);
+            if (validator != null) {
+                mValidator = validator;
+            }
+            long expectedEnd = mEnd >= 0 ? mEnd + 1 : mTotalLength;
+            mResumable = true;
+            InputStream in = response.getContent();
+            // Heap array rather than a channel over the stream, which would copy through its own array first
+            byte[] bytes = BufferPool.acquireBytes(BUFFER_SIZE);
+            try {
+                while (expectedEnd < 0 || mPosition < expectedEnd) {
+                    int length = expectedEnd >= 0 ? (int) Math.min(bytes.length, expectedEnd - mPosition) : bytes.length;
+                    int read = in.read(bytes, 0, length);
+                    if (read == -1) {
+                        break;
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, read);
+                    while (buffer.hasRemaining()) {
+                        mPosition += mFile.write(buffer, mPosition);
+                    }
+                }
+            } finally {
+                BufferPool.release(bytes);
+            }
+            if (expectedEnd >= 0 && mPosition < expectedEnd) {
+                throw new EOFException("Connection closed after " + mPosition + " of " + expectedEnd + " bytes");
+            }
+            mComplete = true;
+            mResumable = false;
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    static String getValidator(HttpURLConnection connection) {
+        String etag = connection.getHeaderField(RestConnection.HEADER_ETAG);
+        if (etag != null && !etag.startsWith(WEAK_ETAG_PREFIX)) {
+            return etag; // If-Range only accepts strong validators
+        }
+        return connection.getHeaderField(RestConnection.HEADER_LAST_MODIFIED);
+    }
+
+    // Parses "bytes first-last/total" (or "bytes */total") into {first, last, total}, -1 where unknown
+    static long[] parseContentRange(String value) {
+        if (value == null || !value.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        try {
+            String spec = value.substring(BYTES_UNIT.length()).trim();
+            int slash = spec.indexOf('/');
+            if (slash == -1) {
+                return null;
+            }
+            String total = spec.substring(slash + 1).trim();
+            String range = spec.substring(0, slash).trim();
+            long[] result = {-1, -1, "*".equals(total) ? -1 : Long.parseLong(total)};
+            int dash = range.indexOf('-');
+            if (dash != -1) {
+                result[0] = Long.parseLong(range.substring(0, dash).trim());
+                result[1] = Long.parseLong(range.substring(dash + 1).trim());
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -1,13 +1,18 @@
 package ca.barelabs.bareconnection;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import java.io.*;
 import java.lang.reflect.Type;
 
-public class GsonParser implements ObjectParser {
+public class GsonParser implements StreamingObjectParser {
     
     private final Gson mGson;
     
@@ -18,11 +23,23 @@ public class GsonParser implements ObjectParser {
     public GsonParser(Gson gson) {
         mGson = gson;
     }
+    
+    public GsonParser(TypeAdapterFactory... factories) {
+        this(newGson(factories));
+    }
 
     public Gson getGson() {
         return mGson;
     }
 
+    private static Gson newGson(TypeAdapterFactory... factories) {
+        GsonBuilder builder = new GsonBuilder();
+        for (TypeAdapterFactory factory : factories) {
+            builder.registerTypeAdapterFactory(factory);
+        }
+        return builder.create();
+    }
+
     @Override
     public <T> T parse(String value, Type type) throws IOException {
         try {
@@ -41,8 +58,12 @@ public class GsonParser implements ObjectParser {
             if (type == null) {
                 return null;
             }
-            JsonReader reader = new JsonReader(new InputStreamReader(new BufferedInputStream(in), charset));
-            return mGson.fromJson(reader, type);
+            JsonReader reader = new JsonReader(new PooledReader(in, charset));
+            try {
+                return mGson.fromJson(reader, type);
+            } finally {
+                reader.close(); // Returns the reader's buffer to the pool
+            }
         } catch(JsonParseException e) {
             throw new IOException(e);
         } finally {
@@ -50,16 +71,47 @@ public class GsonParser implements ObjectParser {
         }
     }
 
+    @Override
+    public <T> ObjectIterator<T> iterateAndClose(InputStream in, String charset, Type elementType) throws IOException {
+        try {
+            @SuppressWarnings("unchecked")
+            TypeAdapter<T> adapter = (TypeAdapter<T>) mGson.getAdapter(TypeToken.get(elementType));
+            JsonReader reader = new JsonReader(new PooledReader(in, charset));
+            reader.setLenient(true); // Same leniency Gson.fromJson() applies
+            return new JsonArrayIterator<>(reader, adapter);
+        } catch(RuntimeException e) {
+            IOUtils.closeQuietly(in);
+            throw new IOException(e);
+        } catch(IOException e) {
+            IOUtils.closeQuietly(in);
+            throw e;
+        }
+    }
+
     @Override
     public void saveAndClose(Object object, OutputStream out, String charset) throws IOException {
+        if (object == null) {
+            IOUtils.closeQuietly(out);
+            return;
+        }
         try {
-            if (object != null) {
-                String json = mGson.toJson(object);
-                out.write(json.getBytes(charset));
-                out.flush();
+            // Serialize straight onto the stream instead of building the whole document as a String
+            PooledWriter pooledWriter = new PooledWriter(out, charset);
+            JsonWriter writer = mGson.newJsonWriter(pooledWriter);
+            boolean written = false;
+            try {
+                mGson.toJson(object, object.getClass(), writer);
+                written = true;
+            } finally {
+                if (written) {
+                    writer.close();
+                } else {
+                    // Nothing buffered goes out and out stays open, so the caller aborts instead of sending half a document
+                    pooledWriter.release();
+                }
             }
-        } finally {
-            IOUtils.closeQuietly(out);
+        } catch(RuntimeException e) {
+            throw new IOException(e);
         }
     }
 }
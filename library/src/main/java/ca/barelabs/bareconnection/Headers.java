@@ -0,0 +1,203 @@
+package ca.barelabs.bareconnection;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A response's headers, read from the connection once and looked up by case insensitive name without
+ * allocating. Names are kept in flat arrays with an open addressing table of indexes over them.
+ * Content-Type and Content-Length are parsed up front since nearly every response needs them.
+ */
+public final class Headers {
+
+    public static final Headers EMPTY = new Headers(Collections.<String>emptyList());
+
+    private final String[] mNames;
+    private final List<String>[] mValues;
+    // Index + 1 into mNames by case insensitive hash, 0 for a free slot. Kept at most half full
+    private final int[] mTable;
+    private final int mSize;
+    private final List<String> mNameList;
+    private final MediaType mContentType;
+    private final long mContentLength;
+
+    /**
+     * Fields are flattened name/value pairs in the order they were received.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Headers(List<String> fields) {
+        int capacity = fields.size() / 2;
+        mNames = new String[capacity];
+        mValues = new List[capacity];
+        int tableSize = 2;
+        while (tableSize < capacity * 2) {
+            tableSize <<= 1;
+        }
+        mTable = new int[tableSize];
+        int size = 0;
+        for (int i = 0; i < fields.size(); i += 2) {
+            String name = fields.get(i);
+            int index = indexOf(name, size);
+            if (index < 0) {
+                index = size++;
+                mNames[index] = name;
+                mValues[index] = new ArrayList<>(1);
+                insert(index);
+            }
+            mValues[index].add(fields.get(i + 1));
+        }
+        for (int i = 0; i < size; i++) {
+            mValues[i] = Collections.unmodifiableList(mValues[i]);
+        }
+        mSize = size;
+        mNameList = Collections.unmodifiableList(Arrays.asList(mNames).subList(0, size));
+        mContentType = MediaType.parse(get(RestConnection.HEADER_CONTENT_TYPE));
+        mContentLength = parseLong(get(RestConnection.HEADER_CONTENT_LENGTH));
+    }
+
+    public static Headers of(Map<String, List<String>> fields) {
+        List<String> pairs = new ArrayList<>(fields.size() * 2);
+        for (Map.Entry<String, List<String>> field : fields.entrySet()) {
+            if (field.getKey() != null && field.getValue() != null) {
+                for (String value : field.getValue()) {
+                    pairs.add(field.getKey());
+                    pairs.add(value);
+                }
+            }
+        }
+        return new Headers(pairs);
+    }
+
+    /**
+     * Reads the fields by index, which keeps repeated values in the order they were received
+     * and skips the map getHeaderFields() builds on every call.
+     */
+    static Headers of(HttpURLConnection connection) {
+        List<String> pairs = new ArrayList<>(32);
+        for (int i = 0; ; i++) {
+            String value = connection.getHeaderField(i);
+            if (value == null) {
+                break;
+            }
+            String name = connection.getHeaderFieldKey(i);
+            if (name != null) { // The status line has no name
+                pairs.add(name);
+                pairs.add(value);
+            }
+        }
+        return new Headers(pairs);
+    }
+
+    /**
+     * The number of distinct header names.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public List<String> getNames() {
+        return mNameList;
+    }
+
+    public boolean contains(String name) {
+        return indexOf(name, mSize) >= 0;
+    }
+
+    /**
+     * Returns the last value sent for name, like HttpURLConnection.getHeaderField(), or null.
+     */
+    public String get(String name) {
+        int index = indexOf(name, mSize);
+        if (index < 0) {
+            return null;
+        }
+        List<String> values = mValues[index];
+        return values.isEmpty() ? null : values.get(values.size() - 1);
+    }
+
+    /**
+     * Returns every value sent for name as a read only list, empty if there were none.
+     */
+    public List<String> getAll(String name) {
+        int index = indexOf(name, mSize);
+        return index >= 0 ? mValues[index] : Collections.<String>emptyList();
+    }
+
+    /**
+     * The parsed Content-Type, or null if it's missing or malformed.
+     */
+    public MediaType getContentType() {
+        return mContentType;
+    }
+
+    /**
+     * The Content-Length, or -1 if it's missing or malformed.
+     */
+    public long getContentLength() {
+        return mContentLength;
+    }
+
+    private int indexOf(String name, int size) {
+        if (name == null || size == 0) {
+            return -1;
+        }
+        int mask = mTable.length - 1;
+        for (int slot = hashIgnoreCase(name) & mask; ; slot = (slot + 1) & mask) {
+            int entry = mTable[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (mNames[entry - 1].equalsIgnoreCase(name)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    private void insert(int index) {
+        int mask = mTable.length - 1;
+        int slot = hashIgnoreCase(mNames[index]) & mask;
+        while (mTable[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        mTable[slot] = index + 1;
+    }
+
+    // Header names are ASCII, so folding A-Z is enough and avoids toLowerCase() copies
+    private static int hashIgnoreCase(String name) {
+        int h = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            h = 31 * h + c;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mSize; i++) {
+            for (String value : mValues[i]) {
+                sb.append(mNames[i]).append(": ").append(value).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
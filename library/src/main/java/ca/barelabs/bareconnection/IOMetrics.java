@@ -0,0 +1,104 @@
+package ca.barelabs.bareconnection;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide I/O counters. Allocations only count buffers the BufferPool had to create,
+ * which is where nearly all per-request garbage used to come from.
+ */
+public final class IOMetrics {
+
+    private static final AtomicLong sRequests = new AtomicLong();
+    private static final AtomicLong sAllocatedBytes = new AtomicLong();
+    private static final AtomicLong sBufferAcquires = new AtomicLong();
+    private static final AtomicLong sBufferAllocations = new AtomicLong();
+    private static final AtomicLong sLeakedBuffers = new AtomicLong();
+    private static final AtomicLong sBytesCopied = new AtomicLong();
+    private static final AtomicLong sCopyNanos = new AtomicLong();
+
+    private IOMetrics() {
+    }
+
+    public static long getRequestCount() {
+        return sRequests.get();
+    }
+
+    public static long getAllocatedBytes() {
+        return sAllocatedBytes.get();
+    }
+
+    public static double getAllocatedBytesPerRequest() {
+        long requests = sRequests.get();
+        return requests == 0 ? 0 : (double) sAllocatedBytes.get() / requests;
+    }
+
+    public static long getBufferAcquireCount() {
+        return sBufferAcquires.get();
+    }
+
+    /**
+     * How many acquires couldn't be served from the pool.
+     */
+    public static long getBufferAllocationCount() {
+        return sBufferAllocations.get();
+    }
+
+    /**
+     * Buffers garbage collected without being released. Only counted while leak detection is enabled,
+     * see BufferPool.setLeakDetectionEnabled().
+     */
+    public static long getLeakedBufferCount() {
+        return sLeakedBuffers.get();
+    }
+
+    /**
+     * Bytes moved by IOUtils.copy(), which carries every streamed request body.
+     */
+    public static long getBytesCopied() {
+        return sBytesCopied.get();
+    }
+
+    public static long getCopyTimeNanos() {
+        return sCopyNanos.get();
+    }
+
+    /**
+     * Average copy throughput in bytes per second, including time spent blocked on the network.
+     */
+    public static double getCopyThroughput() {
+        long nanos = sCopyNanos.get();
+        return nanos == 0 ? 0 : sBytesCopied.get() * 1e9 / nanos;
+    }
+
+    public static void reset() {
+        sRequests.set(0);
+        sAllocatedBytes.set(0);
+        sBufferAcquires.set(0);
+        sBufferAllocations.set(0);
+        sLeakedBuffers.set(0);
+        sBytesCopied.set(0);
+        sCopyNanos.set(0);
+    }
+
+    static void onRequest() {
+        sRequests.incrementAndGet();
+    }
+
+    static void onBufferAcquired() {
+        sBufferAcquires.incrementAndGet();
+    }
+
+    static void onBufferAllocated(long bytes) {
+        sBufferAllocations.incrementAndGet();
+        sAllocatedBytes.addAndGet(bytes);
+    }
+
+    static void onCopy(long bytes, long nanos) {
+        sBytesCopied.addAndGet(bytes);
+        sCopyNanos.addAndGet(nanos);
+    }
+
+    static void onBufferLeaked() {
+        sLeakedBuffers.incrementAndGet();
+    }
+}
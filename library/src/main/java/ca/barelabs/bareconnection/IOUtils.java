@@ -1,35 +1,304 @@
 package ca.barelabs.bareconnection;
 
 import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
 
 
 public class IOUtils {
 
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MIN_COPY_BUFFER_SIZE = 4 * 1024;
+    private static final int MAX_COPY_BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_COPY_BUFFER_SIZE = 16 * 1024;
+    // Don't trust a Content-Length hint beyond this when presizing
+    private static final int MAX_PRESIZE = 16 * 1024 * 1024;
+
     public static String toString(InputStream is, String charset) throws IOException {
+        return toString(is, charset, -1);
+    }
+
+    /**
+     * Reads and closes the stream. expectedLength is only a sizing hint, e.g. the Content-Length, or -1 if unknown.
+     */
+    public static String toString(InputStream is, String charset, long expectedLength) throws IOException {
+        CharBuffer chars = toCharBuffer(is, charset, expectedLength);
+        return new String(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+    }
+
+    /**
+     * Like toString() but hands back the decoded chars without copying them into a String.
+     */
+    public static CharBuffer toCharBuffer(InputStream is, String charset, long expectedLength) throws IOException {
+        ByteBuffer in = null;
         try {
-            Scanner s = new Scanner(is, charset);
-            s.useDelimiter("\\A");
-            String data = s.hasNext() ? s.next() : "";
-            s.close();
-            return data;
-        } catch(IllegalArgumentException e) {
-            throw new UnsupportedEncodingException(e.getMessage());
+            CharsetDecoder decoder = newDecoder(charset);
+            in = ByteBuffer.wrap(BufferPool.acquireBytes(BUFFER_SIZE));
+            CharBuffer out = CharBuffer.allocate(presize(expectedLength, decoder.averageCharsPerByte()));
+            boolean endOfInput = false;
+            while (!endOfInput) {
+                int read = is.read(in.array(), in.arrayOffset() + in.position(), in.remaining());
+                if (read == -1) {
+                    endOfInput = true;
+                } else {
+                    in.position(in.position() + read);
+                }
+                in.flip();
+                while (decoder.decode(in, out, endOfInput).isOverflow()) {
+                    out = grow(out);
+                }
+                in.compact();
+            }
+            while (decoder.flush(out).isOverflow()) {
+                out = grow(out);
+            }
+            out.flip();
+            return out;
+        } finally {
+            if (in != null) {
+                BufferPool.release(in.array());
+            }
+            is.close();
+        }
+    }
+
+    /**
+     * Reads and closes the stream. expectedLength is only a sizing hint, e.g. the Content-Length, or -1 if unknown.
+     */
+    public static byte[] toByteArray(InputStream is, long expectedLength) throws IOException {
+        try {
+            byte[] bytes = new byte[presize(expectedLength, 1)];
+            int count = 0;
+            while (true) {
+                if (count == bytes.length) {
+                    // Either the hint was exact and we're at the end, or the body is longer than announced
+                    int next = is.read();
+                    if (next == -1) {
+                        return bytes;
+                    }
+                    bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, BUFFER_SIZE));
+                    bytes[count++] = (byte) next;
+                }
+                int read = is.read(bytes, count, bytes.length - count);
+                if (read == -1) {
+                    return count == bytes.length ? bytes : Arrays.copyOf(bytes, count);
+                }
+                count += read;
+            }
+        } finally {
+            is.close();
         }
     }
     
     public static void copy(InputStream in, OutputStream out) throws IOException {
-        byte[] bytes = new byte[4096];
-        int totalRead = 0;
-        while ((totalRead = in.read(bytes)) > 0) {
-            out.write(bytes, 0, totalRead);
+        copy(in, out, -1);
+    }
+
+    /**
+     * Copies everything, flushes out once at the end and closes in. expectedLength (-1 if unknown) sizes the
+     * buffer, and file to file copies are handed to FileChannel.transferTo(). Returns the number of bytes copied.
+     */
+    public static long copy(InputStream in, OutputStream out, long expectedLength) throws IOException {
+        long start = System.nanoTime();
+        long total = 0;
+        try {
+            if (in instanceof FileInputStream && out instanceof FileOutputStream) {
+                total = transfer(((FileInputStream) in).getChannel(), ((FileOutputStream) out).getChannel());
+            } else {
+                if (expectedLength < 0 && in instanceof FileInputStream) {
+                    FileChannel channel = ((FileInputStream) in).getChannel();
+                    expectedLength = channel.size() - channel.position();
+                }
+                byte[] bytes = BufferPool.acquireBytes(getCopyBufferSize(expectedLength));
+                try {
+                    int read;
+                    while ((read = in.read(bytes)) != -1) {
+                        // No flush per chunk, that would cost a syscall and a tiny chunk or segment each time
+                        out.write(bytes, 0, read);
+                        total += read;
+                    }
+                } finally {
+                    BufferPool.release(bytes);
+                }
+            }
             out.flush();
+        } finally {
+            in.close();
+            IOMetrics.onCopy(total, System.nanoTime() - start);
+        }
+        return total;
+    }
+
+    /**
+     * Copies exactly count bytes and closes in. Anything in past count is left unread, and a stream that ends
+     * early fails rather than leaving out short.
+     */
+    static void copyExactly(InputStream in, OutputStream out, long count) throws IOException {
+        long start = System.nanoTime();
+        long total = 0;
+        try {
+            byte[] bytes = BufferPool.acquireBytes(getCopyBufferSize(count));
+            try {
+                while (total < count) {
+                    int read = in.read(bytes, 0, (int) Math.min(bytes.length, count - total));
+                    if (read == -1) {
+                        throw new EOFException("Stream ended after " + total + " of " + count + " bytes");
+                    }
+                    out.write(bytes, 0, read);
+                    total += read;
+                }
+            } finally {
+                BufferPool.release(bytes);
+            }
+        } finally {
+            in.close();
+            IOMetrics.onCopy(total, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Copies exactly count bytes of the channel from position on, without moving the channel's own position.
+     */
+    public static void copy(FileChannel source, long position, long count, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        long total = 0;
+        try {
+            if (out instanceof FileOutputStream) {
+                FileChannel target = ((FileOutputStream) out).getChannel();
+                while (total < count) {
+                    long transferred = source.transferTo(position + total, count - total, target);
+                    if (transferred <= 0) {
+                        throw new EOFException("File ended after " + total + " of " + count + " bytes");
+                    }
+                    total += transferred;
+                }
+                return;
+            }
+            byte[] bytes = BufferPool.acquireBytes(getCopyBufferSize(count));
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (total < count) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(bytes.length, count - total));
+                    int read = source.read(buffer, position + total);
+                    if (read == -1) {
+                        throw new EOFException("File ended after " + total + " of " + count + " bytes");
+                    }
+                    out.write(bytes, 0, read);
+                    total += read;
+                }
+            } finally {
+                BufferPool.release(bytes);
+            }
+        } finally {
+            IOMetrics.onCopy(total, System.nanoTime() - start);
         }
-        in.close();
+    }
+
+    /**
+     * Writes the buffer's remaining bytes without moving its position. Heap buffers are written straight
+     * from their array; direct buffers go through a pooled array unless out is a file.
+     */
+    public static void write(ByteBuffer buffer, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer source = buffer.duplicate();
+        int count = source.remaining();
+        try {
+            if (source.hasArray()) {
+                out.write(source.array(), source.arrayOffset() + source.position(), count);
+            } else if (out instanceof FileOutputStream) {
+                FileChannel target = ((FileOutputStream) out).getChannel();
+                while (source.hasRemaining()) {
+                    target.write(source);
+                }
+            } else {
+                byte[] bytes = BufferPool.acquireBytes(getCopyBufferSize(count));
+                try {
+                    while (source.hasRemaining()) {
+                        int length = Math.min(bytes.length, source.remaining());
+                        source.get(bytes, 0, length);
+                        out.write(bytes, 0, length);
+                    }
+                } finally {
+                    BufferPool.release(bytes);
+                }
+            }
+        } finally {
+            IOMetrics.onCopy(count - source.remaining(), System.nanoTime() - start);
+        }
+    }
+
+    private static long transfer(FileChannel source, FileChannel target) throws IOException {
+        long position = source.position();
+        long size = source.size();
+        long total = 0;
+        while (position < size) {
+            long transferred = source.transferTo(position, size - position, target);
+            if (transferred <= 0) {
+                break;
+            }
+            position += transferred;
+            total += transferred;
+        }
+        source.position(position);
+        return total;
+    }
+
+    private static int getCopyBufferSize(long expectedLength) {
+        if (expectedLength < 0) {
+            return DEFAULT_COPY_BUFFER_SIZE;
+        }
+        return (int) Math.max(MIN_COPY_BUFFER_SIZE, Math.min(MAX_COPY_BUFFER_SIZE, expectedLength));
+    }
+
+    private static CharsetDecoder newDecoder(String charset) throws UnsupportedEncodingException {
+        try {
+            // Same replacement behaviour as an InputStreamReader
+            return Charset.forName(charset).newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            throw new UnsupportedEncodingException(e.getMessage());
+        }
+    }
+
+    private static int presize(long expectedLength, float unitsPerByte) {
+        if (expectedLength <= 0) {
+            return BUFFER_SIZE;
+        }
+        return (int) Math.max(16, Math.min(MAX_PRESIZE, (long) Math.ceil(expectedLength * unitsPerByte)));
+    }
+
+    private static CharBuffer grow(CharBuffer buffer) {
+        CharBuffer grown = CharBuffer.allocate(Math.max(buffer.capacity() * 2, BUFFER_SIZE));
+        buffer.flip();
+        return grown.put(buffer);
     }
 
     public static void closeQuietly(Closeable closeable) {
@@ -40,4 +309,43 @@ public class IOUtils {
             }
         }
     }
+
+    /**
+     * Runs every task on executor and returns their results in task order. Results are taken as they complete,
+     * so the first failure cancels the tasks still running instead of waiting behind slower ones.
+     */
+    static <T> List<T> invokeAll(Executor executor, List<? extends Callable<T>> tasks) throws IOException {
+        CompletionService<T> completion = new ExecutorCompletionService<>(executor);
+        Map<Future<T>, Integer> indexes = new HashMap<>(tasks.size() * 2);
+        List<T> results = new ArrayList<>(Collections.<T>nCopies(tasks.size(), null));
+        int completed = 0;
+        try {
+            for (Callable<T> task : tasks) {
+                indexes.put(completion.submit(task), indexes.size());
+            }
+            for (; completed < tasks.size(); completed++) {
+                Future<T> future = completion.take();
+                results.set(indexes.get(future), future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for tasks");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            if (completed < tasks.size()) {
+                for (Future<T> future : indexes.keySet()) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,79 @@
+package ca.barelabs.bareconnection;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * Binds the elements of a top level array (or null) one at a time, from any JsonReader.
+ */
+final class JsonArrayIterator<T> implements ObjectIterator<T> {
+    
+    private final JsonReader mReader;
+    private final TypeAdapter<T> mAdapter;
+    private boolean mStarted;
+    private boolean mClosed;
+    
+    JsonArrayIterator(JsonReader reader, TypeAdapter<T> adapter) {
+        mReader = reader;
+        mAdapter = adapter;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        if (mClosed) {
+            return false;
+        }
+        try {
+            if (!mStarted) {
+                mStarted = true;
+                JsonToken token = mReader.peek();
+                // END_DOCUMENT is an empty binary body, text readers fail on that instead
+                if (token == JsonToken.NULL || token == JsonToken.END_DOCUMENT) {
+                    close();
+                    return false;
+                }
+                mReader.beginArray();
+            }
+            if (mReader.hasNext()) {
+                return true;
+            }
+            mReader.endArray();
+            close();
+            return false;
+        } catch(RuntimeException e) {
+            close();
+            throw new IOException(e);
+        } catch(IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public T next() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            return mAdapter.read(mReader);
+        } catch(RuntimeException e) {
+            close();
+            throw new IOException(e);
+        } catch(IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!mClosed) {
+            mClosed = true;
+            IOUtils.closeQuietly(mReader);
+        }
+    }
+}
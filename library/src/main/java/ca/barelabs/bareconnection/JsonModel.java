@@ -0,0 +1,18 @@
+package ca.barelabs.bareconnection;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a model class for the bareconnection annotation processor, which generates a
+ * reflection-free Gson TypeAdapter for it. Register the generated factory with
+ * {@link GsonParser#GsonParser(com.google.gson.TypeAdapterFactory...)}.
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface JsonModel {
+}
@@ -0,0 +1,71 @@
+package ca.barelabs.bareconnection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.util.NoSuchElementException;
+
+/**
+ * Binds one object per line of a newline delimited stream (NDJSON / JSON Lines).
+ * Memory is bounded by the longest line.
+ */
+final class LineObjectIterator<T> implements ObjectIterator<T> {
+
+    private final PooledReader mReader;
+    private final ObjectParser mParser;
+    private final Type mType;
+    private String mLine;
+    private boolean mClosed;
+
+    LineObjectIterator(InputStream in, String charset, ObjectParser parser, Type type) throws IOException {
+        mReader = new PooledReader(in, charset);
+        mParser = parser;
+        mType = type;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        if (mClosed) {
+            return false;
+        }
+        try {
+            while (mLine == null) {
+                String line = mReader.readLine();
+                if (line == null) {
+                    close();
+                    return false;
+                }
+                if (!line.trim().isEmpty()) {
+                    mLine = line;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public T next() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String line = mLine;
+        mLine = null;
+        try {
+            return mParser.parse(line, mType);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!mClosed) {
+            mClosed = true;
+            IOUtils.closeQuietly(mReader);
+        }
+    }
+}
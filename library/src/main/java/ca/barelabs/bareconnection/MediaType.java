@@ -0,0 +1,170 @@
+package ca.barelabs.bareconnection;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+public final class MediaType {
+
+    public static final String WILDCARD = "*";
+
+    private static final int MAX_CACHED = 64;
+    // Servers send the same few Content-Type values over and over, and MediaType is immutable
+    private static final ConcurrentHashMap<String, MediaType> sCache = new ConcurrentHashMap<>();
+
+    private final String mType;
+    private final String mSubtype;
+    private final String[] mParameters; // Flattened name/value pairs, names lower case
+
+    private MediaType(String type, String subtype, String[] parameters) {
+        mType = type;
+        mSubtype = subtype;
+        mParameters = parameters;
+    }
+
+    /**
+     * Parses a Content-Type style value such as "application/json; charset=UTF-8".
+     * Returns null if the value is null or malformed.
+     */
+    public static MediaType parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        MediaType cached = sCache.get(value);
+        if (cached != null) {
+            return cached;
+        }
+        MediaType mediaType = parseUncached(value);
+        if (mediaType != null && isCacheable(mediaType) && sCache.size() < MAX_CACHED) {
+            sCache.putIfAbsent(value, mediaType);
+        }
+        return mediaType;
+    }
+
+    // Parameters such as a multipart boundary are unique per message and would fill the cache for good
+    private static boolean isCacheable(MediaType mediaType) {
+        String[] parameters = mediaType.mParameters;
+        return parameters.length == 0 || (parameters.length == 2 && RestConnection.KEY_CHARSET.equals(parameters[0]));
+    }
+
+    private static MediaType parseUncached(String value) {
+        int end = value.indexOf(';');
+        String base = (end == -1 ? value : value.substring(0, end)).trim();
+        int slash = base.indexOf('/');
+        if (slash <= 0 || slash == base.length() - 1) {
+            return null;
+        }
+        String type = base.substring(0, slash).trim().toLowerCase(Locale.US);
+        String subtype = base.substring(slash + 1).trim().toLowerCase(Locale.US);
+        int count = 0;
+        String[] parameters = new String[4];
+        while (end != -1) {
+            int start = end + 1;
+            end = value.indexOf(';', start);
+            String param = end == -1 ? value.substring(start) : value.substring(start, end);
+            int equals = param.indexOf('=');
+            if (equals <= 0) {
+                continue;
+            }
+            String name = param.substring(0, equals).trim().toLowerCase(Locale.US);
+            String paramValue = param.substring(equals + 1).trim();
+            if (paramValue.length() >= 2 && paramValue.charAt(0) == '"' && paramValue.charAt(paramValue.length() - 1) == '"') {
+                paramValue = paramValue.substring(1, paramValue.length() - 1);
+            }
+            if (count == parameters.length) {
+                String[] grown = new String[count * 2];
+                System.arraycopy(parameters, 0, grown, 0, count);
+                parameters = grown;
+            }
+            parameters[count++] = name;
+            parameters[count++] = paramValue;
+        }
+        String[] trimmed = new String[count];
+        System.arraycopy(parameters, 0, trimmed, 0, count);
+        return new MediaType(type, subtype, trimmed);
+    }
+
+    public String getType() {
+        return mType;
+    }
+
+    public String getSubtype() {
+        return mSubtype;
+    }
+
+    /**
+     * Returns the structured syntax suffix, e.g. "json" for "application/vnd.api+json", or null.
+     */
+    public String getSuffix() {
+        int plus = mSubtype.lastIndexOf('+');
+        return plus == -1 ? null : mSubtype.substring(plus + 1);
+    }
+
+    public String getBaseType() {
+        return mType + "/" + mSubtype;
+    }
+
+    public String getParameter(String name) {
+        for (int i = 0; i < mParameters.length; i += 2) {
+            if (mParameters[i].equalsIgnoreCase(name)) {
+                return mParameters[i + 1];
+            }
+        }
+        return null;
+    }
+
+    public String getCharset() {
+        return getParameter(RestConnection.KEY_CHARSET);
+    }
+
+    public boolean isWildcardType() {
+        return WILDCARD.equals(mType);
+    }
+
+    public boolean isWildcardSubtype() {
+        return WILDCARD.equals(mSubtype);
+    }
+
+    /**
+     * True if both types are equal ignoring parameters, or one of them covers the other with a wildcard.
+     */
+    public boolean isCompatible(MediaType other) {
+        if (other == null) {
+            return false;
+        }
+        if (isWildcardType() || other.isWildcardType()) {
+            return true;
+        }
+        if (!mType.equals(other.mType)) {
+            return false;
+        }
+        return isWildcardSubtype() || other.isWildcardSubtype() || mSubtype.equals(other.mSubtype);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MediaType)) {
+            return false;
+        }
+        MediaType other = (MediaType) o;
+        return mType.equals(other.mType) && mSubtype.equals(other.mSubtype) && Arrays.equals(mParameters, other.mParameters);
+    }
+
+    @Override
+    public int hashCode() {
+        return (mType.hashCode() * 31 + mSubtype.hashCode()) * 31 + Arrays.hashCode(mParameters);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(mType).append('/').append(mSubtype);
+        for (int i = 0; i < mParameters.length; i += 2) {
+            sb.append(';').append(mParameters[i]).append('=').append(mParameters[i + 1]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,395 @@
+package ca.barelabs.bareconnection;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MessagePack ObjectParser. MessagePack prefixes arrays and maps with their size, and Gson only
+ * says how many members a container had once it ends, so each open container is encoded into a
+ * reusable per-depth buffer and copied out when it closes. Nothing reaches the stream until the
+ * top level value is complete, which means a request body is held in memory once (plus a copy
+ * per nesting level). Use CborParser, which writes indefinite lengths, to stream large bodies.
+ * Reading is not affected, responses are decoded as they arrive.
+ */
+public class MessagePackParser extends BinaryObjectParser {
+
+    private static final int NIL = 0xc0;
+    private static final int FALSE = 0xc2;
+    private static final int TRUE = 0xc3;
+    private static final int BIN8 = 0xc4;
+    private static final int BIN16 = 0xc5;
+    private static final int BIN32 = 0xc6;
+    private static final int EXT8 = 0xc7;
+    private static final int EXT16 = 0xc8;
+    private static final int EXT32 = 0xc9;
+    private static final int FLOAT32 = 0xca;
+    private static final int FLOAT64 = 0xcb;
+    private static final int UINT8 = 0xcc;
+    private static final int UINT16 = 0xcd;
+    private static final int UINT32 = 0xce;
+    private static final int UINT64 = 0xcf;
+    private static final int INT8 = 0xd0;
+    private static final int INT16 = 0xd1;
+    private static final int INT32 = 0xd2;
+    private static final int INT64 = 0xd3;
+    private static final int FIXEXT1 = 0xd4;
+    private static final int FIXEXT16 = 0xd8;
+    private static final int STR8 = 0xd9;
+    private static final int STR16 = 0xda;
+    private static final int STR32 = 0xdb;
+    private static final int ARRAY16 = 0xdc;
+    private static final int ARRAY32 = 0xdd;
+    private static final int MAP16 = 0xde;
+    private static final int MAP32 = 0xdf;
+
+    public MessagePackParser() {
+        this(new Gson());
+    }
+
+    public MessagePackParser(Gson gson) {
+        super(gson);
+    }
+
+    @Override
+    protected JsonWriter newWriter(OutputStream out) {
+        return new MessagePackWriter(out);
+    }
+
+    @Override
+    protected JsonReader newReader(InputStream in) {
+        return new MessagePackReader(new DataInputStream(in));
+    }
+    
+    
+    private static final class MessagePackReader extends BinaryJsonReader {
+
+        MessagePackReader(DataInputStream in) {
+            super(in);
+        }
+
+        @Override
+        protected boolean isBreak(int initialByte) {
+            return false; // MessagePack has no indefinite lengths
+        }
+
+        @Override
+        protected void readItem(int initialByte) throws IOException {
+            if (initialByte <= 0x7f) {
+                longItem(initialByte);
+                return;
+            } else if (initialByte >= 0xe0) {
+                longItem((byte) initialByte);
+                return;
+            } else if (initialByte <= 0x8f) {
+                mapItem(initialByte & 0x0f);
+                return;
+            } else if (initialByte <= 0x9f) {
+                arrayItem(initialByte & 0x0f);
+                return;
+            } else if (initialByte <= 0xbf) {
+                stringItem(readString(initialByte & 0x1f));
+                return;
+            }
+            switch (initialByte) {
+                case NIL:
+                    nullItem();
+                    break;
+                case FALSE:
+                    booleanItem(false);
+                    break;
+                case TRUE:
+                    booleanItem(true);
+                    break;
+                case BIN8:
+                    bytesItem(readBytes(mIn.readUnsignedByte()));
+                    break;
+                case BIN16:
+                    bytesItem(readBytes(mIn.readUnsignedShort()));
+                    break;
+                case BIN32:
+                    bytesItem(readBytes(mIn.readInt() & 0xffffffffL));
+                    break;
+                case EXT8:
+                    readExtension(mIn.readUnsignedByte());
+                    break;
+                case EXT16:
+                    readExtension(mIn.readUnsignedShort());
+                    break;
+                case EXT32:
+                    readExtension(mIn.readInt() & 0xffffffffL);
+                    break;
+                case FLOAT32:
+                    floatItem(mIn.readFloat());
+                    break;
+                case FLOAT64:
+                    doubleItem(mIn.readDouble());
+                    break;
+                case UINT8:
+                    longItem(mIn.readUnsignedByte());
+                    break;
+                case UINT16:
+                    longItem(mIn.readUnsignedShort());
+                    break;
+                case UINT32:
+                    longItem(mIn.readInt() & 0xffffffffL);
+                    break;
+                case UINT64: {
+                    long value = mIn.readLong();
+                    if (value >= 0) {
+                        longItem(value);
+                    } else {
+                        bigIntegerItem(BigInteger.valueOf(value & Long.MAX_VALUE).setBit(63));
+                    }
+                    break;
+                }
+                case INT8:
+                    longItem(mIn.readByte());
+                    break;
+                case INT16:
+                    longItem(mIn.readShort());
+                    break;
+                case INT32:
+                    longItem(mIn.readInt());
+                    break;
+                case INT64:
+                    longItem(mIn.readLong());
+                    break;
+                case STR8:
+                    stringItem(readString(mIn.readUnsignedByte()));
+                    break;
+                case STR16:
+                    stringItem(readString(mIn.readUnsignedShort()));
+                    break;
+                case STR32:
+                    stringItem(readString(mIn.readInt() & 0xffffffffL));
+                    break;
+                case ARRAY16:
+                    arrayItem(mIn.readUnsignedShort());
+                    break;
+                case ARRAY32:
+                    arrayItem(mIn.readInt() & 0xffffffffL);
+                    break;
+                case MAP16:
+                    mapItem(mIn.readUnsignedShort());
+                    break;
+                case MAP32:
+                    mapItem(mIn.readInt() & 0xffffffffL);
+                    break;
+                default:
+                    if (initialByte >= FIXEXT1 && initialByte <= FIXEXT16) {
+                        readExtension(1 << (initialByte - FIXEXT1));
+                        break;
+                    }
+                    throw new IOException("Unsupported MessagePack item 0x" + Integer.toHexString(initialByte));
+            }
+        }
+
+        // Gson has no notion of extension types, so only the payload is kept
+        private void readExtension(long length) throws IOException {
+            mIn.readByte(); // type
+            bytesItem(readBytes(length));
+        }
+    }
+    
+    
+    private static final class MessagePackWriter extends BinaryJsonWriter {
+
+        private final OutputStream mOut;
+        private final byte[] mScratch = new byte[9];
+        private Container[] mContainers = new Container[8];
+        private int mDepth;
+
+        MessagePackWriter(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        protected void writeBeginArray() throws IOException {
+            beginContainer(false);
+        }
+
+        @Override
+        protected void writeEndArray() throws IOException {
+            Container container = endContainer();
+            if (container.mCount <= 15) {
+                sink().write(0x90 | container.mCount);
+            } else {
+                writeSized(ARRAY16, ARRAY32, container.mCount);
+            }
+            container.writeTo(sink());
+        }
+
+        @Override
+        protected void writeBeginObject() throws IOException {
+            beginContainer(true);
+        }
+
+        @Override
+        protected void writeEndObject() throws IOException {
+            Container container = endContainer();
+            if (container.mCount <= 15) {
+                sink().write(0x80 | container.mCount);
+            } else {
+                writeSized(MAP16, MAP32, container.mCount);
+            }
+            container.writeTo(sink());
+        }
+
+        @Override
+        protected void writeName(String name) throws IOException {
+            mContainers[mDepth - 1].mCount++;
+            writeUtf8(name);
+        }
+
+        @Override
+        protected void writeNull() throws IOException {
+            countValue();
+            sink().write(NIL);
+        }
+
+        @Override
+        protected void writeBoolean(boolean value) throws IOException {
+            countValue();
+            sink().write(value ? TRUE : FALSE);
+        }
+
+        @Override
+        protected void writeLong(long value) throws IOException {
+            countValue();
+            OutputStream out = sink();
+            if (value >= 0) {
+                if (value <= 0x7f) {
+                    out.write((int) value);
+                } else if (value <= 0xff) {
+                    writeBytes(UINT8, value, 1);
+                } else if (value <= 0xffff) {
+                    writeBytes(UINT16, value, 2);
+                } else if (value <= 0xffffffffL) {
+                    writeBytes(UINT32, value, 4);
+                } else {
+                    writeBytes(UINT64, value, 8);
+                }
+            } else if (value >= -32) {
+                out.write((int) value & 0xff);
+            } else if (value >= Byte.MIN_VALUE) {
+                writeBytes(INT8, value, 1);
+            } else if (value >= Short.MIN_VALUE) {
+                writeBytes(INT16, value, 2);
+            } else if (value >= Integer.MIN_VALUE) {
+                writeBytes(INT32, value, 4);
+            } else {
+                writeBytes(INT64, value, 8);
+            }
+        }
+
+        @Override
+        protected void writeFloat(float value) throws IOException {
+            countValue();
+            writeBytes(FLOAT32, Float.floatToIntBits(value), 4);
+        }
+
+        @Override
+        protected void writeDouble(double value) throws IOException {
+            countValue();
+            writeBytes(FLOAT64, Double.doubleToLongBits(value), 8);
+        }
+
+        @Override
+        protected void writeString(String value) throws IOException {
+            countValue();
+            writeUtf8(value);
+        }
+
+        @Override
+        protected void flushOutput() throws IOException {
+            mOut.flush();
+        }
+
+        @Override
+        protected void closeOutput() throws IOException {
+            mOut.close();
+        }
+
+        private void writeUtf8(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length <= 31) {
+                sink().write(0xa0 | bytes.length);
+            } else if (bytes.length <= 0xff) {
+                writeBytes(STR8, bytes.length, 1);
+            } else {
+                writeSized(STR16, STR32, bytes.length);
+            }
+            sink().write(bytes);
+        }
+
+        private void writeSized(int marker16, int marker32, int size) throws IOException {
+            if (size <= 0xffff) {
+                writeBytes(marker16, size, 2);
+            } else {
+                writeBytes(marker32, size, 4);
+            }
+        }
+
+        // Writes the marker followed by the low byteCount bytes of value, big endian
+        private void writeBytes(int marker, long value, int byteCount) throws IOException {
+            mScratch[0] = (byte) marker;
+            for (int i = byteCount; i > 0; i--) {
+                mScratch[i] = (byte) value;
+                value >>>= 8;
+            }
+            sink().write(mScratch, 0, byteCount + 1);
+        }
+
+        private void countValue() {
+            if (mDepth > 0 && !mContainers[mDepth - 1].mMap) {
+                mContainers[mDepth - 1].mCount++;
+            }
+        }
+
+        private void beginContainer(boolean map) {
+            countValue();
+            if (mDepth == mContainers.length) {
+                Container[] containers = new Container[mDepth * 2];
+                System.arraycopy(mContainers, 0, containers, 0, mDepth);
+                mContainers = containers;
+            }
+            Container container = mContainers[mDepth];
+            if (container == null) {
+                container = mContainers[mDepth] = new Container();
+            }
+            container.reset();
+            container.mMap = map;
+            mDepth++;
+        }
+
+        private Container endContainer() {
+            return mContainers[--mDepth];
+        }
+
+        private OutputStream sink() {
+            return mDepth == 0 ? mOut : mContainers[mDepth - 1];
+        }
+    }
+    
+    
+    private static final class Container extends ByteArrayOutputStream {
+
+        int mCount;
+        boolean mMap;
+
+        @Override
+        public synchronized void reset() {
+            super.reset();
+            mCount = 0;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package ca.barelabs.bareconnection;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects small objects that would each be a POST and sends them as one JSON array to the
+ * connection's bulk endpoint, once maxBatchSize objects are waiting or the oldest has waited
+ * lingerMillis. The bulk response must be an array with one element per object, in the same order;
+ * element i completes the Future returned for object i.
+ * <p>
+ * Batches are sent on the scheduler. The default one is a single daemon thread, so batches go out
+ * one at a time; set a scheduler with more threads to have several in flight. Those share the
+ * connection's BackOffPolicy, which must then keep its state per thread as ExponentialBackOffPolicy does.
+ */
+public class MicroBatcher<T, R> implements Closeable {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    public static final long DEFAULT_LINGER_MILLIS = 10;
+
+    private final RestConnection mConnection;
+    private final Type mResponseType;
+    private final ConcurrentLinkedQueue<Pending<T, R>> mQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mSize = new AtomicInteger();
+    private final AtomicBoolean mLingerScheduled = new AtomicBoolean();
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    private volatile int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private volatile long mLingerMillis = DEFAULT_LINGER_MILLIS;
+    private ScheduledExecutorService mScheduler;
+    private boolean mOwnsScheduler;
+    private volatile boolean mClosed;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled.set(false);
+            while (mSize.get() >= mMaxBatchSize) {
+                sendBatch();
+            }
+        }
+    };
+
+    private final Runnable mLingerTask = new Runnable() {
+        @Override
+        public void run() {
+            mLingerScheduled.set(false);
+            flush();
+        }
+    };
+
+    /**
+     * The connection's URL is the bulk endpoint. Each element of its response is parsed as responseType.
+     */
+    public MicroBatcher(RestConnection connection, Type responseType) {
+        if (connection == null) {
+            throw new IllegalStateException("MicroBatcher must be created with a RestConnection");
+        }
+        mConnection = connection;
+        mResponseType = responseType;
+    }
+
+    public int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    public long getLingerMillis() {
+        return mLingerMillis;
+    }
+
+    public void setLingerMillis(long lingerMillis) {
+        mLingerMillis = lingerMillis;
+    }
+
+    /**
+     * When null a single daemon thread is created on first use and shut down by close().
+     */
+    public synchronized ScheduledExecutorService getScheduler() {
+        return mScheduler;
+    }
+
+    public synchronized void setScheduler(ScheduledExecutorService scheduler) {
+        if (mOwnsScheduler) {
+            mScheduler.shutdown();
+            mOwnsScheduler = false;
+        }
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Queues the object for the next batch. Cancelling the Future before its batch is sent leaves it out.
+     */
+    public Future<R> submit(T object) {
+        if (mClosed) {
+            throw new IllegalStateException("MicroBatcher closed");
+        }
+        BatchFuture<R> future = new BatchFuture<>();
+        mQueue.add(new Pending<>(object, future));
+        int size = mSize.incrementAndGet();
+        if (size >= mMaxBatchSize) {
+            if (mFlushScheduled.compareAndSet(false, true)) {
+                schedule(mFlushTask, 0);
+            }
+        } else if (mLingerScheduled.compareAndSet(false, true)) {
+            schedule(mLingerTask, mLingerMillis);
+        }
+        if (mClosed) {
+            flush(); // close() raced with this call and may have flushed before the object was queued
+        }
+        return future;
+    }
+
+    /**
+     * Sends everything queued so far on the calling thread.
+     */
+    public void flush() {
+        while (mSize.get() > 0) {
+            sendBatch();
+        }
+    }
+
+    /**
+     * Sends what is still queued, then stops the scheduler if it was created here.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        flush();
+        synchronized (this) {
+            if (mOwnsScheduler) {
+                mScheduler.shutdown();
+                mScheduler = null;
+                mOwnsScheduler = false;
+            }
+        }
+    }
+
+    /**
+     * Does nothing once closed, so a submit() racing with close() can't start a new scheduler or hit
+     * a stopped one. Holding the lock close() stops the scheduler under keeps the two ordered.
+     */
+    private synchronized void schedule(Runnable task, long delayMillis) {
+        if (mClosed) {
+            return;
+        }
+        if (mScheduler == null) {
+            mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "MicroBatcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mOwnsScheduler = true;
+        }
+        if (delayMillis > 0) {
+            mScheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } else {
+            mScheduler.execute(task);
+        }
+    }
+
+    private void sendBatch() {
+        int maxBatchSize = mMaxBatchSize;
+        List<T> objects = new ArrayList<>(Math.min(maxBatchSize, Math.max(1, mSize.get())));
+        List<BatchFuture<R>> futures = new ArrayList<>(objects.size());
+        Pending<T, R> pending;
+        while (objects.size() < maxBatchSize && (pending = mQueue.poll()) != null) {
+            mSize.decrementAndGet();
+            if (pending.mFuture.setSending()) {
+                objects.add(pending.mObject);
+                futures.add(pending.mFuture);
+            }
+        }
+        if (objects.isEmpty()) {
+            return;
+        }
+        int completed = 0;
+        try {
+            ObjectIterator<R> iterator = mConnection.execute(RestConnection.METHOD_POST, objects).parseAsIterator(mResponseType);
+            try {
+                while (completed < futures.size() && iterator.hasNext()) {
+                    futures.get(completed++).setResult(iterator.next(), null);
+                }
+            } finally {
+                iterator.close();
+            }
+            if (completed < futures.size()) {
+                throw new IOException("Bulk response had " + completed + " elements for " + futures.size() + " objects");
+            }
+        } catch (IOException | RuntimeException e) {
+            for (int i = completed; i < futures.size(); i++) {
+                futures.get(i).setResult(null, e);
+            }
+        }
+    }
+
+
+    private static final class Pending<T, R> {
+
+        final T mObject;
+        final BatchFuture<R> mFuture;
+
+        Pending(T object, BatchFuture<R> future) {
+            mObject = object;
+            mFuture = future;
+        }
+    }
+
+
+    private static final class BatchFuture<R> implements Future<R> {
+
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private R mResult;
+        private Throwable mError;
+        private boolean mSending;
+        private boolean mCancelled;
+
+        @Override
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            if (mSending || mDone.getCount() == 0) {
+                return false; // Already part of a request that can't be taken back
+            }
+            mCancelled = true;
+            mDone.countDown();
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        @Override
+        public R get() throws InterruptedException, ExecutionException {
+            mDone.await();
+            return report();
+        }
+
+        @Override
+        public R get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mDone.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return report();
+        }
+
+        synchronized boolean setSending() {
+            if (mCancelled) {
+                return false;
+            }
+            mSending = true;
+            return true;
+        }
+
+        synchronized void setResult(R result, Throwable error) {
+            mResult = result;
+            mError = error;
+            mDone.countDown();
+        }
+
+        private synchronized R report() throws ExecutionException {
+            if (mCancelled) {
+                throw new CancellationException();
+            }
+            if (mError != null) {
+                throw new ExecutionException(mError);
+            }
+            return mResult;
+        }
+    }
+}
@@ -1,105 +1,331 @@
 package ca.barelabs.bareconnection;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 import java.util.Set;
 
+/**
+ * Keys are kept in insertion order in flat arrays, found through an open addressing table of indexes.
+ * Lists returned by get(), removeAll() and replaceValues() are read only. get() returns a live view of
+ * the key's values, or a shared empty list for a missing key.
+ */
 public class MultiMap<K,V> {
-	
-	private Map<K, List<V>> mMap = new HashMap<K, List<V>>();
+
+	private static final int MIN_CAPACITY = 4;
+	private static final Object[] EMPTY_KEYS = {};
+	private static final Values<?>[] EMPTY_VALUES = {};
+	private static final int[] EMPTY_TABLE = {};
+
+	private Object[] mKeys = EMPTY_KEYS;
+	private Values<?>[] mValues = EMPTY_VALUES;
+	// Index + 1 into mKeys by hash, 0 for a free slot. Kept at most half full
+	private int[] mTable = EMPTY_TABLE;
+	private int mKeyCount;
 	private int mTotalItems;
+	private Set<K> mKeySet;
+
 
-	
 	public Set<K> keySet() {
-		return mMap.keySet();
+		if (mKeySet == null) {
+			mKeySet = new KeySet();
+		}
+		return mKeySet;
 	}
-	
+
 	public List<V> get(K key) {
-		return mMap.containsKey(key) ? mMap.get(key) : new ArrayList<V>();
+		int index = indexOf(key);
+		return index >= 0 ? values(index) : Collections.<V>emptyList();
 	}
-	
+
 	public boolean containsKey(Object key) {
-		return mMap.containsKey(key);
+		return indexOf(key) >= 0;
 	}
-	
+
 	public boolean containsValue(Object value) {
-		for (Entry<K, List<V>> entry : mMap.entrySet()) {
-			if (entry.getValue().contains(value)) {
+		for (int i = 0; i < mKeyCount; i++) {
+			if (mValues[i].indexOf(value) >= 0) {
 				return true;
 			}
 		}
 		return false;
 	}
-	
+
 	public boolean containsEntry(Object key, Object value) {
-		if (mMap.containsKey(key)) {
-			List<V> values = mMap.get(key);
-			return values.contains(value);
-		}
-		return false;
+		int index = indexOf(key);
+		return index >= 0 && mValues[index].indexOf(value) >= 0;
 	}
-	
+
 	public boolean put(K key, V value) {
-		List<V> values = mMap.get(key);
-		if (values == null) {
-			values = new ArrayList<V>();
-			mMap.put(key, values);
-		}
+		values(getOrAdd(key)).append(value);
 		mTotalItems++;
-		return values.add(value);
+		return true;
 	}
-	
+
 	public boolean putAll(K key, Collection<? extends V> valuesToAdd) {
 		if (valuesToAdd == null) {
 			return false;
 		}
-		List<V> values = mMap.get(key);
-		if (values == null) {
-			values = new ArrayList<V>();
-			mMap.put(key, values);
-		}
+		values(getOrAdd(key)).appendAll(valuesToAdd);
 		mTotalItems += valuesToAdd.size();
-		return values.addAll(valuesToAdd);
+		return !valuesToAdd.isEmpty();
 	}
-	
+
 	public boolean remove(Object key, Object value) {
-		if (mMap.containsKey(key) && mMap.get(key).remove(value)) {
+		int index = indexOf(key);
+		if (index >= 0 && mValues[index].removeValue(value)) {
 			mTotalItems--;
 			return true;
 		}
 		return false;
 	}
-	
+
 	public List<V> removeAll(Object key) {
-		if (mMap.containsKey(key)) {
-			List<V> values = mMap.remove(key);
-			mTotalItems -= values.size();
-			return values;
+		int index = indexOf(key);
+		if (index < 0) {
+			return Collections.<V>emptyList();
 		}
-		return new ArrayList<V>();
+		Values<V> values = values(index);
+		removeAt(index);
+		return values;
 	}
-	
+
 	public List<V> replaceValues(K key, Collection<? extends V> valuesToAdd) {
-		List<V> values = mMap.containsKey(key) ? mMap.remove(key) : new ArrayList<V>();
-		mTotalItems -= values.size();
+		int index = indexOf(key);
+		List<V> values = Collections.<V>emptyList();
+		if (index >= 0) {
+			values = values(index);
+			if (valuesToAdd == null) {
+				removeAt(index); // Nothing to put back, so the key goes too
+				return values;
+			}
+			mTotalItems -= values.size();
+			mValues[index] = new Values<V>(); // The old list is handed back, so it can't be reused
+		}
 		putAll(key, valuesToAdd);
 		return values;
 	}
-	
+
 	public boolean isEmpty() {
 		return size() == 0;
 	}
-	
+
 	public int size() {
 		return mTotalItems;
 	}
 
 	public void clear() {
-		mMap.clear();
+		// Keep the arrays so a cleared map can be refilled without allocating
+		Arrays.fill(mKeys, 0, mKeyCount, null);
+		Arrays.fill(mValues, 0, mKeyCount, null);
+		Arrays.fill(mTable, 0);
+		mKeyCount = 0;
 		mTotalItems = 0;
 	}
+
+	@SuppressWarnings("unchecked")
+	private Values<V> values(int index) {
+		return (Values<V>) mValues[index];
+	}
+
+	private int indexOf(Object key) {
+		if (mKeyCount == 0) {
+			return -1;
+		}
+		int mask = mTable.length - 1;
+		for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+			int entry = mTable[slot];
+			if (entry == 0) {
+				return -1;
+			}
+			Object candidate = mKeys[entry - 1];
+			if (candidate == key || (key != null && key.equals(candidate))) {
+				return entry - 1;
+			}
+		}
+	}
+
+	private int getOrAdd(K key) {
+		int index = indexOf(key);
+		if (index >= 0) {
+			return index;
+		}
+		if (mKeyCount == mKeys.length) {
+			int capacity = Math.max(MIN_CAPACITY, mKeys.length * 2);
+			mKeys = Arrays.copyOf(mKeys, capacity);
+			mValues = Arrays.copyOf(mValues, capacity);
+			mTable = new int[capacity * 2];
+			rehash();
+		}
+		index = mKeyCount++;
+		mKeys[index] = key;
+		mValues[index] = new Values<V>();
+		insert(index);
+		return index;
+	}
+
+	private void removeAt(int index) {
+		mTotalItems -= mValues[index].size();
+		int moved = mKeyCount - index - 1;
+		System.arraycopy(mKeys, index + 1, mKeys, index, moved);
+		System.arraycopy(mValues, index + 1, mValues, index, moved);
+		mKeyCount--;
+		mKeys[mKeyCount] = null;
+		mValues[mKeyCount] = null;
+		// Indexes after the removed key all shifted, so rebuilding is simplest. Removal is rare for our uses
+		Arrays.fill(mTable, 0);
+		rehash();
+	}
+
+	private void rehash() {
+		for (int i = 0; i < mKeyCount; i++) {
+			insert(i);
+		}
+	}
+
+	private void insert(int index) {
+		int mask = mTable.length - 1;
+		int slot = hash(mKeys[index]) & mask;
+		while (mTable[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		mTable[slot] = index + 1;
+	}
+
+	private static int hash(Object key) {
+		if (key == null) {
+			return 0;
+		}
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+
+	private final class KeySet extends AbstractSet<K> {
+
+		@Override
+		public int size() {
+			return mKeyCount;
+		}
+
+		@Override
+		public boolean contains(Object key) {
+			return containsKey(key);
+		}
+
+		@Override
+		public Iterator<K> iterator() {
+			return new Iterator<K>() {
+
+				private int mNext;
+				private int mLast = -1;
+				private int mExpectedCount = mKeyCount;
+
+				@Override
+				public boolean hasNext() {
+					return mNext < mKeyCount;
+				}
+
+				@Override
+				@SuppressWarnings("unchecked")
+				public K next() {
+					if (mExpectedCount != mKeyCount) {
+						throw new ConcurrentModificationException();
+					}
+					if (mNext >= mKeyCount) {
+						throw new NoSuchElementException();
+					}
+					mLast = mNext++;
+					return (K) mKeys[mLast];
+				}
+
+				@Override
+				public void remove() {
+					if (mLast < 0) {
+						throw new IllegalStateException();
+					}
+					removeAt(mLast);
+					mNext = mLast;
+					mLast = -1;
+					mExpectedCount = mKeyCount;
+				}
+			};
+		}
+	}
+
+
+	/**
+	 * A key's values. Read only from the outside, the map appends and removes through the package-private methods.
+	 */
+	private static final class Values<V> extends AbstractList<V> implements RandomAccess {
+
+		private static final Object[] EMPTY = {};
+
+		private Object[] mItems = EMPTY;
+		private int mSize;
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V get(int index) {
+			if (index < 0 || index >= mSize) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+			}
+			return (V) mItems[index];
+		}
+
+		@Override
+		public int size() {
+			return mSize;
+		}
+
+		@Override
+		public int indexOf(Object value) {
+			for (int i = 0; i < mSize; i++) {
+				if (value == null ? mItems[i] == null : value.equals(mItems[i])) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		public boolean contains(Object value) {
+			return indexOf(value) >= 0;
+		}
+
+		void append(V value) {
+			if (mSize == mItems.length) {
+				// Most keys only ever hold one value
+				mItems = Arrays.copyOf(mItems, mSize == 0 ? 1 : mSize * 2);
+			}
+			mItems[mSize++] = value;
+		}
+
+		void appendAll(Collection<? extends V> values) {
+			int required = mSize + values.size();
+			if (required > mItems.length) {
+				mItems = Arrays.copyOf(mItems, Math.max(required, mItems.length * 2));
+			}
+			for (V value : values) {
+				mItems[mSize++] = value;
+			}
+		}
+
+		boolean removeValue(Object value) {
+			int index = indexOf(value);
+			if (index < 0) {
+				return false;
+			}
+			System.arraycopy(mItems, index + 1, mItems, index, mSize - index - 1);
+			mItems[--mSize] = null;
+			return true;
+		}
+	}
 }
@@ -0,0 +1,320 @@
+package ca.barelabs.bareconnection;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Incremental multipart (mixed, related, form-data, ...) parser. Boundaries are found with
+ * Boyer-Moore-Horspool in a pooled buffer, so only one buffer of the body is held at a time.
+ * Each part's body must be read before asking for the next part; whatever is left is skipped.
+ */
+public class MultipartReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream mIn;
+    private final byte[] mDelimiter;
+    private final int[] mSkip = new int[256];
+    private byte[] mBuffer;
+    private int mStart;
+    private int mEnd;
+    private int mDelimiterIndex = -1;
+    private boolean mEndOfInput;
+    private boolean mFinished;
+    private boolean mClosed;
+    private PartInputStream mCurrent;
+
+    public MultipartReader(InputStream in, String boundary) {
+        if (boundary == null || boundary.isEmpty()) {
+            throw new IllegalArgumentException("Missing multipart boundary");
+        }
+        mIn = in;
+        mDelimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < mSkip.length; i++) {
+            mSkip[i] = mDelimiter.length;
+        }
+        for (int i = 0; i < mDelimiter.length - 1; i++) {
+            mSkip[mDelimiter[i] & 0xff] = mDelimiter.length - 1 - i;
+        }
+        mBuffer = BufferPool.acquireBytes(Math.max(BUFFER_SIZE, mDelimiter.length * 4));
+        // Pretend the body starts with a line break so the first boundary matches the delimiter too
+        mBuffer[0] = '\r';
+        mBuffer[1] = '\n';
+        mEnd = 2;
+        mCurrent = new PartInputStream(); // The preamble, skipped by the first nextPart()
+    }
+
+    /**
+     * Returns the next part, or null after the closing boundary (at which point the reader closes itself).
+     */
+    public Part nextPart() throws IOException {
+        ensureOpen();
+        if (mCurrent != null) {
+            mCurrent.skipRemaining();
+            mCurrent = null;
+        }
+        if (mFinished || !readDelimiterSuffix()) {
+            mFinished = true;
+            close();
+            return null;
+        }
+        Map<String, String> headers = readHeaders();
+        mCurrent = new PartInputStream();
+        return new Part(headers, mCurrent);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mIn.close();
+        } finally {
+            BufferPool.release(mBuffer);
+            mBuffer = null;
+        }
+    }
+
+    // After a delimiter comes "--" for the last one, otherwise optional padding and a line break
+    private boolean readDelimiterSuffix() throws IOException {
+        int first = readByte();
+        if (first == '-' && peekByte() == '-') {
+            mStart++;
+            return false;
+        }
+        int b = first;
+        while (b == ' ' || b == '\t') {
+            b = readByte();
+        }
+        if (b == '\r') {
+            b = readByte();
+        }
+        if (b != '\n') {
+            throw new IOException("Malformed multipart boundary line");
+        }
+        return true;
+    }
+
+    private Map<String, String> readHeaders() throws IOException {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+        }
+        return Collections.unmodifiableMap(headers);
+    }
+
+    private String readLine() throws IOException {
+        int from = mStart;
+        while (true) {
+            for (int i = from; i < mEnd; i++) {
+                if (mBuffer[i] == '\n') {
+                    int end = i > mStart && mBuffer[i - 1] == '\r' ? i - 1 : i;
+                    String line = new String(mBuffer, mStart, end - mStart, StandardCharsets.UTF_8);
+                    mStart = i + 1;
+                    return line;
+                }
+            }
+            if (mEnd - mStart >= mBuffer.length) {
+                throw new IOException("Multipart header line longer than " + mBuffer.length + " bytes");
+            }
+            from = mEnd - mStart;
+            if (!fill()) {
+                throw new EOFException("Unexpected end of multipart headers");
+            }
+            from += mStart;
+        }
+    }
+
+    private int readByte() throws IOException {
+        if (mStart == mEnd && !fill()) {
+            throw new EOFException("Unexpected end of multipart body");
+        }
+        return mBuffer[mStart++] & 0xff;
+    }
+
+    private int peekByte() throws IOException {
+        if (mStart == mEnd && !fill()) {
+            return -1;
+        }
+        return mBuffer[mStart] & 0xff;
+    }
+
+    /**
+     * Moves unread bytes to the front and reads more. Returns false at the end of input and
+     * throws if the buffer is already full of unread bytes, since the caller would never progress.
+     */
+    private boolean fill() throws IOException {
+        if (mEndOfInput) {
+            return false;
+        }
+        if (mStart > 0) {
+            System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+            if (mDelimiterIndex >= 0) {
+                mDelimiterIndex -= mStart;
+            }
+            mEnd -= mStart;
+            mStart = 0;
+        }
+        if (mEnd == mBuffer.length) {
+            throw new IOException("Multipart buffer full without finding a line or boundary");
+        }
+        int read = mIn.read(mBuffer, mEnd, mBuffer.length - mEnd);
+        if (read == -1) {
+            mEndOfInput = true;
+            return false;
+        }
+        mEnd += read;
+        return true;
+    }
+
+    private int indexOfDelimiter(int from) {
+        int last = mDelimiter.length - 1;
+        int i = from;
+        while (i + last < mEnd) {
+            int j = last;
+            while (mBuffer[i + j] == mDelimiter[j]) {
+                if (j == 0) {
+                    return i;
+                }
+                j--;
+            }
+            i += mSkip[mBuffer[i + last] & 0xff];
+        }
+        return -1;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("MultipartReader closed");
+        }
+    }
+
+
+    public static final class Part {
+
+        private final Map<String, String> mHeaders;
+        private final InputStream mBody;
+
+        Part(Map<String, String> headers, InputStream body) {
+            mHeaders = headers;
+            mBody = body;
+        }
+
+        /**
+         * Header names are case insensitive.
+         */
+        public Map<String, String> getHeaders() {
+            return mHeaders;
+        }
+
+        public String getHeader(String name) {
+            return mHeaders.get(name);
+        }
+
+        public String getContentType() {
+            return mHeaders.get(RestConnection.HEADER_CONTENT_TYPE);
+        }
+
+        /**
+         * Ends at the part's closing boundary. Only valid until nextPart() is called again.
+         */
+        public InputStream getBody() {
+            return mBody;
+        }
+    }
+
+
+    private final class PartInputStream extends InputStream {
+
+        private boolean mDone;
+
+        @Override
+        public int read() throws IOException {
+            if (mDone || mCurrent != this) {
+                return -1;
+            }
+            if (available(true) == 0) {
+                finish();
+                return -1;
+            }
+            return mBuffer[mStart++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mDone || mCurrent != this) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int available = available(true);
+            if (available == 0) {
+                finish();
+                return -1;
+            }
+            int count = Math.min(len, available);
+            System.arraycopy(mBuffer, mStart, b, off, count);
+            mStart += count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return mDone || mCurrent != this ? 0 : available(false);
+        }
+
+        void skipRemaining() throws IOException {
+            while (!mDone) {
+                int available = available(true);
+                if (available == 0) {
+                    finish();
+                } else {
+                    mStart += available;
+                }
+            }
+        }
+
+        // Steps over the delimiter, leaving the reader at the rest of the boundary line
+        private void finish() {
+            mDone = true;
+            mStart = mDelimiterIndex + mDelimiter.length;
+            mDelimiterIndex = -1;
+        }
+
+        /**
+         * Bytes that certainly belong to this part. With block set, waits until there is at least one
+         * or the delimiter is at mStart (returns 0).
+         */
+        private int available(boolean block) throws IOException {
+            while (true) {
+                if (mDelimiterIndex < 0) {
+                    mDelimiterIndex = indexOfDelimiter(mStart);
+                }
+                if (mDelimiterIndex >= 0) {
+                    return mDelimiterIndex - mStart;
+                }
+                // Anything that could still be the start of a delimiter has to wait for more input
+                int safe = mEnd - mStart - (mDelimiter.length - 1);
+                if (safe > 0 || !block) {
+                    return Math.max(0, safe);
+                }
+                if (!fill()) {
+                    throw new EOFException("Multipart body ended without a closing boundary");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package ca.barelabs.bareconnection;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * Request body that writes one serialized object per line (NDJSON / JSON Lines) as the
+ * objects are pulled from the source, so the whole body never exists in memory.
+ */
+public class NdjsonContent {
+
+    private static final int NEWLINE = '\n';
+
+    private final Iterable<?> mIterable;
+    private Iterator<?> mIterator;
+
+    public NdjsonContent(Iterable<?> iterable) {
+        mIterable = iterable;
+    }
+
+    public NdjsonContent(Iterator<?> iterator) {
+        mIterable = null;
+        mIterator = iterator;
+    }
+
+    /**
+     * An Iterable can be iterated again on retry, a bare Iterator only once.
+     */
+    public boolean isReplayable() {
+        return mIterable != null;
+    }
+
+    public void writeTo(OutputStream out, ObjectParser parser, String charset) throws IOException {
+        Iterator<?> iterator = mIterable != null ? mIterable.iterator() : mIterator;
+        if (iterator == null) {
+            throw new IllegalStateException("NdjsonContent created from an Iterator can only be written once");
+        }
+        mIterator = null;
+        OutputStream lineOut = new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush(); // Parsers close what they write to, the body continues on the next line
+            }
+        };
+        while (iterator.hasNext()) {
+            parser.saveAndClose(iterator.next(), lineOut, charset);
+            out.write(NEWLINE);
+        }
+        out.flush();
+        out.close();
+    }
+}
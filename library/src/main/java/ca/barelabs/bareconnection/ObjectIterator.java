@@ -0,0 +1,11 @@
+package ca.barelabs.bareconnection;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+public interface ObjectIterator<T> extends Closeable {
+
+    boolean hasNext() throws IOException;
+
+    T next() throws IOException;
+}
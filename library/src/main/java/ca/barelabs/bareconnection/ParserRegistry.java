@@ -0,0 +1,102 @@
+package ca.barelabs.bareconnection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Maps media types to the ObjectParser that reads and writes them. Registration order is
+ * preference order; it determines the q-values advertised in the Accept header.
+ */
+public class ParserRegistry {
+
+    private final List<MediaType> mMediaTypes = new ArrayList<>();
+    private final List<ObjectParser> mParsers = new ArrayList<>();
+    private String mAcceptHeader;
+
+    public ParserRegistry register(String mediaType, ObjectParser parser) {
+        MediaType type = MediaType.parse(mediaType);
+        if (type == null) {
+            throw new IllegalArgumentException("Invalid media type: " + mediaType);
+        }
+        if (parser == null) {
+            throw new IllegalArgumentException("ObjectParser must not be null");
+        }
+        int index = indexOf(type.getBaseType());
+        if (index == -1) {
+            mMediaTypes.add(type);
+            mParsers.add(parser);
+        } else {
+            mParsers.set(index, parser);
+        }
+        mAcceptHeader = null;
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return mMediaTypes.isEmpty();
+    }
+
+    public List<String> getMediaTypes() {
+        List<String> mediaTypes = new ArrayList<>(mMediaTypes.size());
+        for (MediaType type : mMediaTypes) {
+            mediaTypes.add(type.getBaseType());
+        }
+        return mediaTypes;
+    }
+
+    public ObjectParser getParser(String contentType) {
+        return getParser(MediaType.parse(contentType), null);
+    }
+
+    public ObjectParser getParser(String contentType, ObjectParser defaultParser) {
+        return getParser(MediaType.parse(contentType), defaultParser);
+    }
+
+    public ObjectParser getParser(MediaType contentType, ObjectParser defaultParser) {
+        if (contentType == null) {
+            return defaultParser;
+        }
+        int index = indexOf(contentType.getBaseType());
+        if (index == -1 && contentType.getSuffix() != null) {
+            // e.g. application/vnd.api+json is read by the application/json parser
+            index = indexOf(contentType.getType() + "/" + contentType.getSuffix());
+        }
+        if (index == -1) {
+            for (int i = 0; i < mMediaTypes.size(); i++) {
+                if (mMediaTypes.get(i).isCompatible(contentType)) {
+                    index = i;
+                    break;
+                }
+            }
+        }
+        return index == -1 ? defaultParser : mParsers.get(index);
+    }
+
+    public String getAcceptHeader() {
+        if (mAcceptHeader == null) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < mMediaTypes.size(); i++) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(mMediaTypes.get(i).getBaseType());
+                int q = Math.max(1, 10 - i);
+                if (q < 10) {
+                    sb.append(";q=0.").append(q);
+                }
+            }
+            mAcceptHeader = sb.toString();
+        }
+        return mAcceptHeader;
+    }
+
+    private int indexOf(String baseType) {
+        for (int i = 0; i < mMediaTypes.size(); i++) {
+            if (mMediaTypes.get(i).getBaseType().equals(baseType)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,193 @@
+package ca.barelabs.bareconnection;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * application/x-www-form-urlencoded encoding with the same output as URLEncoder.encode() for ASCII
+ * compatible charsets, but table driven and written straight into a StringBuilder, a stream or a
+ * length count. Values made only of safe ASCII are copied as is; UTF-8 is encoded by hand without
+ * going through a String.
+ */
+final class PercentEncoder {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    // Characters URLEncoder leaves alone
+    private static final boolean[] SAFE = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            SAFE[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            SAFE[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            SAFE[c] = true;
+        }
+        SAFE['.'] = true;
+        SAFE['-'] = true;
+        SAFE['*'] = true;
+        SAFE['_'] = true;
+    }
+
+    private PercentEncoder() {
+    }
+
+    static void encode(CharSequence value, Charset charset, StringBuilder sb) {
+        try {
+            encode(value, charset, new StringSink(sb));
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Never happens, StringBuilder doesn't throw
+        }
+    }
+
+    static void encode(CharSequence value, Charset charset, Sink sink) throws IOException {
+        int length = value.length();
+        int safe = 0;
+        while (safe < length) {
+            char c = value.charAt(safe);
+            if (c >= 128 || !SAFE[c]) {
+                break;
+            }
+            safe++;
+        }
+        sink.append(value, 0, safe);
+        if (safe == length) {
+            return;
+        }
+        boolean utf8 = StandardCharsets.UTF_8.equals(charset);
+        int i = safe;
+        while (i < length) {
+            char c = value.charAt(i);
+            if (c < 128) {
+                if (SAFE[c]) {
+                    sink.append(c);
+                } else if (c == ' ') {
+                    sink.append('+');
+                } else {
+                    appendEscaped(sink, c);
+                }
+                i++;
+            } else if (utf8) {
+                i = appendUtf8(value, i, sink);
+            } else {
+                // Let the charset encode the whole non-ASCII run so multi-char sequences stay together
+                int end = i + 1;
+                while (end < length && value.charAt(end) >= 128) {
+                    end++;
+                }
+                for (byte b : value.subSequence(i, end).toString().getBytes(charset)) {
+                    appendEscaped(sink, b & 0xff);
+                }
+                i = end;
+            }
+        }
+    }
+
+    private static int appendUtf8(CharSequence value, int i, Sink sink) throws IOException {
+        char c = value.charAt(i);
+        if (c < 0x800) {
+            appendEscaped(sink, 0xc0 | (c >> 6));
+            appendEscaped(sink, 0x80 | (c & 0x3f));
+            return i + 1;
+        }
+        if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+            int codePoint = Character.toCodePoint(c, value.charAt(i + 1));
+            appendEscaped(sink, 0xf0 | (codePoint >> 18));
+            appendEscaped(sink, 0x80 | ((codePoint >> 12) & 0x3f));
+            appendEscaped(sink, 0x80 | ((codePoint >> 6) & 0x3f));
+            appendEscaped(sink, 0x80 | (codePoint & 0x3f));
+            return i + 2;
+        }
+        if (Character.isSurrogate(c)) {
+            appendEscaped(sink, '?'); // Unpaired surrogate, replaced the way String.getBytes() does
+            return i + 1;
+        }
+        appendEscaped(sink, 0xe0 | (c >> 12));
+        appendEscaped(sink, 0x80 | ((c >> 6) & 0x3f));
+        appendEscaped(sink, 0x80 | (c & 0x3f));
+        return i + 1;
+    }
+
+    private static void appendEscaped(Sink sink, int b) throws IOException {
+        sink.append('%');
+        sink.append(HEX[b >> 4]);
+        sink.append(HEX[b & 0xf]);
+    }
+
+
+    /**
+     * Receives the encoded output, which is always ASCII.
+     */
+    abstract static class Sink {
+
+        abstract void append(char c) throws IOException;
+
+        void append(CharSequence value, int start, int end) throws IOException {
+            for (int i = start; i < end; i++) {
+                append(value.charAt(i));
+            }
+        }
+    }
+
+
+    static final class StringSink extends Sink {
+
+        private final StringBuilder mBuilder;
+
+        StringSink(StringBuilder builder) {
+            mBuilder = builder;
+        }
+
+        @Override
+        void append(char c) {
+            mBuilder.append(c);
+        }
+
+        @Override
+        void append(CharSequence value, int start, int end) {
+            mBuilder.append(value, start, end);
+        }
+    }
+
+
+    /**
+     * Expects a buffered stream, every char is a single write().
+     */
+    static final class StreamSink extends Sink {
+
+        private final OutputStream mOut;
+
+        StreamSink(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        void append(char c) throws IOException {
+            mOut.write(c);
+        }
+    }
+
+
+    static final class LengthSink extends Sink {
+
+        private long mLength;
+
+        long getLength() {
+            return mLength;
+        }
+
+        @Override
+        void append(char c) {
+            mLength++;
+        }
+
+        @Override
+        void append(CharSequence value, int start, int end) {
+            mLength += end - start;
+        }
+    }
+}
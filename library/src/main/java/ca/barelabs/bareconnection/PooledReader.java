@@ -0,0 +1,183 @@
+package ca.barelabs.bareconnection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+
+/**
+ * Decoding Reader straight off an InputStream. Replaces the InputStreamReader/BufferedInputStream
+ * pair and borrows its byte buffer from the BufferPool.
+ */
+final class PooledReader extends Reader {
+
+    private final InputStream mIn;
+    private final CharsetDecoder mDecoder;
+    private ByteBuffer mBytes;
+    // Only borrowed once readLine() is used, holds decoded chars past the last line returned
+    private CharBuffer mChars;
+    // A surrogate pair can't be decoded into one char, so single char reads go through here like StreamDecoder
+    private final char[] mCarry = new char[2];
+    private boolean mHasCarry;
+    private boolean mSkipLf;
+    private boolean mEndOfInput;
+    private boolean mFlushed;
+
+    PooledReader(InputStream in, String charset) throws UnsupportedEncodingException {
+        mIn = in;
+        try {
+            mDecoder = Charset.forName(charset).newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            throw new UnsupportedEncodingException(e.getMessage());
+        }
+        mBytes = ByteBuffer.wrap(BufferPool.acquireBytes(PooledWriter.BUFFER_SIZE));
+        mBytes.limit(0);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (mBytes == null) {
+            throw new IOException("Reader closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (mHasCarry) {
+            cbuf[off] = mCarry[1];
+            mHasCarry = false;
+            return 1;
+        }
+        if (len == 1) {
+            int count = read(mCarry, 0, 2);
+            if (count == -1) {
+                return -1;
+            }
+            cbuf[off] = mCarry[0];
+            mHasCarry = count == 2;
+            return 1;
+        }
+        if (mChars != null && mChars.hasRemaining()) {
+            int count = Math.min(len, mChars.remaining());
+            mChars.get(cbuf, off, count);
+            return count;
+        }
+        if (mFlushed) {
+            return -1;
+        }
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        while (true) {
+            CoderResult result = mDecoder.decode(mBytes, out, mEndOfInput);
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (mEndOfInput && result.isUnderflow() && !mFlushed) {
+                if (mDecoder.flush(out).isUnderflow()) {
+                    mFlushed = true;
+                }
+            }
+            int count = out.position() - off;
+            if (count > 0) {
+                return count; // Hand back what we have rather than block for more
+            }
+            if (mFlushed) {
+                return -1;
+            }
+            fill();
+        }
+    }
+
+    /**
+     * Same as BufferedReader.readLine(): the line without its terminator ("\n", "\r" or "\r\n"), or null at the
+     * end of the stream. Lines are cut straight out of a pooled char buffer, so no BufferedReader is needed on top.
+     */
+    String readLine() throws IOException {
+        if (mBytes == null) {
+            throw new IOException("Reader closed");
+        }
+        if (mChars == null) {
+            mChars = CharBuffer.wrap(BufferPool.acquireChars(PooledWriter.BUFFER_SIZE));
+            mChars.limit(0);
+        }
+        StringBuilder line = null;
+        while (true) {
+            if (!mChars.hasRemaining()) {
+                // Nothing left to hand out, so read() decodes straight into the array
+                int read = read(mChars.array(), 0, mChars.capacity());
+                if (read == -1) {
+                    return line == null ? null : line.toString();
+                }
+                mChars.position(0);
+                mChars.limit(read);
+            }
+            char[] chars = mChars.array();
+            int start = mChars.position();
+            int end = mChars.limit();
+            if (mSkipLf) {
+                mSkipLf = false;
+                if (chars[start] == '\n') {
+                    mChars.position(start + 1);
+                    continue;
+                }
+            }
+            for (int i = start; i < end; i++) {
+                char c = chars[i];
+                if (c == '\n' || c == '\r') {
+                    mChars.position(i + 1);
+                    mSkipLf = c == '\r';
+                    return line == null ? new String(chars, start, i - start) : line.append(chars, start, i - start).toString();
+                }
+            }
+            if (line == null) {
+                line = new StringBuilder(end - start + 80);
+            }
+            line.append(chars, start, end - start);
+            mChars.position(end);
+        }
+    }
+
+    @Override
+    public boolean ready() throws IOException {
+        return mBytes != null && (mHasCarry || (mChars != null && mChars.hasRemaining()) || mBytes.hasRemaining() || mIn.available() > 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mBytes == null) {
+            return;
+        }
+        try {
+            mIn.close();
+        } finally {
+            BufferPool.release(mBytes.array());
+            mBytes = null;
+            if (mChars != null) {
+                BufferPool.release(mChars.array());
+                mChars = null;
+            }
+        }
+    }
+
+    private void fill() throws IOException {
+        mBytes.compact();
+        try {
+            int read = mIn.read(mBytes.array(), mBytes.arrayOffset() + mBytes.position(), mBytes.remaining());
+            if (read == -1) {
+                mEndOfInput = true;
+            } else {
+                mBytes.position(mBytes.position() + read);
+            }
+        } finally {
+            mBytes.flip();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package ca.barelabs.bareconnection;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Buffered, encoding Writer straight onto an OutputStream. Replaces the
+ * BufferedWriter/OutputStreamWriter pair and borrows its buffers from the BufferPool.
+ */
+final class PooledWriter extends Writer {
+
+    static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream mOut;
+    private final boolean mCloseOutput;
+    private final CharsetEncoder mEncoder;
+    private CharBuffer mChars;
+    private ByteBuffer mBytes;
+
+    PooledWriter(OutputStream out, String charset) {
+        this(out, charset, true);
+    }
+
+    /**
+     * @param closeOutput false to leave the stream open on close(), e.g. when more is written to it afterwards
+     */
+    PooledWriter(OutputStream out, String charset, boolean closeOutput) {
+        mOut = out;
+        mCloseOutput = closeOutput;
+        mEncoder = Charset.forName(charset).newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        mChars = CharBuffer.wrap(BufferPool.acquireChars(BUFFER_SIZE));
+        mBytes = ByteBuffer.wrap(BufferPool.acquireBytes(BUFFER_SIZE));
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        ensureOpen();
+        if (!mChars.hasRemaining()) {
+            encode(false);
+        }
+        mChars.put((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (!mChars.hasRemaining()) {
+                encode(false);
+            }
+            int count = Math.min(len, mChars.remaining());
+            mChars.put(cbuf, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (!mChars.hasRemaining()) {
+                encode(false);
+            }
+            int count = Math.min(len, mChars.remaining());
+            int position = mChars.position();
+            str.getChars(off, off + count, mChars.array(), position);
+            mChars.position(position + count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        encode(false);
+        drain();
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mChars == null) {
+            return;
+        }
+        try {
+            encode(true);
+            while (mEncoder.flush(mBytes) == CoderResult.OVERFLOW) {
+                drain();
+            }
+            drain();
+            mOut.flush();
+        } finally {
+            BufferPool.release(mChars.array());
+            BufferPool.release(mBytes.array());
+            mChars = null;
+            mBytes = null;
+            if (mCloseOutput) {
+                mOut.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the buffers to the pool without writing what is still buffered or closing the stream,
+     * for when the output failed halfway and must not look complete.
+     */
+    void release() {
+        if (mChars != null) {
+            BufferPool.release(mChars.array());
+            BufferPool.release(mBytes.array());
+            mChars = null;
+            mBytes = null;
+        }
+    }
+
+    private void encode(boolean endOfInput) throws IOException {
+        mChars.flip();
+        while (true) {
+            CoderResult result = mEncoder.encode(mChars, mBytes, endOfInput);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isUnderflow()) {
+                break;
+            } else {
+                result.throwException();
+            }
+        }
+        mChars.compact(); // Keeps a dangling high surrogate for the next write
+    }
+
+    private void drain() throws IOException {
+        if (mBytes.position() > 0) {
+            mOut.write(mBytes.array(), 0, mBytes.position());
+            mBytes.clear();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mChars == null) {
+            throw new IOException("Writer closed");
+        }
+    }
+}
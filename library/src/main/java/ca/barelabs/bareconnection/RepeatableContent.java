@@ -0,0 +1,230 @@
+package ca.barelabs.bareconnection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+public abstract class RepeatableContent {
+
+    private static final String TEMP_FILE_PREFIX = "bareconnection";
+    private static final String TEMP_FILE_SUFFIX = ".body";
+
+    private final String mContentType;
+
+    protected RepeatableContent(String contentType) {
+        mContentType = contentType;
+    }
+
+    public String getContentType() {
+        return mContentType;
+    }
+
+    public abstract long getContentLength();
+
+    /**
+     * Returns a new stream positioned at the start of the content. Called once per attempt.
+     */
+    public abstract InputStream openStream() throws IOException;
+
+    public void release() {
+    }
+
+    /**
+     * Drains and closes the stream. Content up to memoryThreshold bytes is kept in memory,
+     * anything larger is spilled to a temp file that is deleted on release().
+     */
+    public static RepeatableContent buffer(InputStream in, String contentType, int memoryThreshold) throws IOException {
+        File file = null;
+        OutputStream fileOut = null;
+        byte[] bytes = BufferPool.acquireBytes(8192);
+        try {
+            ByteArrayOutputStream memory = new ByteArrayOutputStream(Math.min(memoryThreshold, 8192));
+            int read;
+            while ((read = in.read(bytes)) != -1) {
+                if (memory.size() + read <= memoryThreshold) {
+                    memory.write(bytes, 0, read);
+                    continue;
+                }
+                file = File.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX);
+                fileOut = new FileOutputStream(file);
+                memory.writeTo(fileOut);
+                memory = null;
+                fileOut.write(bytes, 0, read);
+                IOUtils.copy(in, fileOut);
+                fileOut.close();
+                return new FileContent(file, contentType, true);
+            }
+            return new ByteArrayContent(memory.toByteArray(), contentType);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(fileOut);
+            if (file != null) {
+                file.delete();
+            }
+            throw e;
+        } finally {
+            BufferPool.release(bytes);
+            IOUtils.closeQuietly(in);
+        }
+    }
+    
+    
+    public static final class ByteArrayContent extends RepeatableContent {
+
+        private final byte[] mBytes;
+
+        public ByteArrayContent(byte[] bytes, String contentType) {
+            super(contentType);
+            mBytes = bytes;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mBytes.length;
+        }
+
+        @Override
+        public InputStream openStream() {
+            return new ByteArrayInputStream(mBytes);
+        }
+    }
+    
+    
+    public static final class FileContent extends RepeatableContent {
+
+        private final File mFile;
+        private final boolean mDeleteOnRelease;
+
+        public FileContent(File file, String contentType) {
+            this(file, contentType, false);
+        }
+
+        FileContent(File file, String contentType, boolean deleteOnRelease) {
+            super(contentType);
+            mFile = file;
+            mDeleteOnRelease = deleteOnRelease;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mFile.length();
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return new FileInputStream(mFile);
+        }
+
+        @Override
+        public void release() {
+            if (mDeleteOnRelease) {
+                mFile.delete();
+            }
+        }
+    }
+    
+    
+    /**
+     * A byte range of a file, so large files can be sent as several independently retried parts.
+     */
+    public static final class FileRegionContent extends RepeatableContent {
+
+        private final File mFile;
+        private final long mOffset;
+        private final long mLength;
+
+        public FileRegionContent(File file, long offset, long length, String contentType) {
+            super(contentType);
+            mFile = file;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        public long getOffset() {
+            return mOffset;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mLength;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            FileInputStream in = new FileInputStream(mFile);
+            try {
+                in.getChannel().position(mOffset);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            return new RegionInputStream(in, mLength);
+        }
+    }
+
+
+    private static final class RegionInputStream extends FilterInputStream {
+
+        private long mRemaining;
+
+        RegionInputStream(InputStream in, long length) {
+            super(in);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int read = super.read();
+            if (read != -1) {
+                mRemaining--;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int read = super.read(b, off, (int) Math.min(len, mRemaining));
+            if (read > 0) {
+                mRemaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, mRemaining));
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), mRemaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
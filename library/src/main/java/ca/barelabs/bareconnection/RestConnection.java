@@ -15,6 +15,8 @@
  */
 package ca.barelabs.bareconnection;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -22,8 +24,15 @@ import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 
@@ -72,6 +81,7 @@ public class RestConnection {
     public static final int SC_ENTITY_TOO_LARGE = 413;
     public static final int SC_REQ_TOO_LONG = 414;
     public static final int SC_UNSUPPORTED_TYPE = 415;
+    public static final int SC_RANGE_NOT_SATISFIABLE = 416;
 
     public static final int SC_INTERNAL_ERROR = 500;
     public static final int SC_NOT_IMPLEMENTED = 501;
@@ -80,13 +90,24 @@ public class RestConnection {
     public static final int SC_GATEWAY_TIMEOUT = 504;
     public static final int SC_VERSION = 505;
 
+    public static final String HEADER_ACCEPT = "Accept";
     public static final String HEADER_CONTENT_TYPE = "Content-Type";
     public static final String HEADER_CONTENT_LENGTH = "Content-Length";
     public static final String HEADER_SET_COOKIE = "Set-Cookie";
     public static final String HEADER_COOKIE = "Cookie";
     public static final String HEADER_ACCEPT_CHARSET = "Accept-Charset";
     public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
     public static final String HEADER_AUTHORIZATION = "Authorization";
+    public static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+    public static final String HEADER_RANGE = "Range";
+    public static final String HEADER_IF_RANGE = "If-Range";
+    public static final String HEADER_CONTENT_RANGE = "Content-Range";
+    public static final String HEADER_ETAG = "ETag";
+    public static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    public static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    public static final String HEADER_LAST_EVENT_ID = "Last-Event-ID";
+    public static final String HEADER_CONTENT_ID = "Content-ID";
     public static final String HEADER_METHOD_OVERRIDE = "X-HTTP-Method-Override";   
  
     public static final String KEY_CHARSET = "charset";
@@ -95,11 +116,21 @@ public class RestConnection {
     public static final String AUTHORIZATION_TYPE_BASIC = "Basic";
     
     public static final String ENCODING_GZIP = "gzip";
+    public static final String ENCODING_X_GZIP = "x-gzip";
+    public static final String ENCODING_DEFLATE = "deflate";
+    public static final String ENCODING_IDENTITY = "identity";
     
     public static final String CONTENT_TYPE_TEXT = "text/plain";
     public static final String CONTENT_TYPE_FORM_URLENCODED = "application/x-www-form-urlencoded";
     public static final String CONTENT_TYPE_JSON = "application/json";
+    public static final String CONTENT_TYPE_OCTET_STREAM = "application/octet-stream";
+    public static final String CONTENT_TYPE_NDJSON = "application/x-ndjson";
+    public static final String CONTENT_TYPE_CBOR = "application/cbor";
+    public static final String CONTENT_TYPE_MSGPACK = "application/msgpack";
+    public static final String CONTENT_TYPE_EVENT_STREAM = "text/event-stream";
     public static final String CONTENT_TYPE_MULTIPART_FORM = "multipart/form-data";
+    public static final String CONTENT_TYPE_MULTIPART_MIXED = "multipart/mixed";
+    public static final String CONTENT_TYPE_HTTP = "application/http";
 
     public static final String PATH_SEPARATOR = "/";
     public static final String QUERY_SEPARATOR = "?";
@@ -108,20 +139,45 @@ public class RestConnection {
     public static final int DEFAULT_CONNECT_TIMEOUT = 1000;
     public static final int DEFAULT_SOCKET_TIMEOUT = 10000;
     public static final int DEFAULT_MAX_RETRY_ATTEMPTS = 5;
+    public static final int DEFAULT_CHUNK_LENGTH = 8192;
+    public static final int DEFAULT_REPLAY_BUFFER_SIZE = 1024 * 1024;
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    public static final String DEFAULT_ACCEPT_ENCODING = ENCODING_GZIP + ", " + ENCODING_DEFLATE;
     
     public interface MultipartFormWriter {
         void onWrite(OutputStream out, String charset, String boundary) throws IOException;
     }
+    
+    /**
+     * A MultipartFormWriter that knows its exact size up front, so the body can be sent with a fixed length.
+     */
+    public interface SizedMultipartFormWriter extends MultipartFormWriter {
+        /**
+         * Returns the exact number of bytes onWrite() will write, or -1 if unknown.
+         */
+        long getContentLength(String charset, String boundary) throws IOException;
+    }
+    
+    public interface ContentDecoder {
+        InputStream decode(InputStream in) throws IOException;
+    }
 
 
     private final HttpURLConnectionFactory mFactory;
     private ObjectParser mParser;
+    private ParserRegistry mParserRegistry = new ParserRegistry();
     private int mMaxRetryAttempts = DEFAULT_MAX_RETRY_ATTEMPTS;
     private boolean mRetryOnIOException;
     private BackOffPolicy mBackOffPolicy;
     private String mContentType = CONTENT_TYPE_JSON;
     private String mIncomingCharset = DEFAULT_CHARSET;
     private String mOutgoingCharset = DEFAULT_CHARSET;
+    private boolean mStreamingEnabled = true;
+    private int mChunkLength = DEFAULT_CHUNK_LENGTH;
+    private int mReplayBufferSize = DEFAULT_REPLAY_BUFFER_SIZE;
+    private String mRequestEncoding;
+    private int mCompressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private Map<String, ContentDecoder> mDecoders = new LinkedHashMap<>();
 
 
     public RestConnection(HttpURLConnectionFactory factory) {
@@ -139,6 +195,14 @@ public class RestConnection {
     public void setParser(ObjectParser parser) {
         mParser = parser;
     }
+    
+    public ParserRegistry getParserRegistry() {
+        return mParserRegistry;
+    }
+    
+    public void setParserRegistry(ParserRegistry parserRegistry) {
+        mParserRegistry = parserRegistry == null ? new ParserRegistry() : parserRegistry;
+    }
 
     public int getMaxRetryAttempts() {
         return mMaxRetryAttempts;
@@ -188,6 +252,67 @@ public class RestConnection {
         mOutgoingCharset = outgoingCharset;
     }
 
+    public boolean isStreamingEnabled() {
+        return mStreamingEnabled;
+    }
+    
+    public void setStreamingEnabled(boolean streamingEnabled) {
+        mStreamingEnabled = streamingEnabled;
+    }
+    
+    public int getChunkLength() {
+        return mChunkLength;
+    }
+    
+    public void setChunkLength(int chunkLength) {
+        mChunkLength = chunkLength;
+    }
+
+    public int getReplayBufferSize() {
+        return mReplayBufferSize;
+    }
+    
+    public void setReplayBufferSize(int replayBufferSize) {
+        mReplayBufferSize = replayBufferSize;
+    }
+    
+    /**
+     * ENCODING_GZIP or ENCODING_DEFLATE to compress request bodies, null (the default) to send them as is.
+     */
+    public String getRequestEncoding() {
+        return mRequestEncoding;
+    }
+    
+    public void setRequestEncoding(String requestEncoding) {
+        if (requestEncoding != null && !CompressingOutputStream.isSupported(requestEncoding)) {
+            throw new IllegalArgumentException("Unsupported request encoding: " + requestEncoding);
+        }
+        mRequestEncoding = requestEncoding;
+    }
+    
+    /**
+     * Bodies known to be smaller than this are sent uncompressed. Bodies of unknown length are always compressed.
+     */
+    public int getCompressionThreshold() {
+        return mCompressionThreshold;
+    }
+    
+    public void setCompressionThreshold(int compressionThreshold) {
+        mCompressionThreshold = compressionThreshold;
+    }
+    
+    /**
+     * Decodes responses with the given Content-Encoding and advertises it in Accept-Encoding.
+     * A decoder registered for gzip or deflate replaces the built-in pooled one.
+     */
+    public void registerDecoder(String encoding, ContentDecoder decoder) {
+        mDecoders.put(encoding.trim().toLowerCase(Locale.US), decoder);
+    }
+    
+    public Map<String, ContentDecoder> getDecoders() {
+        return Collections.unmodifiableMap(mDecoders);
+    }
+
     public RestResponse head() throws IOException {
         return execute(METHOD_HEAD, null);
     }
@@ -228,98 +353,324 @@ public class RestConnection {
         return execute(METHOD_PATCH, object);
     }
     
+    public long downloadTo(Path path) throws IOException {
+        FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            FileDownload download = new FileDownload(this, file, 0, -1, null);
+            if (mBackOffPolicy != null) {
+                mBackOffPolicy.reset(); // Once for the whole download, resumes share execute()'s back off
+            }
+            int attempts = 0;
+            while (true) {
+                try {
+                    download.transfer();
+                    return download.getPosition();
+                } catch (RestException e) {
+                    throw e; // Status codes were already retried by execute()
+                } catch (IOException e) {
+                    // Resume from the last byte written rather than starting over, but only if the body was cut off
+                    if (!download.isResumable() || attempts++ >= mMaxRetryAttempts || !mRetryOnIOException) {
+                        throw e;
+                    }
+                    if (mBackOffPolicy != null && !mBackOffPolicy.backOff()) {
+                        throw e;
+                    }
+                }
+            }
+        } finally {
+            file.close();
+        }
+    }
+    
     public RestResponse execute(String method) throws IOException {
         return execute(method, null);
     }
     
     public RestResponse execute(String method, Object object) throws IOException {
+        return execute(method, object, null);
+    }
+    
+    public RestResponse execute(String method, Object object, Map<String, String> headers) throws IOException {
+        return execute(method, object, headers, true);
+    }
+    
+    /**
+     * @param resetBackOff false when the caller retries around this request and already reset the BackOffPolicy,
+     *            so its attempts and execute()'s share one back off sequence
+     */
+    RestResponse execute(String method, Object object, Map<String, String> headers, boolean resetBackOff) throws IOException {
     	ensureDefaultObjectParser();
+        IOMetrics.onRequest();
         boolean validResponse = false;
-        if (mBackOffPolicy != null) {
+        if (resetBackOff && mBackOffPolicy != null) {
             mBackOffPolicy.reset();
         }
-        int attempts = 0;
-        while (true) {
-            boolean retryAllowed = attempts++ < mMaxRetryAttempts;
-            HttpURLConnection connection = mFactory.createHttpURLConnection(method);
-            try {
-                if (object != null) {
-                    String boundary = Long.toHexString(System.currentTimeMillis());
-                	if (object instanceof ContentInputStream) {
-                		ContentInputStream content = (ContentInputStream) object;
-                        connection.setRequestProperty(HEADER_CONTENT_TYPE, content.getContentType());
-                        connection.setRequestProperty(HEADER_CONTENT_LENGTH, String.valueOf(content.getContentLength()));
-                    } else {
-                        connection.setRequestProperty(HEADER_CONTENT_TYPE, encodeContentType(object, boundary));
+        String boundary = Long.toHexString(System.currentTimeMillis());
+        // Small bodies are encoded once up front so their exact length is known and retries don't re-encode
+        byte[] encoded = encodeBody(object);
+        Object body = toRepeatableBody(object, boundary);
+        // A stream that couldn't be buffered can only be sent once
+        boolean replayable = !(body instanceof InputStream) && !(body instanceof NdjsonContent && !((NdjsonContent) body).isReplayable())
+                && !(body instanceof DefaultMultipartFormWriter && !((DefaultMultipartFormWriter) body).isRepeatable());
+        long contentLength = encoded != null ? encoded.length : getContentLength(body, boundary);
+        if (contentLength < 0 && replayable && mCompressionThreshold > 0 && isCompressionRequested(body, headers)) {
+            // Serialized bodies have no length up front, so encode up to the threshold to see whether they fit under it
+            encoded = encodeWithinThreshold(body, boundary);
+            if (encoded != null) {
+                contentLength = encoded.length;
+            }
+        }
+        String contentEncoding = getContentEncoding(body, contentLength, headers);
+        if (contentEncoding != null) {
+            contentLength = -1; // The compressed size isn't known until it's written
+        }
+        try {
+            int attempts = 0;
+            while (true) {
+                boolean retryAllowed = attempts++ < mMaxRetryAttempts;
+                boolean bodyWritten = false;
+                HttpURLConnection connection = mFactory.createHttpURLConnection(method);
+                try {
+                    if (headers != null) {
+                        for (Map.Entry<String, String> header : headers.entrySet()) {
+                            connection.setRequestProperty(header.getKey(), header.getValue());
+                        }
                     }
-                    connection.setDoOutput(true);
-                    write(connection.getOutputStream(), object, boundary);
-                }
-                RestResponse response = new RestResponse(connection, mParser, mIncomingCharset);
-                if (retryAllowed && mBackOffPolicy != null && mBackOffPolicy.isBackOffRequired(response.getStatusCode())) {
-                    // If this returns false then we went over the max back off time, so don't don't try again
-                    if (mBackOffPolicy.backOff()) {
+                    if (!mDecoders.isEmpty() && !containsHeader(headers, HEADER_ACCEPT_ENCODING)) {
+                        connection.setRequestProperty(HEADER_ACCEPT_ENCODING, getAcceptEncodingHeader());
+                    }
+                    if (!mParserRegistry.isEmpty() && connection.getRequestProperty(HEADER_ACCEPT) == null) {
+                        connection.setRequestProperty(HEADER_ACCEPT, getAcceptHeader());
+                    }
+                    if (body != null) {
+                        connection.setRequestProperty(HEADER_CONTENT_TYPE, encodeContentType(body, boundary));
+                        if (contentEncoding != null) {
+                            connection.setRequestProperty(HEADER_CONTENT_ENCODING, contentEncoding);
+                        } else if (!mStreamingEnabled && object instanceof ContentInputStream) {
+                            connection.setRequestProperty(HEADER_CONTENT_LENGTH, String.valueOf(((ContentInputStream) object).getContentLengthLong()));
+                        }
+                        connection.setDoOutput(true);
+                        setStreamingMode(connection, contentLength);
+                        OutputStream out = connection.getOutputStream();
+                        bodyWritten = true;
+                        CompressingOutputStream compressing = null;
+                        if (contentEncoding != null) {
+                            out = compressing = CompressingOutputStream.create(out, contentEncoding);
+                        }
+                        boolean written = false;
+                        try {
+                            if (encoded != null) {
+                                write(out, encoded);
+                            } else {
+                                write(out, body, boundary);
+                            }
+                            if (compressing != null) {
+                                compressing.close(); // Already closed by most writers, otherwise writes the trailer here
+                            }
+                            written = true;
+                        } finally {
+                            if (compressing != null && !written) {
+                                compressing.release(); // No trailer, so disconnect() aborts the incomplete body
+                            }
+                        }
+                    }
+                    retryAllowed &= replayable || !bodyWritten;
+                    RestResponse response = new RestResponse(connection, mParserRegistry, mParser, mIncomingCharset, mDecoders);
+                    if (retryAllowed && mBackOffPolicy != null && mBackOffPolicy.isBackOffRequired(response.getStatusCode())) {
+                        // If this returns false then we went over the max back off time, so don't don't try again
+                        if (mBackOffPolicy.backOff()) {
+                            continue;
+                        }
+                    }
+                    validResponse = true;
+                    return response;
+                } catch (IOException e) {
+                    if (retryAllowed && mRetryOnIOException && (replayable || !bodyWritten)) {
                         continue;
                     }
+                    throw e;
+                } finally {
+                    if (!validResponse) {
+                        connection.disconnect();
+                    }
                 }
-                validResponse = true;
-                return response;
-            } catch (IOException e) {
-                if (retryAllowed && mRetryOnIOException) {
-                    continue;
-                }
-                throw e;
-            } finally {
-                if (!validResponse) {
-                    connection.disconnect();
-                }
             }
-        } 
+        } finally {
+            if (body != object) {
+                ((RepeatableContent) body).release(); // Deletes any temp file we spilled to
+            }
+        }
+    }
+    
+    private String getAcceptHeader() {
+        String accept = mParserRegistry.getAcceptHeader();
+        MediaType contentType = MediaType.parse(mContentType);
+        if (mParser != null && contentType != null && mParserRegistry.getParser(contentType, null) == null) {
+            // Still advertise what the default parser understands, at the lowest preference
+            accept += ", " + contentType.getBaseType() + ";q=0.1";
+        }
+        return accept;
+    }
+    
+    private String getAcceptEncodingHeader() {
+        StringBuilder accept = new StringBuilder(DEFAULT_ACCEPT_ENCODING);
+        for (String encoding : mDecoders.keySet()) {
+            if (!DecompressingInputStream.isSupported(encoding)) {
+                accept.append(", ").append(encoding);
+            }
+        }
+        return accept.toString();
+    }
+    
+    private ObjectParser getOutgoingParser() {
+        return mParserRegistry.getParser(mContentType, mParser);
+    }
+    
+    private boolean isRetryPossible() {
+        return mMaxRetryAttempts > 0 && (mRetryOnIOException || mBackOffPolicy != null);
+    }
+    
+    private Object toRepeatableBody(Object object, String boundary) throws IOException {
+        if (object instanceof File) {
+            File file = (File) object;
+            String contentType = URLConnection.guessContentTypeFromName(file.getName());
+            return new RepeatableContent.FileContent(file, contentType == null ? CONTENT_TYPE_OCTET_STREAM : contentType);
+        } else if (object instanceof InputStream && isRetryPossible()) {
+            return RepeatableContent.buffer((InputStream) object, encodeContentType(object, boundary), mReplayBufferSize);
+        }
+        return object;
     }
     
     private String encodeContentType(Object object, String boundary) {
-        if (object instanceof Map || object instanceof MultiMap) {
+        if (object instanceof ContentInputStream) {
+            return ((ContentInputStream) object).getContentType();
+        } else if (object instanceof RepeatableContent && ((RepeatableContent) object).getContentType() != null) {
+            return ((RepeatableContent) object).getContentType();
+        } else if (object instanceof Map || object instanceof MultiMap) {
             return CONTENT_TYPE_FORM_URLENCODED + ";" + KEY_CHARSET + "=" + mOutgoingCharset;
+        } else if (object instanceof NdjsonContent) {
+            return CONTENT_TYPE_NDJSON + ";" + KEY_CHARSET + "=" + mOutgoingCharset;
+        } else if (object instanceof DefaultMultipartFormWriter) {
+            return ((DefaultMultipartFormWriter) object).getMediaType() + ";" + KEY_BOUNDARY + "=" + boundary;
         } else if (object instanceof MultipartFormWriter) {
             return CONTENT_TYPE_MULTIPART_FORM + ";" + KEY_BOUNDARY + "=" + boundary;
+        } else if (isBinaryContentType(mContentType)) {
+            return mContentType; // No text in the body, so a charset would only be noise
         } else {
             return mContentType + ";" + KEY_CHARSET + "=" + mOutgoingCharset;
         }
     }
+    
+    private static boolean isBinaryContentType(String contentType) {
+        MediaType mediaType = MediaType.parse(contentType);
+        if (mediaType == null) {
+            return false;
+        }
+        String baseType = mediaType.getBaseType();
+        String suffix = mediaType.getSuffix();
+        return CONTENT_TYPE_CBOR.equals(baseType) || CONTENT_TYPE_MSGPACK.equals(baseType)
+                || "cbor".equals(suffix) || "msgpack".equals(suffix);
+    }
+
+    private byte[] encodeBody(Object object) throws IOException {
+        if (object instanceof String) {
+            return ((String) object).getBytes(mOutgoingCharset);
+        }
+        return null;
+    }
+    
+    private long getContentLength(Object object, String boundary) throws IOException {
+        if (object instanceof SizedMultipartFormWriter) {
+            return ((SizedMultipartFormWriter) object).getContentLength(mOutgoingCharset, boundary);
+        } else if (object instanceof ContentInputStream) {
+            return ((ContentInputStream) object).getContentLengthLong();
+        } else if (object instanceof RepeatableContent) {
+            return ((RepeatableContent) object).getContentLength();
+        } else if (object instanceof Map || object instanceof MultiMap) {
+            // Counted up front so write() can encode the body straight into the connection
+            return RestUtils.getQueryLength(object, RestUtils.toCharset(mOutgoingCharset));
+        }
+        return -1;
+    }
+    
+    private String getContentEncoding(Object body, long contentLength, Map<String, String> headers) {
+        if (!isCompressionRequested(body, headers) || (contentLength >= 0 && contentLength < mCompressionThreshold)) {
+            return null;
+        }
+        return mRequestEncoding;
+    }
+    
+    private boolean isCompressionRequested(Object body, Map<String, String> headers) {
+        // A Content-Encoding header means the caller already encoded the body
+        return body != null && mRequestEncoding != null && !containsHeader(headers, HEADER_CONTENT_ENCODING);
+    }
+    
+    private byte[] encodeWithinThreshold(Object body, String boundary) throws IOException {
+        ThresholdOutputStream out = new ThresholdOutputStream(mCompressionThreshold);
+        try {
+            write(out, body, boundary);
+        } catch (IOException | RuntimeException e) {
+            if (out.isExceeded()) {
+                return null; // Large enough to compress, it is written again straight into the connection
+            }
+            throw e;
+        }
+        return out.toByteArray();
+    }
+    
+    private static boolean containsHeader(Map<String, String> headers, String name) {
+        if (headers != null) {
+            for (String key : headers.keySet()) {
+                if (name.equalsIgnoreCase(key)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    private void setStreamingMode(HttpURLConnection connection, long contentLength) {
+        // Without a streaming mode HttpURLConnection buffers the entire body in memory before sending it
+        if (mStreamingEnabled) {
+            if (contentLength >= 0) {
+                connection.setFixedLengthStreamingMode(contentLength);
+            } else {
+                connection.setChunkedStreamingMode(mChunkLength);
+            }
+        }
+    }
+
+    private void write(OutputStream out, byte[] data) throws IOException {
+        out.write(data);
+        out.flush();
+        out.close();
+    }
 
     private void write(OutputStream out, Object object, String boundary) throws IOException {
         if (object instanceof InputStream) {
-            IOUtils.copy((InputStream) object, out);
-            out.flush();
-            out.close();
-        } else if (object instanceof String) {
-            String data = (String) object;
-            out.write(data.getBytes(mOutgoingCharset));
-            out.flush();
-            out.close();
-        } else if (object instanceof Map) {
-            String query = RestUtils.toQuery((Map<?,?>) object, mOutgoingCharset);
-            out.write(query.getBytes(mOutgoingCharset));
-            out.flush();
+            IOUtils.copy((InputStream) object, out, getContentLength(object, boundary));
             out.close();
-        } else if (object instanceof MultiMap) {
-            String query = RestUtils.toQuery((MultiMap<?,?>) object, mOutgoingCharset);
-            out.write(query.getBytes(mOutgoingCharset));
-            out.flush();
+        } else if (object instanceof RepeatableContent) {
+            RepeatableContent content = (RepeatableContent) object;
+            IOUtils.copy(content.openStream(), out, content.getContentLength());
             out.close();
         } else if (object instanceof MultipartFormWriter) {
             MultipartFormWriter writer = (MultipartFormWriter) object;
             writer.onWrite(out, mOutgoingCharset, boundary);
             out.flush();
             out.close();
-        } else if (mParser != null) {
-            mParser.saveAndClose(object, out, mOutgoingCharset);
+        } else if (object instanceof Map || object instanceof MultiMap) {
+            RestUtils.writeQuery(object, RestUtils.toCharset(mOutgoingCharset), out);
+        } else if (object instanceof NdjsonContent && getOutgoingParser() != null) {
+            ((NdjsonContent) object).writeTo(out, getOutgoingParser(), mOutgoingCharset);
+        } else if (getOutgoingParser() != null) {
+            getOutgoingParser().saveAndClose(object, out, mOutgoingCharset);
         } else {
             throw new IllegalStateException("Missing ObjectParser. See RestConnection.setParser() or include Gson dependency to default to GsonParser.");
         }
     }
     
-	private void ensureDefaultObjectParser() {
+	void ensureDefaultObjectParser() {
         try {
         	if (mParser == null) {
 	            // Use GsonParser as default if user didn't specify a parser and the valid Gson dependency is present.
@@ -331,6 +682,44 @@ public class RestConnection {
     }
     
     
+    /**
+     * Collects a body in memory until it reaches the threshold, then fails the write so encoding stops early.
+     */
+    private static final class ThresholdOutputStream extends OutputStream {
+
+        private final ByteArrayOutputStream mBuffer;
+        private final int mThreshold;
+        private boolean mExceeded;
+
+        ThresholdOutputStream(int threshold) {
+            mBuffer = new ByteArrayOutputStream(Math.min(threshold, 8192));
+            mThreshold = threshold;
+        }
+
+        boolean isExceeded() {
+            return mExceeded;
+        }
+
+        byte[] toByteArray() {
+            return mBuffer.toByteArray();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mBuffer.size() + len >= mThreshold) {
+                mExceeded = true;
+                throw new IOException("Body reached the compression threshold");
+            }
+            mBuffer.write(b, off, len);
+        }
+    }
+    
+    
     public static final class Builder {
 
         public interface OnPrepareConnectionListener {
@@ -339,6 +728,7 @@ public class RestConnection {
 
         private OnPrepareConnectionListener mListener;   
         private ObjectParser mParser;
+        private ParserRegistry mParserRegistry = new ParserRegistry();
         private int mMaxRetryAttempts = DEFAULT_MAX_RETRY_ATTEMPTS;
         private boolean mRetryOnIOException;
         private BackOffPolicy mBackOffPolicy;
@@ -347,6 +737,12 @@ public class RestConnection {
         private String mContentType = CONTENT_TYPE_JSON;
         private String mIncomingCharset = DEFAULT_CHARSET;
         private String mOutgoingCharset = DEFAULT_CHARSET;
+        private boolean mStreamingEnabled = true;
+        private int mChunkLength = DEFAULT_CHUNK_LENGTH;
+        private int mReplayBufferSize = DEFAULT_REPLAY_BUFFER_SIZE;
+        private String mRequestEncoding;
+        private int mCompressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+        private Map<String, ContentDecoder> mDecoders = new LinkedHashMap<>();
         private HashMap<String, Object> mParams = new HashMap<>();
         private List<String> mCookies;
         
@@ -360,6 +756,11 @@ public class RestConnection {
             return this;    
         }
         
+        public Builder parser(String mediaType, ObjectParser parser) {
+            mParserRegistry.register(mediaType, parser);
+            return this;    
+        }
+        
         public Builder maxRetryAttempts(int maxRetryAttempts) {
             mMaxRetryAttempts = maxRetryAttempts;
             return this;    
@@ -443,6 +844,36 @@ public class RestConnection {
             return this;    
         }
         
+        public Builder streamingEnabled(boolean streamingEnabled) {
+            mStreamingEnabled = streamingEnabled;
+            return this;    
+        }
+        
+        public Builder chunkLength(int chunkLength) {
+            mChunkLength = chunkLength;
+            return this;    
+        }
+        
+        public Builder replayBufferSize(int replayBufferSize) {
+            mReplayBufferSize = replayBufferSize;
+            return this;    
+        }
+        
+        public Builder requestEncoding(String requestEncoding) {
+            mRequestEncoding = requestEncoding;
+            return this;    
+        }
+        
+        public Builder compressionThreshold(int compressionThreshold) {
+            mCompressionThreshold = compressionThreshold;
+            return this;    
+        }
+        
+        public Builder decoder(String encoding, ContentDecoder decoder) {
+            mDecoders.put(encoding, decoder);
+            return this;    
+        }
+        
         public Builder params(HashMap<String, String> params) {
             if (params != null) {
                 mParams.putAll(params);
@@ -512,7 +943,7 @@ public class RestConnection {
                     connection.setConnectTimeout(properties.getConnectTimeout());
                     connection.setReadTimeout(properties.getReadTimeout());
                     connection.setInstanceFollowRedirects(properties.isFollowRedirects());
-                    connection.setRequestProperty(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+                    connection.setRequestProperty(HEADER_ACCEPT_ENCODING, DEFAULT_ACCEPT_ENCODING);
                     connection.setRequestProperty(HEADER_ACCEPT_CHARSET, mOutgoingCharset);
                     if (properties.getUsername() != null && properties.getPassword() != null) {
                         String credentials = properties.getUsername() + ":" + properties.getPassword();
@@ -533,12 +964,21 @@ public class RestConnection {
         	if (mParser != null) {
         		connection.mParser = mParser;
         	}
+        	connection.mParserRegistry = mParserRegistry;
             connection.mMaxRetryAttempts = mMaxRetryAttempts;
             connection.mBackOffPolicy = mBackOffPolicy;
             connection.mRetryOnIOException = mRetryOnIOException;
         	connection.mContentType = mContentType;
         	connection.mIncomingCharset = mIncomingCharset;
         	connection.mOutgoingCharset = mOutgoingCharset;
+        	connection.mStreamingEnabled = mStreamingEnabled;
+        	connection.mChunkLength = mChunkLength;
+        	connection.mReplayBufferSize = mReplayBufferSize;
+        	connection.setRequestEncoding(mRequestEncoding);
+        	connection.mCompressionThreshold = mCompressionThreshold;
+        	for (Map.Entry<String, ContentDecoder> decoder : mDecoders.entrySet()) {
+        	    connection.registerDecoder(decoder.getKey(), decoder.getValue());
+        	}
         	return connection;
         }
     }
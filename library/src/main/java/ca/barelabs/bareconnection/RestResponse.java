@@ -21,27 +21,54 @@ import java.lang.reflect.Type;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
+import java.util.Locale;
+import java.util.Map;
 
 public class RestResponse {
     
+    public interface OnObjectParsedListener<T> {
+        void onObjectParsed(T object) throws IOException;
+    }
+    
     private final HttpURLConnection mConnection;
+    private final Headers mHeaders;
     private final ObjectParser mParser;
     private final int mStatusCode;
     private final String mIncomingCharset;
+    private final Map<String, RestConnection.ContentDecoder> mDecoders;
     private InputStream mContent;
 
     RestResponse(HttpURLConnection connection, ObjectParser parser, String incomingCharset) throws IOException {
+        this(connection, null, parser, incomingCharset);
+    }
+
+    RestResponse(HttpURLConnection connection, ParserRegistry parsers, ObjectParser defaultParser, String incomingCharset) throws IOException {
+        this(connection, parsers, defaultParser, incomingCharset, null);
+    }
+
+    RestResponse(HttpURLConnection connection, ParserRegistry parsers, ObjectParser defaultParser, String incomingCharset,
+            Map<String, RestConnection.ContentDecoder> decoders) throws IOException {
         mConnection = connection;
-        mParser = parser;
+        mDecoders = decoders;
         mStatusCode = connection.getResponseCode();
-        mIncomingCharset = parseIncomingCharset(connection, incomingCharset);
+        mHeaders = Headers.of(connection);
+        mIncomingCharset = parseIncomingCharset(mHeaders, incomingCharset);
+        // Pick the parser matching what the server actually sent
+        mParser = parsers == null || parsers.isEmpty() ? defaultParser
+                : parsers.getParser(mHeaders.getContentType(), defaultParser);
     }
     
     public HttpURLConnection getConnection() {
         return mConnection;
     }
     
+    /**
+     * The response headers, read once when the response arrived.
+     */
+    public Headers getHeaders() {
+        return mHeaders;
+    }
+    
     public ObjectParser getParser() {
         return mParser;
     }
@@ -55,10 +82,11 @@ public class RestResponse {
     }
     
     public List<String> getCookies() {
-        List<String> cookies = new ArrayList<String>();
-        List<String> incomingCookies = mConnection.getHeaderFields().get(RestConnection.HEADER_SET_COOKIE);
+        List<String> incomingCookies = mHeaders.getAll(RestConnection.HEADER_SET_COOKIE);
+        List<String> cookies = new ArrayList<String>(incomingCookies.size());
         for (String cookie : incomingCookies) {
-            cookies.add(cookie.split(";", 2)[0]);
+            int end = cookie.indexOf(';');
+            cookies.add(end == -1 ? cookie : cookie.substring(0, end));
         }
         return cookies;
     }
@@ -82,7 +110,28 @@ public class RestResponse {
     public String parse() throws IOException {
         ensureValidStatusCode();
         try {
-            return IOUtils.toString(getContent(), mIncomingCharset);
+            return IOUtils.toString(getContent(), mIncomingCharset, mHeaders.getContentLength());
+        } finally {
+            disconnect();
+        }
+    }
+
+    public byte[] parseBytes() throws IOException {
+        ensureValidStatusCode();
+        try {
+            return IOUtils.toByteArray(getContent(), mHeaders.getContentLength());
+        } finally {
+            disconnect();
+        }
+    }
+
+    /**
+     * Like parse() but skips the copy into a String, for callers that only scan the text.
+     */
+    public CharSequence parseChars() throws IOException {
+        ensureValidStatusCode();
+        try {
+            return IOUtils.toCharBuffer(getContent(), mIncomingCharset, mHeaders.getContentLength());
         } finally {
             disconnect();
         }
@@ -100,35 +149,179 @@ public class RestResponse {
         }
     }
 
-    public void disconnect() {
+    public <T> ObjectIterator<T> parseAsIterator(Class<T> type) throws IOException {
+        return parseAsIterator((Type) type);
+    }
+
+    public <T> ObjectIterator<T> parseAsIterator(Type type) throws IOException {
+        ensureValidStatusCode();
+        boolean iterating = false;
+        try {
+            if (mParser == null) {
+                throw new IllegalStateException("Missing ObjectParser. See RestConnection.setParser() or include Gson dependency to default to GsonParser.");
+            }
+            if (!(mParser instanceof StreamingObjectParser)) {
+                throw new IllegalStateException("ObjectParser " + mParser.getClass().getName() + " does not implement StreamingObjectParser.");
+            }
+            ObjectIterator<T> iterator = ((StreamingObjectParser) mParser).iterateAndClose(getContent(), mIncomingCharset, type);
+            iterating = true;
+            return new ResponseIterator<>(iterator);
+        } finally {
+            if (!iterating) {
+                disconnect();
+            }
+        }
+    }
+
+    public <T> void forEach(Type type, OnObjectParsedListener<T> listener) throws IOException {
+        ObjectIterator<T> iterator = parseAsIterator(type);
+        try {
+            while (iterator.hasNext()) {
+                listener.onObjectParsed(iterator.next());
+            }
+        } finally {
+            iterator.close();
+        }
+    }
+
+    public <T> ObjectIterator<T> parseAsLineIterator(Class<T> type) throws IOException {
+        return parseAsLineIterator((Type) type);
+    }
+
+    public <T> ObjectIterator<T> parseAsLineIterator(Type type) throws IOException {
+        ensureValidStatusCode();
+        boolean iterating = false;
+        try {
+            if (mParser == null) {
+                throw new IllegalStateException("Missing ObjectParser. See RestConnection.setParser() or include Gson dependency to default to GsonParser.");
+            }
+            ObjectIterator<T> iterator = new LineObjectIterator<>(getContent(), mIncomingCharset, mParser, type);
+            iterating = true;
+            return new ResponseIterator<>(iterator);
+        } finally {
+            if (!iterating) {
+                disconnect();
+            }
+        }
+    }
+
+    public <T> void forEachLine(Type type, OnObjectParsedListener<T> listener) throws IOException {
+        ObjectIterator<T> iterator = parseAsLineIterator(type);
+        try {
+            while (iterator.hasNext()) {
+                listener.onObjectParsed(iterator.next());
+            }
+        } finally {
+            iterator.close();
+        }
+    }
+
+    /**
+     * Streams a multipart (e.g. multipart/mixed) response part by part. Closing the reader disconnects.
+     */
+    public MultipartReader parseAsMultipart() throws IOException {
+        ensureValidStatusCode();
+        boolean reading = false;
         try {
-            IOUtils.closeQuietly(getContent());
-        } catch (IOException e) { /* Ignore exception, attempting to disconnect. */ }
+            MediaType contentType = mHeaders.getContentType();
+            String boundary = contentType == null ? null : contentType.getParameter("boundary");
+            if (boundary == null || !"multipart".equals(contentType.getType())) {
+                throw new IOException("Expected a multipart response with a boundary but was " + contentType);
+            }
+            MultipartReader reader = new MultipartReader(getContent(), boundary) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        disconnect();
+                    }
+                }
+            };
+            reading = true;
+            return reader;
+        } finally {
+            if (!reading) {
+                disconnect();
+            }
+        }
+    }
+
+    public void disconnect() {
+        // Closing the decoder returns its Inflater to the pool right away instead of waiting for finalization
+        IOUtils.closeQuietly(mContent);
         mConnection.disconnect();
     }
     
     private InputStream decodeStream(InputStream in) throws IOException {
-        String encoding = mConnection.getContentEncoding();
-        boolean gzipped = encoding != null && encoding.equalsIgnoreCase(RestConnection.ENCODING_GZIP);
-        return gzipped ? new GZIPInputStream(in) : in;
-    }
-    
-    private String parseIncomingCharset(HttpURLConnection connection, String definedIncomingCharset) {
-        String contentType = connection.getHeaderField(RestConnection.HEADER_CONTENT_TYPE);
-        if (contentType != null) {
-            for (String param : contentType.replace(" ", "").split(";")) {
-                if (param.startsWith(RestConnection.KEY_CHARSET + "=")) {
-                    return param.split("=", 2)[1];
-                }
+        String encoding = mHeaders.get(RestConnection.HEADER_CONTENT_ENCODING);
+        if (in == null || encoding == null) {
+            return in;
+        }
+        // Codings are listed in the order they were applied, so undo them last to first
+        String[] codings = encoding.split(",");
+        for (int i = codings.length - 1; i >= 0; i--) {
+            String coding = codings[i].trim().toLowerCase(Locale.US);
+            RestConnection.ContentDecoder decoder = mDecoders == null ? null : mDecoders.get(coding);
+            if (decoder != null) {
+                in = decoder.decode(in);
+            } else if (DecompressingInputStream.isSupported(coding)) {
+                in = DecompressingInputStream.create(in, coding);
             }
         }
-        return definedIncomingCharset;
+        return in;
+    }
+    
+    private static String parseIncomingCharset(Headers headers, String definedIncomingCharset) {
+        MediaType contentType = headers.getContentType();
+        String charset = contentType == null ? null : contentType.getCharset();
+        return charset == null || charset.isEmpty() ? definedIncomingCharset : charset;
     }
     
     private void ensureValidStatusCode() throws IOException {
         if (mStatusCode / 100 != 2) {
-            String responseError = IOUtils.toString(decodeStream(mConnection.getErrorStream()), mIncomingCharset);
+            InputStream errorStream = mConnection.getErrorStream();
+            // There's no error stream when the server sent no body or the connection already failed
+            String responseError = errorStream == null ? ""
+                    : IOUtils.toString(decodeStream(errorStream), mIncomingCharset, mHeaders.getContentLength());
             throw new RestException(mStatusCode, responseError);
         }
     }
+    
+    
+    private final class ResponseIterator<T> implements ObjectIterator<T> {
+        
+        private final ObjectIterator<T> mIterator;
+        
+        ResponseIterator(ObjectIterator<T> iterator) {
+            mIterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() throws IOException {
+            boolean hasNext = false;
+            try {
+                hasNext = mIterator.hasNext();
+                return hasNext;
+            } finally {
+                if (!hasNext) {
+                    disconnect(); // Release the connection as soon as the last element is read
+                }
+            }
+        }
+
+        @Override
+        public T next() throws IOException {
+            return mIterator.next();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                mIterator.close();
+            } finally {
+                disconnect();
+            }
+        }
+    }
 }
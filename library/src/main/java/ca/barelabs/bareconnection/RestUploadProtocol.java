@@ -0,0 +1,105 @@
+package ca.barelabs.bareconnection;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * An UploadProtocol for servers that expose uploads as a REST resource under the properties' URL:
+ * <pre>
+ * POST   {url}/uploads                   {"fileName", "length", "partCount"} returns {"uploadId"}
+ * PUT    {url}/uploads/{uploadId}/parts/{partNumber}   the part's bytes, returns an ETag
+ * POST   {url}/uploads/{uploadId}/complete             {"parts": [ETags in part order]}
+ * DELETE {url}/uploads/{uploadId}
+ * </pre>
+ * Upload ids are used as path segments as is. A part's result is its ETag header, or the response
+ * body when there is none. Override newBuilder() to add authorization or other connection settings,
+ * or the methods themselves for other layouts.
+ */
+public class RestUploadProtocol implements UploadProtocol {
+
+    public static final String PATH_UPLOADS = "uploads";
+    public static final String PATH_PARTS = "parts";
+    public static final String PATH_COMPLETE = "complete";
+
+    private final RestProperties mProperties;
+
+    public RestUploadProtocol(RestProperties properties) {
+        if (properties == null || properties.getUrl() == null) {
+            throw new IllegalStateException("RestUploadProtocol must be created with RestProperties that have a URL");
+        }
+        mProperties = properties;
+    }
+
+    public RestProperties getProperties() {
+        return mProperties;
+    }
+
+    @Override
+    public String initiate(String fileName, long length, int partCount) throws IOException {
+        Upload upload = newConnection(PATH_UPLOADS).post(new Upload(fileName, length, partCount)).parseAs(Upload.class);
+        if (upload == null || upload.uploadId == null || upload.uploadId.isEmpty()) {
+            throw new IOException("Server didn't return an uploadId");
+        }
+        return upload.uploadId;
+    }
+
+    @Override
+    public String uploadPart(String uploadId, int partNumber, RepeatableContent part) throws IOException {
+        RestResponse response = newConnection(RestUtils.toPath(PATH_UPLOADS, uploadId, PATH_PARTS, String.valueOf(partNumber))).put(part);
+        String etag = response.getHeaders().get(RestConnection.HEADER_ETAG);
+        String body = response.parse(); // Checks the status code and releases the connection
+        return etag != null ? etag : body;
+    }
+
+    @Override
+    public void complete(String uploadId, List<String> parts) throws IOException {
+        newConnection(RestUtils.toPath(PATH_UPLOADS, uploadId, PATH_COMPLETE)).post(new Completion(parts)).parse();
+    }
+
+    @Override
+    public void abort(String uploadId) throws IOException {
+        newConnection(RestUtils.toPath(PATH_UPLOADS, uploadId)).delete().parse();
+    }
+
+    /**
+     * Returns a builder for the given path below the properties' path. ChunkedUpload retries
+     * failed parts itself, so the connection's own retries are left off.
+     */
+    protected RestConnection.Builder newBuilder(String path) {
+        String basePath = mProperties.getPath();
+        return new RestConnection.Builder()
+            .properties(mProperties)
+            .followRedirects(mProperties.isFollowRedirects())
+            .path(basePath == null || basePath.isEmpty() ? path : RestUtils.toPath(basePath, path))
+            .maxRetryAttempts(0);
+    }
+
+    private RestConnection newConnection(String path) {
+        return newBuilder(path).build();
+    }
+
+
+    private static final class Upload {
+
+        String fileName;
+        long length;
+        int partCount;
+        String uploadId;
+
+        Upload(String fileName, long length, int partCount) {
+            this.fileName = fileName;
+            this.length = length;
+            this.partCount = partCount;
+        }
+    }
+
+
+    private static final class Completion {
+
+        List<String> parts;
+
+        Completion(List<String> parts) {
+            this.parts = parts;
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package ca.barelabs.bareconnection;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.util.List;
 import java.util.Map;
 
@@ -26,44 +28,114 @@ public class RestUtils {
     
     public static <K,V> String toQuery(Map<K,V> params, String charset) throws UnsupportedEncodingException {
         StringBuilder sb = new StringBuilder();
-        if (params != null) {
-            for (K key : params.keySet()) {
-            	if (key != null) {
-                	appendToQuery(sb, key, params.get(key), charset);
-            	}
-            }
+        try {
+            encodeQuery(params, toCharset(charset), new PercentEncoder.StringSink(sb));
+        } catch (UnsupportedEncodingException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Never happens, StringBuilder doesn't throw
         }
         return sb.toString();
     }
     
     public static <K,V> String toQuery(MultiMap<K,V> params, String charset) throws UnsupportedEncodingException {
+        if (params == null) {
+            return "";
+        }
         StringBuilder sb = new StringBuilder();
-        if (params != null) {
-            for (K key : params.keySet()) {
-            	if (key != null) {
-                    List<V> values = params.get(key);
-                    if (values == null || values.isEmpty()) {
-                    	appendToQuery(sb, key, null, charset);
-                    } else {
-	                    for (V value : values) {
-	                    	appendToQuery(sb, key, value, charset);
-	                    }
-                    }
-            	}
-            }
+        try {
+            encodeQuery(params, toCharset(charset), new PercentEncoder.StringSink(sb));
+        } catch (UnsupportedEncodingException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Never happens, StringBuilder doesn't throw
         }
         return sb.toString();
     }
     
     public static <K,V> void appendToQuery(StringBuilder sb, K key, V value, String charset) throws UnsupportedEncodingException {
         if (sb != null && key != null) {
+            Charset cs = toCharset(charset);
             if (sb.length() > 0) {
-                sb.append("&");
+                sb.append('&');
             }
-            sb.append(URLEncoder.encode(key.toString(), charset) + "=");
+            PercentEncoder.encode(key.toString(), cs, sb);
+            sb.append('=');
             if (value != null) {
-            	sb.append(URLEncoder.encode(value.toString(), charset));
+                PercentEncoder.encode(value.toString(), cs, sb);
             }
         }
     }
+    
+    /**
+     * The number of bytes writeQuery() will write for params, a Map or a MultiMap.
+     */
+    static long getQueryLength(Object params, Charset charset) throws IOException {
+        PercentEncoder.LengthSink sink = new PercentEncoder.LengthSink();
+        encodeQuery(params, charset, sink);
+        return sink.getLength();
+    }
+    
+    /**
+     * Encodes params, a Map or a MultiMap, as a form body straight into out without building a String first.
+     * Closes out.
+     */
+    static void writeQuery(Object params, Charset charset, OutputStream out) throws IOException {
+        OutputStream buffered = BufferPool.newBufferedOutputStream(out);
+        try {
+            encodeQuery(params, charset, new PercentEncoder.StreamSink(buffered));
+        } finally {
+            buffered.close(); // Returns the buffer to the pool
+        }
+    }
+    
+    static Charset toCharset(String charset) throws UnsupportedEncodingException {
+        try {
+            return Charset.forName(charset);
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedEncodingException(charset);
+        }
+    }
+    
+    private static void encodeQuery(Object params, Charset charset, PercentEncoder.Sink sink) throws IOException {
+        if (params instanceof Map) {
+            boolean first = true;
+            for (Map.Entry<?,?> param : ((Map<?,?>) params).entrySet()) {
+                if (param.getKey() != null) {
+                    appendParam(sink, first, param.getKey(), param.getValue(), charset);
+                    first = false;
+                }
+            }
+        } else if (params instanceof MultiMap) {
+            encodeQuery((MultiMap<?,?>) params, charset, sink);
+        }
+    }
+    
+    private static <K,V> void encodeQuery(MultiMap<K,V> params, Charset charset, PercentEncoder.Sink sink) throws IOException {
+        boolean first = true;
+        for (K key : params.keySet()) {
+            if (key != null) {
+                List<V> values = params.get(key);
+                if (values == null || values.isEmpty()) {
+                    appendParam(sink, first, key, null, charset);
+                } else {
+                    for (int i = 0; i < values.size(); i++) {
+                        appendParam(sink, first && i == 0, key, values.get(i), charset);
+                    }
+                }
+                first = false;
+            }
+        }
+    }
+    
+    private static void appendParam(PercentEncoder.Sink sink, boolean first, Object key, Object value, Charset charset) throws IOException {
+        if (!first) {
+            sink.append('&');
+        }
+        PercentEncoder.encode(key.toString(), charset, sink);
+        sink.append('=');
+        if (value != null) {
+            PercentEncoder.encode(value.toString(), charset, sink);
+        }
+    }
 }
@@ -0,0 +1,180 @@
+package ca.barelabs.bareconnection;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Downloads a resource as several concurrent Range requests, each written to its own offset of a
+ * preallocated file. Falls back to RestConnection.downloadTo() when the server doesn't advertise
+ * byte ranges or the length is unknown.
+ * <p>
+ * Segments share the RestConnection, so its BackOffPolicy is used from several threads at once and must
+ * keep its state per thread, as ExponentialBackOffPolicy does. Connections are reused through
+ * HttpURLConnection's keep-alive cache, which holds http.maxConnections (default 5) idle connections per host.
+ */
+public class SegmentedDownload {
+
+    public static final int DEFAULT_SEGMENT_COUNT = 4;
+    public static final long DEFAULT_MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final String RANGE_UNIT_BYTES = "bytes";
+
+    private final RestConnection mConnection;
+    private int mSegmentCount = DEFAULT_SEGMENT_COUNT;
+    private long mMinSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+    private ExecutorService mExecutor;
+
+    public SegmentedDownload(RestConnection connection) {
+        if (connection == null) {
+            throw new IllegalStateException("SegmentedDownload must be created with a RestConnection");
+        }
+        mConnection = connection;
+    }
+
+    public int getSegmentCount() {
+        return mSegmentCount;
+    }
+
+    public void setSegmentCount(int segmentCount) {
+        mSegmentCount = segmentCount;
+    }
+
+    /**
+     * Smaller resources are split into fewer segments so each one is at least this large.
+     */
+    public long getMinSegmentSize() {
+        return mMinSegmentSize;
+    }
+
+    public void setMinSegmentSize(long minSegmentSize) {
+        mMinSegmentSize = minSegmentSize;
+    }
+
+    /**
+     * When null a fixed pool of one thread per segment is created and shut down for each download.
+     */
+    public ExecutorService getExecutor() {
+        return mExecutor;
+    }
+
+    public void setExecutor(ExecutorService executor) {
+        mExecutor = executor;
+    }
+
+    public long downloadTo(Path path) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put(RestConnection.HEADER_ACCEPT_ENCODING, RestConnection.ENCODING_IDENTITY);
+        long length;
+        boolean rangesAccepted;
+        String validator;
+        RestResponse response = mConnection.execute(RestConnection.METHOD_HEAD, null, headers);
+        try {
+            if (response.getStatusCode() / 100 != 2) {
+                throw new RestException(response.getStatusCode(), response.getConnection().getResponseMessage());
+            }
+            HttpURLConnection connection = response.getConnection();
+            length = connection.getContentLengthLong();
+            rangesAccepted = RANGE_UNIT_BYTES.equalsIgnoreCase(connection.getHeaderField(RestConnection.HEADER_ACCEPT_RANGES));
+            validator = FileDownload.getValidator(connection);
+        } finally {
+            response.disconnect();
+        }
+        int segmentCount = getSegmentCount(length);
+        if (!rangesAccepted || segmentCount < 2) {
+            return mConnection.downloadTo(path);
+        }
+        RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw");
+        try {
+            raf.setLength(length);
+            FileChannel file = raf.getChannel();
+            ExecutorService executor = mExecutor != null ? mExecutor : Executors.newFixedThreadPool(segmentCount);
+            List<FileDownload> downloads = new ArrayList<>(segmentCount);
+            try {
+                List<Segment> segments = new ArrayList<>(segmentCount);
+                long segmentSize = length / segmentCount;
+                for (int i = 0; i < segmentCount; i++) {
+                    long start = i * segmentSize;
+                    long end = i == segmentCount - 1 ? length - 1 : start + segmentSize - 1;
+                    FileDownload download = new FileDownload(mConnection, file, start, end, validator);
+                    downloads.add(download);
+                    segments.add(new Segment(download, length));
+                }
+                IOUtils.invokeAll(executor, segments);
+            } finally {
+                if (executor != mExecutor) {
+                    executor.shutdownNow();
+                }
+            }
+            // The file was preallocated, so its size says nothing. Count what the segments actually wrote
+            long written = 0;
+            for (FileDownload download : downloads) {
+                written += download.getTransferred();
+            }
+            if (written != length) {
+                throw new IOException("Downloaded " + written + " bytes but expected " + length);
+            }
+        } finally {
+            raf.close();
+        }
+        return length;
+    }
+
+    private int getSegmentCount(long length) {
+        if (length <= 0) {
+            return 1;
+        }
+        long bySize = mMinSegmentSize > 0 ? (length + mMinSegmentSize - 1) / mMinSegmentSize : length;
+        return (int) Math.max(1, Math.min(mSegmentCount, bySize));
+    }
+
+
+    private final class Segment implements Callable<Void> {
+
+        private final FileDownload mDownload;
+        private final long mLength;
+
+        Segment(FileDownload download, long length) {
+            mDownload = download;
+            mLength = length;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            BackOffPolicy backOffPolicy = mConnection.getBackOffPolicy();
+            if (backOffPolicy != null) {
+                backOffPolicy.reset(); // Per thread, so each segment gets its own sequence
+            }
+            int attempts = 0;
+            while (true) {
+                try {
+                    mDownload.transfer();
+                    break;
+                } catch (RestException e) {
+                    throw e; // Status codes were already retried by execute()
+                } catch (IOException e) {
+                    // Only this segment starts again, from the last byte it wrote, and only if its body was cut off
+                    if (!mDownload.isResumable() || attempts++ >= mConnection.getMaxRetryAttempts() || Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                    if (backOffPolicy != null && !backOffPolicy.backOff()) {
+                        throw e;
+                    }
+                }
+            }
+            if (mDownload.getTotalLength() != mLength) {
+                throw new IOException("Resource length changed from " + mLength + " to " + mDownload.getTotalLength());
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package ca.barelabs.bareconnection;
+
+
+public class ServerSentEvent {
+
+    public static final String DEFAULT_EVENT = "message";
+
+    private final String mId;
+    private final String mEvent;
+    private final String mData;
+
+    public ServerSentEvent(String id, String event, String data) {
+        mId = id;
+        mEvent = event;
+        mData = data;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public String getEvent() {
+        return mEvent;
+    }
+
+    public String getData() {
+        return mData;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerSentEvent(id=" + mId + ", event=" + mEvent + ", data=" + mData + ")";
+    }
+}
@@ -0,0 +1,14 @@
+package ca.barelabs.bareconnection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+
+public interface StreamingObjectParser extends ObjectParser {
+
+    /**
+     * Binds the elements of an array one at a time. The stream is closed once the
+     * iterator is exhausted or closed.
+     */
+    <T> ObjectIterator<T> iterateAndClose(InputStream in, String charset, Type elementType) throws IOException;
+}
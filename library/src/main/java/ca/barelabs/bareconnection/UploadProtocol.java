@@ -0,0 +1,28 @@
+package ca.barelabs.bareconnection;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The server side of a ChunkedUpload: start an upload, send each part, then commit or abandon it.
+ * uploadPart() is called concurrently from several threads and may be called again for a part that failed.
+ */
+public interface UploadProtocol {
+
+    /**
+     * Returns the id the server assigned to this upload.
+     */
+    String initiate(String fileName, long length, int partCount) throws IOException;
+
+    /**
+     * Part numbers start at 1. Returns whatever the server needs back in complete(), e.g. the part's ETag.
+     */
+    String uploadPart(String uploadId, int partNumber, RepeatableContent part) throws IOException;
+
+    /**
+     * Receives the uploadPart() results ordered by part number.
+     */
+    void complete(String uploadId, List<String> parts) throws IOException;
+
+    void abort(String uploadId) throws IOException;
+}
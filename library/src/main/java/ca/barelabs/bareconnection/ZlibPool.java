@@ -0,0 +1,105 @@
+package ca.barelabs.bareconnection;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reuses Deflaters and Inflaters so each request doesn't allocate native zlib state that is only freed by
+ * finalization. One pool per kind and format; anything released beyond MAX_IDLE is ended immediately.
+ */
+abstract class ZlibPool<T> {
+
+    static final int MAX_IDLE = 16;
+
+    private static final ZlibPool<Deflater> RAW_DEFLATERS = newDeflaterPool(true);
+    private static final ZlibPool<Deflater> ZLIB_DEFLATERS = newDeflaterPool(false);
+    private static final ZlibPool<Inflater> RAW_INFLATERS = newInflaterPool(true);
+    private static final ZlibPool<Inflater> ZLIB_INFLATERS = newInflaterPool(false);
+
+    private final Queue<T> mIdle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mIdleCount = new AtomicInteger();
+
+    /**
+     * @param nowrap true for raw deflate data (as inside gzip), false for the zlib format
+     */
+    static ZlibPool<Deflater> deflaters(boolean nowrap) {
+        return nowrap ? RAW_DEFLATERS : ZLIB_DEFLATERS;
+    }
+
+    /**
+     * @param nowrap true for raw deflate data (as inside gzip), false for the zlib format
+     */
+    static ZlibPool<Inflater> inflaters(boolean nowrap) {
+        return nowrap ? RAW_INFLATERS : ZLIB_INFLATERS;
+    }
+
+    T acquire() {
+        T value = mIdle.poll();
+        if (value == null) {
+            return create();
+        }
+        mIdleCount.decrementAndGet();
+        return value;
+    }
+
+    void release(T value) {
+        if (mIdleCount.incrementAndGet() > MAX_IDLE) {
+            mIdleCount.decrementAndGet();
+            end(value);
+            return;
+        }
+        reset(value);
+        mIdle.offer(value);
+    }
+
+    int getIdleCount() {
+        return mIdleCount.get();
+    }
+
+    abstract T create();
+
+    abstract void reset(T value);
+
+    abstract void end(T value);
+
+    private static ZlibPool<Deflater> newDeflaterPool(final boolean nowrap) {
+        return new ZlibPool<Deflater>() {
+            @Override
+            Deflater create() {
+                return new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+            }
+
+            @Override
+            void reset(Deflater deflater) {
+                deflater.reset();
+            }
+
+            @Override
+            void end(Deflater deflater) {
+                deflater.end();
+            }
+        };
+    }
+
+    private static ZlibPool<Inflater> newInflaterPool(final boolean nowrap) {
+        return new ZlibPool<Inflater>() {
+            @Override
+            Inflater create() {
+                return new Inflater(nowrap);
+            }
+
+            @Override
+            void reset(Inflater inflater) {
+                inflater.reset();
+            }
+
+            @Override
+            void end(Inflater inflater) {
+                inflater.end();
+            }
+        };
+    }
+}
@@ -0,0 +1,249 @@
+package ca.barelabs.bareconnection;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+public class BinaryObjectParserTest {
+
+    private static final BinaryObjectParser[] PARSERS = {new CborParser(), new MessagePackParser()};
+
+    @Test
+    public void roundTripsObjects() throws IOException {
+        for (BinaryObjectParser parser : PARSERS) {
+            Item item = newItem(7);
+            Item parsed = parser.parseAndClose(new ByteArrayInputStream(save(parser, item)), null, Item.class);
+            assertEquals(parser.getClass().getSimpleName(), item, parsed);
+        }
+    }
+
+    @Test
+    public void iteratesArrayElements() throws IOException {
+        for (BinaryObjectParser parser : PARSERS) {
+            List<Item> items = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                items.add(newItem(i));
+            }
+            ObjectIterator<Item> iterator = parser.iterateAndClose(new ByteArrayInputStream(save(parser, items)), null, Item.class);
+            List<Item> parsed = new ArrayList<>();
+            while (iterator.hasNext()) {
+                parsed.add(iterator.next());
+            }
+            assertEquals(parser.getClass().getSimpleName(), items, parsed);
+        }
+    }
+
+    @Test
+    public void parsesIso88591String() throws IOException {
+        for (BinaryObjectParser parser : PARSERS) {
+            Item item = newItem(300);
+            String value = new String(save(parser, item), StandardCharsets.ISO_8859_1);
+            assertEquals(parser.getClass().getSimpleName(), item, parser.<Item>parse(value, Item.class));
+        }
+    }
+
+    @Test
+    public void rejectsStringThatWasNotReadAsBytes() {
+        for (BinaryObjectParser parser : PARSERS) {
+            try {
+                parser.parse("€", Item.class);
+                fail(parser.getClass().getSimpleName() + " accepted a char that isn't a byte");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void writesRawJsonValues() throws IOException {
+        String json = "{\"name\":\"raw\",\"values\":[1,2.5,null,true],\"nested\":{\"empty\":[]}}";
+        for (BinaryObjectParser parser : PARSERS) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JsonWriter writer = parser.newWriter(out);
+            writer.beginArray();
+            writer.jsonValue(json);
+            writer.jsonValue(null);
+            writer.endArray();
+            writer.close();
+            List<JsonElement> parsed = parser.parseAndClose(new ByteArrayInputStream(out.toByteArray()), null,
+                    new TypeToken<List<JsonElement>>() {}.getType());
+            assertEquals(parser.getClass().getSimpleName(), new JsonParser().parse(json), parsed.get(0));
+            assertEquals(JsonNull.INSTANCE, parsed.get(1));
+        }
+    }
+
+    @Test
+    public void rejectsMalformedRawJson() throws IOException {
+        for (BinaryObjectParser parser : PARSERS) {
+            JsonWriter writer = parser.newWriter(new ByteArrayOutputStream());
+            try {
+                writer.jsonValue("{\"unterminated\":");
+                fail(parser.getClass().getSimpleName() + " accepted malformed JSON");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void bindsMapsBytesAndUnknownFields() throws IOException {
+        for (BinaryObjectParser parser : PARSERS) {
+            Map<String, Object> source = new LinkedHashMap<>();
+            source.put("counts", Collections.singletonMap("7", 3));
+            source.put("names", Collections.singletonMap("k", "v"));
+            source.put("data", new byte[] {1, -2, 127});
+            source.put("unknown", Arrays.asList(Collections.singletonMap("deep", Arrays.asList(1, 2.5, "x")), null));
+            source.put("huge", new BigInteger("123456789012345678901234567890"));
+            Holder holder = parser.parseAndClose(new ByteArrayInputStream(save(parser, source)), null, Holder.class);
+            String name = parser.getClass().getSimpleName();
+            assertEquals(name, Collections.singletonMap(7, 3L), holder.counts);
+            assertEquals(name, Collections.singletonMap("k", "v"), holder.names);
+            assertArrayEquals(name, new byte[] {1, -2, 127}, holder.data);
+            assertEquals(name, new BigInteger("123456789012345678901234567890"), holder.huge);
+        }
+    }
+
+    @Test
+    public void emptyBodyHasNoValue() throws IOException {
+        for (BinaryObjectParser parser : PARSERS) {
+            assertNull(parser.parseAndClose(new ByteArrayInputStream(new byte[0]), null, Item.class));
+            assertFalse(parser.iterateAndClose(new ByteArrayInputStream(new byte[0]), null, Item.class).hasNext());
+        }
+    }
+
+    @Test
+    public void rejectsLengthsLongerThanTheStream() throws IOException {
+        // A 2 GB string header followed by three bytes must fail at the end of the data, not allocate
+        byte[][] bodies = {
+            {0x7a, (byte) 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xf0, 'a', 'b', 'c'},
+            {(byte) 0xdb, (byte) 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xf0, 'a', 'b', 'c'},
+        };
+        for (int i = 0; i < PARSERS.length; i++) {
+            try {
+                PARSERS[i].parseAndClose(new ByteArrayInputStream(bodies[i]), null, String.class);
+                fail(PARSERS[i].getClass().getSimpleName() + " accepted a truncated string");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    static Item newItem(int id) {
+        Item item = new Item();
+        item.id = id;
+        item.name = "item-" + id + " é中";
+        item.price = id * 1.25;
+        item.active = id % 2 == 0;
+        item.tags = Arrays.asList("a", "b" + id);
+        item.big = id * 100000000000L;
+        return item;
+    }
+
+    @Test
+    public void saveLeavesTheStreamOpenWhenAnAdapterFails() throws IOException {
+        Gson gson = new GsonBuilder()
+            .registerTypeAdapter(Holder.class, new TypeAdapter<Holder>() {
+                @Override
+                public void write(JsonWriter out, Holder value) throws IOException {
+                    out.beginObject().name("partial");
+                    throw new IllegalStateException("Adapter failed");
+                }
+
+                @Override
+                public Holder read(JsonReader in) {
+                    throw new UnsupportedOperationException();
+                }
+            })
+            .create();
+        for (BinaryObjectParser parser : new BinaryObjectParser[] {new CborParser(gson), new MessagePackParser(gson)}) {
+            final boolean[] closed = new boolean[1];
+            ByteArrayOutputStream out = new ByteArrayOutputStream() {
+                @Override
+                public void close() {
+                    closed[0] = true;
+                }
+            };
+            try {
+                parser.saveAndClose(new Holder(), out, null);
+                fail("Expected an IOException");
+            } catch (IOException e) {
+                assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IllegalStateException);
+            }
+            assertEquals(0, out.size());
+            assertFalse(closed[0]);
+        }
+    }
+
+    private static byte[] save(BinaryObjectParser parser, Object object) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        parser.saveAndClose(object, out, null);
+        return out.toByteArray();
+    }
+
+
+    static final class Holder {
+
+        Map<Integer, Long> counts;
+        Map<String, String> names;
+        byte[] data;
+        BigInteger huge;
+    }
+
+
+    static final class Item {
+
+        int id;
+        String name;
+        double price;
+        boolean active;
+        List<String> tags;
+        long big;
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Item)) {
+                return false;
+            }
+            Item other = (Item) o;
+            return id == other.id && name.equals(other.name) && price == other.price && active == other.active
+                    && tags.equals(other.tags) && big == other.big;
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return "Item " + id;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package ca.barelabs.bareconnection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Compares GsonParser with CborParser and MessagePackParser on a list of small objects: encoded
+ * size, save and parse time. Not a test, run it directly:
+ * java ca.barelabs.bareconnection.BinaryParserBenchmark [items] [rounds]
+ */
+public final class BinaryParserBenchmark {
+
+    private BinaryParserBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int items = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        List<BinaryObjectParserTest.Item> list = new ArrayList<>(items);
+        for (int i = 0; i < items; i++) {
+            list.add(BinaryObjectParserTest.newItem(i));
+        }
+        ObjectParser[] parsers = {new GsonParser(), new CborParser(), new MessagePackParser()};
+        for (ObjectParser parser : parsers) {
+            run(parser, list, Math.max(1, rounds / 3), false); // Warm up
+        }
+        for (ObjectParser parser : parsers) {
+            run(parser, list, rounds, true);
+        }
+    }
+
+    private static void run(ObjectParser parser, List<BinaryObjectParserTest.Item> list, int rounds, boolean report)
+            throws IOException {
+        long saveNanos = 0;
+        long parseNanos = 0;
+        int size = 0;
+        for (int round = 0; round < rounds; round++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long start = System.nanoTime();
+            parser.saveAndClose(list, out, "UTF-8");
+            saveNanos += System.nanoTime() - start;
+            byte[] bytes = out.toByteArray();
+            size = bytes.length;
+            start = System.nanoTime();
+            List<BinaryObjectParserTest.Item> parsed = parser.parseAndClose(new ByteArrayInputStream(bytes), "UTF-8",
+                    new TypeToken<List<BinaryObjectParserTest.Item>>() {}.getType());
+            parseNanos += System.nanoTime() - start;
+            if (parsed.size() != list.size()) {
+                throw new IllegalStateException("Parsed " + parsed.size() + " of " + list.size());
+            }
+        }
+        if (report) {
+            System.out.printf("%-18s %9d bytes  save %7.2f ms  parse %7.2f ms%n", parser.getClass().getSimpleName(),
+                    size, saveNanos / 1e6 / rounds, parseNanos / 1e6 / rounds);
+        }
+    }
+}
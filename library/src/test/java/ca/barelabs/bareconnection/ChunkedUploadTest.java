@@ -0,0 +1,174 @@
+package ca.barelabs.bareconnection;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ChunkedUploadTest {
+
+    private static final String UPLOAD_ID = "u1";
+    private static final int PART_SIZE = 1000;
+
+    private HttpServer mServer;
+    private File mFile;
+    private byte[] mContent;
+    private final Map<Integer, byte[]> mParts = new ConcurrentHashMap<>();
+    private final AtomicInteger mPartAttempts = new AtomicInteger();
+    private final AtomicBoolean mFailed = new AtomicBoolean();
+    private volatile int mFailingPart = 3;
+    private volatile boolean mAlwaysFail;
+    private volatile List<String> mCompletedParts;
+    private volatile boolean mAborted;
+
+    @Before
+    public void setUp() throws IOException {
+        mContent = new byte[PART_SIZE * 4 + 123];
+        new Random(1).nextBytes(mContent);
+        mFile = File.createTempFile("upload", ".bin");
+        OutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(mContent);
+        } finally {
+            out.close();
+        }
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/api/uploads", new UploadHandler());
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        mFile.delete();
+    }
+
+    @Test
+    public void uploadsPartsAndRetriesAFailedPart() throws IOException {
+        ChunkedUpload upload = newUpload();
+        assertEquals(UPLOAD_ID, upload.upload(mFile));
+        assertTrue("The failing part should have been sent", mFailed.get());
+        assertEquals(6, mPartAttempts.get()); // 5 parts, one of them twice
+        assertEquals(Arrays.asList("\"etag-1\"", "\"etag-2\"", "\"etag-3\"", "\"etag-4\"", "\"etag-5\""), mCompletedParts);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        for (int i = 1; i <= 5; i++) {
+            received.write(mParts.get(i));
+        }
+        assertArrayEquals(mContent, received.toByteArray());
+    }
+
+    @Test
+    public void abortsWhenAPartKeepsFailing() throws IOException {
+        mFailingPart = 2;
+        mAlwaysFail = true;
+        ChunkedUpload upload = newUpload();
+        upload.setMaxRetryAttempts(2);
+        try {
+            upload.upload(mFile);
+            fail("Expected the upload to fail");
+        } catch (RestException e) {
+            assertEquals(RestConnection.SC_UNAVAILABLE, e.getStatusCode());
+        }
+        assertTrue("The upload should have been aborted", mAborted);
+    }
+
+    private ChunkedUpload newUpload() {
+        RestProperties properties = new RestProperties.Builder()
+            .url("http://127.0.0.1:" + mServer.getAddress().getPort())
+            .path("api")
+            .build();
+        ChunkedUpload upload = new ChunkedUpload(new RestUploadProtocol(properties));
+        upload.setPartSize(PART_SIZE);
+        upload.setParallelism(3);
+        upload.setBackOffPolicyFactory(new ExponentialBackOffPolicy.Builder().initialSleep(10).maxSleep(1000));
+        return upload;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int statusCode, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set(RestConnection.HEADER_CONTENT_TYPE, RestConnection.CONTENT_TYPE_JSON);
+        exchange.sendResponseHeaders(statusCode, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            exchange.getResponseBody().write(bytes);
+        }
+        exchange.close();
+    }
+
+
+    private final class UploadHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            byte[] body = readAll(exchange.getRequestBody());
+            // path is "", "api", "uploads"[, id[, "parts", number | "complete"]]
+            if (path.length == 3 && RestConnection.METHOD_POST.equals(method)) {
+                JsonObject request = new Gson().fromJson(new String(body, StandardCharsets.UTF_8), JsonObject.class);
+                assertEquals(mFile.getName(), request.get("fileName").getAsString());
+                assertEquals(5, request.get("partCount").getAsInt());
+                respond(exchange, RestConnection.SC_CREATED, "{\"uploadId\":\"" + UPLOAD_ID + "\"}");
+            } else if (path.length == 6 && RestConnection.METHOD_PUT.equals(method)) {
+                int partNumber = Integer.parseInt(path[5]);
+                mPartAttempts.incrementAndGet();
+                if (partNumber == mFailingPart && (mFailed.compareAndSet(false, true) || mAlwaysFail)) {
+                    respond(exchange, RestConnection.SC_UNAVAILABLE, "");
+                    return;
+                }
+                mParts.put(partNumber, body);
+                exchange.getResponseHeaders().set(RestConnection.HEADER_ETAG, "\"etag-" + partNumber + "\"");
+                respond(exchange, RestConnection.SC_OK, "");
+            } else if (path.length == 5 && RestConnection.METHOD_POST.equals(method)) {
+                JsonObject request = new Gson().fromJson(new String(body, StandardCharsets.UTF_8), JsonObject.class);
+                List<String> parts = new ArrayList<>();
+                for (int i = 0; i < request.getAsJsonArray("parts").size(); i++) {
+                    parts.add(request.getAsJsonArray("parts").get(i).getAsString());
+                }
+                mCompletedParts = parts;
+                respond(exchange, RestConnection.SC_OK, "");
+            } else if (path.length == 4 && RestConnection.METHOD_DELETE.equals(method)) {
+                mAborted = true;
+                respond(exchange, RestConnection.SC_NO_CONTENT, "");
+            } else {
+                respond(exchange, RestConnection.SC_NOT_FOUND, "");
+            }
+        }
+    }
+}
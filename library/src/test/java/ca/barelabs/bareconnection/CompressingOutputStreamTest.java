@@ -0,0 +1,102 @@
+package ca.barelabs.bareconnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Test;
+
+public class CompressingOutputStreamTest {
+
+    @Test
+    public void writesGzipThatTheJdkReads() throws IOException {
+        String text = IOUtilsTest.repeat("compressible body, ", 5000);
+        byte[] encoded = encode(text, RestConnection.ENCODING_GZIP);
+        assertEquals(text, readAll(new GZIPInputStream(new ByteArrayInputStream(encoded))));
+    }
+
+    @Test
+    public void writesZlibDeflate() throws IOException {
+        String text = IOUtilsTest.repeat("deflate body, ", 5000);
+        byte[] encoded = encode(text, RestConnection.ENCODING_DEFLATE);
+        assertEquals(text, readAll(new InflaterInputStream(new ByteArrayInputStream(encoded))));
+    }
+
+    @Test
+    public void releasesTheDeflaterWhenTheHeaderWriteFails() throws IOException {
+        ZlibPool<Deflater> pool = ZlibPool.deflaters(true);
+        // Leaves at least one idle Deflater, so create() takes it from the pool and must hand it back
+        pool.release(pool.acquire());
+        int idle = pool.getIdleCount();
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        try {
+            CompressingOutputStream.create(failing, RestConnection.ENCODING_GZIP);
+            fail("Expected the header write to fail");
+        } catch (IOException e) {
+            assertEquals("Connection reset", e.getMessage());
+        }
+        assertEquals(idle, pool.getIdleCount());
+    }
+
+    @Test
+    public void releaseLeavesTheBodyUnterminated() throws IOException {
+        ZlibPool<Deflater> pool = ZlibPool.deflaters(true);
+        pool.release(pool.acquire());
+        int idle = pool.getIdleCount();
+        final boolean[] closed = new boolean[1];
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        CompressingOutputStream compressing = CompressingOutputStream.create(out, RestConnection.ENCODING_GZIP);
+        assertEquals(idle - 1, pool.getIdleCount());
+        compressing.write(new byte[] {1, 2, 3});
+        compressing.release();
+        compressing.close(); // No-op once released, so no trailer follows
+        assertEquals(idle, pool.getIdleCount());
+        assertEquals(10, out.size()); // Just the header, nothing deflated was flushed
+        assertFalse(closed[0]);
+    }
+
+    private static byte[] encode(String text, String encoding) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream compressing = CompressingOutputStream.create(out, encoding);
+        try {
+            compressing.write(text.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            compressing.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ca.barelabs.bareconnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import org.junit.Test;
+
+public class DecompressingInputStreamTest {
+
+    @Test
+    public void decodesConcatenatedGzipMembers() throws IOException {
+        byte[] members = concat(gzip("hello "), gzip("world"));
+        assertEquals("hello world", decode(new ByteArrayInputStream(members), RestConnection.ENCODING_GZIP, 8192));
+    }
+
+    @Test
+    public void decodesConcatenatedGzipMembersReadByteByByte() throws IOException {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            large.append(i).append(',');
+        }
+        byte[] members = concat(gzip("first "), gzip(large.toString()), gzip(""), gzip(" last"));
+        assertEquals("first " + large + " last", decode(new TrickleInputStream(members, 1), RestConnection.ENCODING_GZIP, 1));
+    }
+
+    @Test
+    public void ignoresTrailingBytesThatAreNotAMember() throws IOException {
+        byte[] data = concat(gzip("hello"), new byte[] {0, 0, 0});
+        assertEquals("hello", decode(new ByteArrayInputStream(data), RestConnection.ENCODING_GZIP, 8192));
+    }
+
+    @Test
+    public void rejectsCorruptTrailer() throws IOException {
+        byte[] data = gzip("hello");
+        data[data.length - 5] ^= 1;
+        try {
+            decode(new ByteArrayInputStream(data), RestConnection.ENCODING_GZIP, 8192);
+            fail("Expected a corrupt trailer to be rejected");
+        } catch (ZipException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void decodesZlibAndRawDeflate() throws IOException {
+        ByteArrayOutputStream zlib = new ByteArrayOutputStream();
+        write(new DeflaterOutputStream(zlib), "zlib body");
+        assertEquals("zlib body", decode(new ByteArrayInputStream(zlib.toByteArray()), RestConnection.ENCODING_DEFLATE, 8192));
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        write(new DeflaterOutputStream(raw, new Deflater(Deflater.DEFAULT_COMPRESSION, true)), "raw body");
+        assertEquals("raw body", decode(new ByteArrayInputStream(raw.toByteArray()), RestConnection.ENCODING_DEFLATE, 8192));
+    }
+
+    private static String decode(InputStream in, String encoding, int readSize) throws IOException {
+        InputStream decoded = DecompressingInputStream.create(in, encoding);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[readSize];
+            int read;
+            while ((read = decoded.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            decoded.close();
+        }
+    }
+
+    private static byte[] gzip(String value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(new GZIPOutputStream(out), value);
+        return out.toByteArray();
+    }
+
+    private static void write(OutputStream out, String value) throws IOException {
+        out.write(value.getBytes(StandardCharsets.UTF_8));
+        out.close();
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+}
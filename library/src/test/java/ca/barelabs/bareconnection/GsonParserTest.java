@@ -0,0 +1,72 @@
+package ca.barelabs.bareconnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+public class GsonParserTest {
+
+    @Test
+    public void saveAndCloseWritesJson() throws IOException {
+        ClosingOutputStream out = new ClosingOutputStream();
+        new GsonParser().saveAndClose(Arrays.asList(1, 2, 3), out, "UTF-8");
+        assertEquals("[1,2,3]", out.toString("UTF-8"));
+        assertTrue(out.mClosed);
+    }
+
+    @Test
+    public void saveAndCloseReportsAdapterFailures() throws IOException {
+        GsonParser parser = new GsonParser(new GsonBuilder()
+            .registerTypeAdapter(Failing.class, new TypeAdapter<Failing>() {
+                @Override
+                public void write(JsonWriter out, Failing value) throws IOException {
+                    out.beginObject().name("partial");
+                    throw new IllegalStateException("Adapter failed");
+                }
+
+                @Override
+                public Failing read(JsonReader in) {
+                    throw new UnsupportedOperationException();
+                }
+            })
+            .create());
+        ClosingOutputStream out = new ClosingOutputStream();
+        try {
+            parser.saveAndClose(new Failing(), out, "UTF-8");
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // The adapter's failure, not the "Incomplete document" from closing the writer
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IllegalStateException);
+        }
+        // Nothing flushed and the stream left open, so a request body isn't terminated as if it were complete
+        assertEquals(0, out.size());
+        assertFalse(out.mClosed);
+    }
+
+
+    static final class Failing {
+    }
+
+
+    private static final class ClosingOutputStream extends ByteArrayOutputStream {
+
+        boolean mClosed;
+
+        @Override
+        public void close() {
+            mClosed = true;
+        }
+    }
+}
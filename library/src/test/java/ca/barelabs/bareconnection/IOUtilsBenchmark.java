@@ -0,0 +1,64 @@
+package ca.barelabs.bareconnection;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares IOUtils.toString() with a plain InputStreamReader and StringBuilder loop, with and
+ * without a Content-Length hint. Not a test, run it directly:
+ * java ca.barelabs.bareconnection.IOUtilsBenchmark [kilobytes] [rounds]
+ */
+public final class IOUtilsBenchmark {
+
+    private IOUtilsBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int kilobytes = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        String text = IOUtilsTest.repeat("{\"name\":\"café €\",\"id\":12345}, ", kilobytes * 1024 / 32);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        for (int pass = 0; pass < 2; pass++) {
+            boolean report = pass == 1;
+            run("reader", bytes, rounds, report, -2);
+            run("toString", bytes, rounds, report, -1);
+            run("toString+hint", bytes, rounds, report, bytes.length);
+        }
+    }
+
+    private static void run(String name, byte[] bytes, int rounds, boolean report, long expectedLength)
+            throws IOException {
+        long nanos = 0;
+        for (int round = 0; round < rounds; round++) {
+            InputStream in = new ByteArrayInputStream(bytes);
+            long start = System.nanoTime();
+            String text = expectedLength == -2 ? readAll(in) : IOUtils.toString(in, "UTF-8", expectedLength);
+            nanos += System.nanoTime() - start;
+            if (text.isEmpty()) {
+                throw new IllegalStateException("Nothing decoded");
+            }
+        }
+        if (report) {
+            System.out.printf("%-14s %9d bytes  %7.2f ms%n", name, bytes.length, nanos / 1e6 / rounds);
+        }
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        Reader reader = new InputStreamReader(in, "UTF-8");
+        try {
+            StringBuilder builder = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                builder.append(buffer, 0, read);
+            }
+            return builder.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package ca.barelabs.bareconnection;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class IOUtilsTest {
+
+    // 1, 2, 3 and 4 byte UTF-8 sequences, the last one a surrogate pair
+    private static final String MIXED = "aé€😀";
+
+    @Test
+    public void decodesSequencesSplitAcrossReads() throws IOException {
+        String text = repeat(MIXED, 5000);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        for (int maxRead : new int[] {1, 2, 3, 5, 4095, 8191}) {
+            assertEquals("maxRead " + maxRead, text, IOUtils.toString(new TrickleInputStream(bytes, maxRead), "UTF-8"));
+        }
+    }
+
+    @Test
+    public void decodesSequencesSplitAcrossTheReadBuffer() throws IOException {
+        // Shift the text so that each kind of sequence straddles the 8K read buffer once
+        for (int shift = 0; shift < 10; shift++) {
+            String text = repeat("x", shift) + repeat(MIXED, 3000);
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            assertEquals("shift " + shift, text, IOUtils.toString(new ByteArrayInputStream(bytes), "UTF-8"));
+        }
+    }
+
+    @Test
+    public void toCharBufferGrowsPastAWrongHint() throws IOException {
+        String text = repeat(MIXED, 4000);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        for (long expectedLength : new long[] {-1, 0, 1, bytes.length / 3, bytes.length, bytes.length * 4L}) {
+            CharBuffer chars = IOUtils.toCharBuffer(new TrickleInputStream(bytes, 7), "UTF-8", expectedLength);
+            assertEquals("expectedLength " + expectedLength, text, chars.toString());
+        }
+    }
+
+    @Test
+    public void replacesMalformedInputLikeAReader() throws IOException {
+        byte[] truncated = {'o', 'k', (byte) 0xe2, (byte) 0x82};
+        assertEquals("ok�", IOUtils.toString(new TrickleInputStream(truncated, 1), "UTF-8"));
+        byte[] latin1 = "café".getBytes(StandardCharsets.ISO_8859_1);
+        assertEquals("café", IOUtils.toString(new TrickleInputStream(latin1, 1), "ISO-8859-1"));
+    }
+
+    @Test
+    public void toByteArrayReadsPastAWrongHint() throws IOException {
+        byte[] bytes = new byte[50000];
+        new Random(3).nextBytes(bytes);
+        for (long expectedLength : new long[] {-1, 0, 100, bytes.length, bytes.length + 1}) {
+            assertArrayEquals(bytes, IOUtils.toByteArray(new TrickleInputStream(bytes, 1000), expectedLength));
+        }
+    }
+
+    @Test
+    public void copyExactlyStopsAtCountAndFailsShort() throws IOException {
+        byte[] bytes = new byte[20000];
+        new Random(5).nextBytes(bytes);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOUtils.copyExactly(new TrickleInputStream(bytes, 1000), out, 12345);
+        assertArrayEquals(Arrays.copyOf(bytes, 12345), out.toByteArray());
+        try {
+            IOUtils.copyExactly(new TrickleInputStream(bytes, 1000), new ByteArrayOutputStream(), bytes.length + 1);
+            fail("Expected the short stream to fail");
+        } catch (EOFException e) {
+            assertEquals("Stream ended after 20000 of 20001 bytes", e.getMessage());
+        }
+    }
+
+    @Test
+    public void invokeAllKeepsTaskOrder() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<Callable<Integer>> tasks = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                final int value = i;
+                tasks.add(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws InterruptedException {
+                        Thread.sleep(30 - value * 5); // Later tasks finish first
+                        return value;
+                    }
+                });
+            }
+            assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), IOUtils.invokeAll(executor, tasks));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void invokeAllCancelsTheRestOnTheFirstFailure() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        try {
+            List<Callable<Integer>> tasks = new ArrayList<>();
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws InterruptedException {
+                    try {
+                        Thread.sleep(60000);
+                    } finally {
+                        interrupted.countDown();
+                    }
+                    return 0;
+                }
+            });
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    throw new IOException("Part failed");
+                }
+            });
+            long start = System.nanoTime();
+            try {
+                IOUtils.invokeAll(executor, tasks);
+                fail("Expected the failing task's exception");
+            } catch (IOException e) {
+                assertEquals("Part failed", e.getMessage());
+            }
+            // Didn't wait behind the first task, and the first task was interrupted
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 10000);
+            assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    static String repeat(String value, int count) {
+        StringBuilder builder = new StringBuilder(value.length() * count);
+        for (int i = 0; i < count; i++) {
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+}
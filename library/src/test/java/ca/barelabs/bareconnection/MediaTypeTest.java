@@ -0,0 +1,38 @@
+package ca.barelabs.bareconnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MediaTypeTest {
+
+    @Test
+    public void parsesTypeAndParameters() {
+        MediaType mediaType = MediaType.parse("Multipart/Mixed; Boundary=\"batch_1\"; charset=UTF-8");
+        assertEquals("multipart", mediaType.getType());
+        assertEquals("mixed", mediaType.getSubtype());
+        assertEquals("batch_1", mediaType.getParameter("boundary"));
+        assertEquals("UTF-8", mediaType.getCharset());
+        assertNull(MediaType.parse("no-slash"));
+    }
+
+    @Test
+    public void reusesCommonValues() {
+        assertSame(MediaType.parse("application/json; charset=UTF-8"), MediaType.parse("application/json; charset=UTF-8"));
+        assertSame(MediaType.parse("text/plain"), MediaType.parse("text/plain"));
+    }
+
+    @Test
+    public void doesNotCacheUniqueBoundaries() {
+        for (int i = 0; i < 200; i++) {
+            String value = "multipart/mixed; boundary=batch_" + i;
+            assertTrue(value, MediaType.parse(value) != MediaType.parse(value));
+        }
+        // Unique values didn't use up the cache
+        String common = "application/vnd.example+json; charset=UTF-8";
+        assertSame(MediaType.parse(common), MediaType.parse(common));
+    }
+}
@@ -0,0 +1,166 @@
+package ca.barelabs.bareconnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class MicroBatcherTest {
+
+    private HttpServer mServer;
+    private ExecutorService mServerExecutor;
+    private final AtomicInteger mRequests = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServerExecutor = Executors.newFixedThreadPool(4);
+        mServer.setExecutor(mServerExecutor);
+        mServer.createContext("/bulk", new DoublingHandler());
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        mServerExecutor.shutdownNow();
+    }
+
+    @Test
+    public void sendsObjectsInBatches() throws Exception {
+        MicroBatcher<Integer, Integer> batcher = newBatcher();
+        batcher.setMaxBatchSize(10);
+        batcher.setLingerMillis(1000);
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            futures.add(batcher.submit(i));
+        }
+        batcher.close();
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(i * 2L, (long) futures.get(i).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(3, mRequests.get());
+    }
+
+    @Test
+    public void completesObjectsSubmittedWhileClosing() throws Exception {
+        final MicroBatcher<Integer, Integer> batcher = newBatcher();
+        batcher.setMaxBatchSize(7);
+        batcher.setLingerMillis(5);
+        final Queue<Future<Integer>> futures = new ConcurrentLinkedQueue<>();
+        final AtomicInteger rejected = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(4);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    for (int i = 0; i < 2000; i++) {
+                        try {
+                            futures.add(batcher.submit(i));
+                        } catch (IllegalStateException e) {
+                            rejected.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        started.await();
+        Thread.sleep(2);
+        batcher.close();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // Anything accepted must be sent, even if close() already flushed and stopped the scheduler
+        for (Future<Integer> future : futures) {
+            try {
+                assertTrue(future.get(5, TimeUnit.SECONDS) % 2 == 0);
+            } catch (TimeoutException e) {
+                throw new AssertionError("An object accepted by submit() was never sent");
+            } catch (ExecutionException e) {
+                throw new AssertionError(e.getCause());
+            }
+        }
+        assertEquals(8000, futures.size() + rejected.get());
+        // A submit() racing close() used to start a new scheduler that was never shut down
+        assertTrue("The scheduler outlived close()", awaitNoSchedulerThread(2000));
+    }
+
+    private static boolean awaitNoSchedulerThread(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            boolean alive = false;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                alive |= thread.getName().equals("MicroBatcher") && thread.isAlive();
+            }
+            if (!alive) {
+                return true;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private MicroBatcher<Integer, Integer> newBatcher() {
+        RestConnection connection = new RestConnection.Builder()
+            .url("http://127.0.0.1:" + mServer.getAddress().getPort())
+            .path("bulk")
+            .build();
+        return new MicroBatcher<>(connection, Integer.class);
+    }
+
+
+    private final class DoublingHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            mRequests.incrementAndGet();
+            InputStream in = exchange.getRequestBody();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+            int[] values = new Gson().fromJson(new String(body.toByteArray(), StandardCharsets.UTF_8), int[].class);
+            for (int i = 0; i < values.length; i++) {
+                values[i] *= 2;
+            }
+            byte[] response = new Gson().toJson(values).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set(RestConnection.HEADER_CONTENT_TYPE, RestConnection.CONTENT_TYPE_JSON);
+            exchange.sendResponseHeaders(RestConnection.SC_OK, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ca.barelabs.bareconnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class MultipartReaderTest {
+
+    private static final String BOUNDARY = "batch_abcdefgh";
+    // Shares all but the last character with the boundary
+    private static final String NEAR_MISS = "batch_abcdefgX";
+
+    @Test
+    public void readsPartsAcrossSmallReads() throws IOException {
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            big.append((char) ('a' + i % 26));
+        }
+        String body = "preamble\r\n--" + BOUNDARY + "\r\nContent-Type: application/json\r\n\r\n{\"x\":1}\r\n"
+                + "--" + BOUNDARY + "\r\n\r\nhas --" + BOUNDARY.substring(0, 5) + " and \r\n--" + NEAR_MISS + "\r\n"
+                + "--" + BOUNDARY + "\r\n\r\n" + big + "\r\n--" + BOUNDARY + "--\r\nepilogue";
+        MultipartReader reader = new MultipartReader(new TrickleInputStream(body.getBytes(StandardCharsets.UTF_8), 7), BOUNDARY);
+        MultipartReader.Part part = reader.nextPart();
+        assertEquals("application/json", part.getHeader("content-type"));
+        assertEquals("{\"x\":1}", read(part.getBody()));
+        assertEquals("has --" + BOUNDARY.substring(0, 5) + " and \r\n--" + NEAR_MISS, read(reader.nextPart().getBody()));
+        assertEquals(big.toString(), read(reader.nextPart().getBody()));
+        assertNull(reader.nextPart());
+    }
+
+    @Test(timeout = 5000)
+    public void rejectsHeaderLineLongerThanBuffer() throws IOException {
+        StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            longValue.append('x');
+        }
+        String body = "--" + BOUNDARY + "\r\nX-Long: " + longValue + "\r\n\r\nbody\r\n--" + BOUNDARY + "--\r\n";
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), BOUNDARY);
+        try {
+            reader.nextPart();
+            fail("Expected the long header line to be rejected");
+        } catch (IOException e) {
+            // Expected, and must not hang
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,95 @@
+package ca.barelabs.bareconnection;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PooledReaderTest {
+
+    @Test
+    public void readsLinesLikeBufferedReader() throws IOException {
+        String[] texts = {
+            "",
+            "one line without terminator",
+            "a\nb\r\nc\rd\n",
+            "\n\n\r\n\r\r\n",
+            "trailing\r",
+            IOUtilsTest.repeat("é€😀 long line ", 2000) + "\r\nshort\r\n" + IOUtilsTest.repeat("x", 8191) + "\r\n",
+        };
+        for (String text : texts) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            List<String> expected = readLines(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes), "UTF-8")));
+            for (int maxRead : new int[] {1, 2, 7, 8192}) {
+                List<String> actual = new ArrayList<>();
+                PooledReader reader = new PooledReader(new TrickleInputStream(bytes, maxRead), "UTF-8");
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        actual.add(line);
+                    }
+                } finally {
+                    reader.close();
+                }
+                assertEquals(text.length() > 40 ? "long text" : text, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void readContinuesAfterReadLine() throws IOException {
+        byte[] bytes = "first\nrest of the stream".getBytes(StandardCharsets.UTF_8);
+        PooledReader reader = new PooledReader(new ByteArrayInputStream(bytes), "UTF-8");
+        try {
+            assertEquals("first", reader.readLine());
+            StringBuilder rest = new StringBuilder();
+            char[] buffer = new char[4];
+            int read;
+            while ((read = reader.read(buffer, 0, buffer.length)) != -1) {
+                rest.append(buffer, 0, read);
+            }
+            assertEquals("rest of the stream", rest.toString());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void singleCharReadsSplitSurrogatePairs() throws IOException {
+        String text = "a😀b😀😀\né";
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        for (int maxRead : new int[] {1, 3, 8192}) {
+            PooledReader reader = new PooledReader(new TrickleInputStream(bytes, maxRead), "UTF-8");
+            try {
+                StringBuilder read = new StringBuilder();
+                int c;
+                while ((c = reader.read()) != -1) {
+                    read.append((char) c);
+                }
+                assertEquals(text, read.toString());
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    private static List<String> readLines(BufferedReader reader) throws IOException {
+        try {
+            List<String> lines = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+}
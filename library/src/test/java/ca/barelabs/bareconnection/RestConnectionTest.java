@@ -0,0 +1,169 @@
+package ca.barelabs.bareconnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class RestConnectionTest {
+
+    private HttpServer mServer;
+    private volatile String mContentType;
+    private volatile String mContentEncoding;
+    private volatile String mContentLength;
+    private volatile String mBody;
+    private final AtomicInteger mDownloadAttempts = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/echo", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mContentType = exchange.getRequestHeaders().getFirst(RestConnection.HEADER_CONTENT_TYPE);
+                mContentEncoding = exchange.getRequestHeaders().getFirst(RestConnection.HEADER_CONTENT_ENCODING);
+                mContentLength = exchange.getRequestHeaders().getFirst(RestConnection.HEADER_CONTENT_LENGTH);
+                InputStream in = exchange.getRequestBody();
+                if (RestConnection.ENCODING_GZIP.equals(mContentEncoding)) {
+                    in = new GZIPInputStream(in);
+                }
+                mBody = readAll(in);
+                exchange.sendResponseHeaders(RestConnection.SC_OK, -1);
+                exchange.close();
+            }
+        });
+        mServer.createContext("/file", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] content = new byte[1000];
+                if (mDownloadAttempts.incrementAndGet() == 1) {
+                    // Cut off half way, so the download resumes with a Range request
+                    exchange.sendResponseHeaders(RestConnection.SC_OK, content.length);
+                    exchange.getResponseBody().write(content, 0, content.length / 2);
+                    exchange.getResponseBody().flush();
+                } else {
+                    exchange.getResponseHeaders().set(RestConnection.HEADER_CONTENT_RANGE, "bytes 0-999/1000");
+                    exchange.sendResponseHeaders(RestConnection.SC_PARTIAL, content.length);
+                    exchange.getResponseBody().write(content);
+                }
+                try {
+                    exchange.close();
+                } catch (RuntimeException e) {
+                    // Closing a cut off response fails, the client sees a short body
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void sendsObjectsBelowTheThresholdUncompressed() throws IOException {
+        List<Integer> small = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            small.add(i);
+        }
+        post(small);
+        assertNull(mContentEncoding);
+        assertEquals(String.valueOf(mBody.length()), mContentLength);
+        assertEquals("[0,1,2,3,4,5,6,7,8,9]", mBody);
+    }
+
+    @Test
+    public void compressesObjectsOverTheThreshold() throws IOException {
+        List<Integer> large = new ArrayList<>();
+        StringBuilder expected = new StringBuilder("[");
+        for (int i = 0; i < 1000; i++) {
+            large.add(i);
+            expected.append(i == 0 ? "" : ",").append(i);
+        }
+        post(large);
+        assertEquals(RestConnection.ENCODING_GZIP, mContentEncoding);
+        assertEquals(expected.append("]").toString(), mBody);
+    }
+
+    @Test
+    public void binaryBodiesHaveNoCharset() throws IOException {
+        RestConnection connection = new RestConnection.Builder()
+            .url("http://127.0.0.1:" + mServer.getAddress().getPort())
+            .path("echo")
+            .contentType(RestConnection.CONTENT_TYPE_CBOR)
+            .parser(RestConnection.CONTENT_TYPE_CBOR, new CborParser())
+            .build();
+        RestResponse response = connection.post(Collections.singletonList(1));
+        try {
+            assertEquals(RestConnection.SC_OK, response.getStatusCode());
+        } finally {
+            response.disconnect();
+        }
+        assertEquals(RestConnection.CONTENT_TYPE_CBOR, mContentType);
+    }
+
+    @Test
+    public void downloadToDoesNotResumeAfterAnUnexpectedContentRange() throws IOException {
+        RestConnection connection = new RestConnection.Builder()
+            .url("http://127.0.0.1:" + mServer.getAddress().getPort())
+            .path("file")
+            .retryOnIOException(true)
+            .maxRetryAttempts(3)
+            .build();
+        File file = File.createTempFile("download", ".bin");
+        try {
+            connection.downloadTo(file.toPath());
+            fail("Expected the mismatched Content-Range to fail the download");
+        } catch (IOException e) {
+            assertEquals("Unexpected Content-Range: bytes 0-999/1000", e.getMessage());
+        } finally {
+            file.delete();
+        }
+        // The cut off body was resumed once, the bad range wasn't retried
+        assertEquals(2, mDownloadAttempts.get());
+    }
+
+    private void post(Object object) throws IOException {
+        RestConnection connection = new RestConnection.Builder()
+            .url("http://127.0.0.1:" + mServer.getAddress().getPort())
+            .path("echo")
+            .requestEncoding(RestConnection.ENCODING_GZIP)
+            .build();
+        RestResponse response = connection.post(object);
+        try {
+            assertEquals(RestConnection.SC_OK, response.getStatusCode());
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,147 @@
+package ca.barelabs.bareconnection;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class SegmentedDownloadTest {
+
+    private static final String ETAG = "\"v1\"";
+    private static final int SEGMENT_COUNT = 4;
+
+    private HttpServer mServer;
+    private File mFile;
+    private byte[] mContent;
+    // Attempts per range start, so each segment can fail differently
+    private final ConcurrentMap<Long, AtomicInteger> mAttempts = new ConcurrentHashMap<>();
+    // Asserting on the server thread would only fail the exchange, so requests are checked on the test thread
+    private final Queue<String> mIfRanges = new ConcurrentLinkedQueue<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mContent = new byte[100003];
+        new Random(2).nextBytes(mContent);
+        mFile = File.createTempFile("download", ".bin");
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/file", new RangeHandler());
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        mFile.delete();
+    }
+
+    @Test
+    public void downloadsSegmentsThatBackOffAndResume() throws IOException {
+        RestConnection connection = new RestConnection.Builder()
+            .url("http://127.0.0.1:" + mServer.getAddress().getPort())
+            .path("file")
+            .backOffPolicy(new ExponentialBackOffPolicy.Builder()
+                .retryStatusCode(RestConnection.SC_UNAVAILABLE)
+                .initialSleep(10)
+                .maxSleep(1000)
+                .build())
+            .build();
+        SegmentedDownload download = new SegmentedDownload(connection);
+        download.setSegmentCount(SEGMENT_COUNT);
+        download.setMinSegmentSize(1);
+        assertEquals(mContent.length, download.downloadTo(mFile.toPath()));
+        assertArrayEquals(mContent, Files.readAllBytes(mFile.toPath()));
+        // Every segment got a 503 first, and the last one was also cut off once and resumed mid range
+        long segmentSize = mContent.length / SEGMENT_COUNT;
+        long lastStart = segmentSize * (SEGMENT_COUNT - 1);
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            expected.put(i * segmentSize, 2);
+        }
+        expected.put(lastStart + (mContent.length - lastStart) / 2, 1);
+        assertEquals(expected, getAttempts());
+        assertEquals(2 * SEGMENT_COUNT + 1, mIfRanges.size());
+        for (String ifRange : mIfRanges) {
+            assertEquals(ETAG, ifRange);
+        }
+    }
+
+    private Map<Long, Integer> getAttempts() {
+        Map<Long, Integer> attempts = new HashMap<>();
+        for (Map.Entry<Long, AtomicInteger> entry : mAttempts.entrySet()) {
+            attempts.put(entry.getKey(), entry.getValue().get());
+        }
+        return attempts;
+    }
+
+    private int countAttempt(long start) {
+        AtomicInteger attempts = mAttempts.get(start);
+        if (attempts == null) {
+            mAttempts.putIfAbsent(start, new AtomicInteger());
+            attempts = mAttempts.get(start);
+        }
+        return attempts.incrementAndGet();
+    }
+
+
+    private final class RangeHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            exchange.getResponseHeaders().set(RestConnection.HEADER_ACCEPT_RANGES, "bytes");
+            exchange.getResponseHeaders().set(RestConnection.HEADER_ETAG, ETAG);
+            if (RestConnection.METHOD_HEAD.equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set(RestConnection.HEADER_CONTENT_LENGTH, String.valueOf(mContent.length));
+                exchange.sendResponseHeaders(RestConnection.SC_OK, -1);
+                exchange.close();
+                return;
+            }
+            String range = exchange.getRequestHeaders().getFirst(RestConnection.HEADER_RANGE);
+            String ifRange = exchange.getRequestHeaders().getFirst(RestConnection.HEADER_IF_RANGE);
+            mIfRanges.add(ifRange == null ? "(missing)" : ifRange);
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            long start = Long.parseLong(bounds[0]);
+            long end = Long.parseLong(bounds[1]);
+            int attempt = countAttempt(start);
+            if (attempt == 1 && start % (mContent.length / SEGMENT_COUNT) == 0) {
+                exchange.sendResponseHeaders(RestConnection.SC_UNAVAILABLE, -1);
+                exchange.close();
+                return;
+            }
+            int length = (int) (end - start + 1);
+            boolean cutOff = attempt == 2 && start == (mContent.length / SEGMENT_COUNT) * (SEGMENT_COUNT - 1);
+            exchange.getResponseHeaders().set(RestConnection.HEADER_CONTENT_RANGE, "bytes " + start + "-" + end + "/" + mContent.length);
+            exchange.sendResponseHeaders(RestConnection.SC_PARTIAL, length);
+            OutputStream out = exchange.getResponseBody();
+            try {
+                out.write(mContent, (int) start, cutOff ? length / 2 : length);
+                out.flush();
+            } finally {
+                try {
+                    exchange.close();
+                } catch (RuntimeException e) {
+                    // Closing a cut off response fails, the client sees a short body
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package ca.barelabs.bareconnection;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Hands out at most maxRead bytes per read, like a slow network stream.
+ */
+final class TrickleInputStream extends ByteArrayInputStream {
+
+    private final int mMaxRead;
+
+    TrickleInputStream(byte[] bytes, int maxRead) {
+        super(bytes);
+        mMaxRead = maxRead;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+        return super.read(b, off, Math.min(len, mMaxRead));
+    }
+}
@@ -0,0 +1,525 @@
+package ca.barelabs.bareconnection.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+
+/**
+ * Generates a Gson TypeAdapter for every class annotated with ca.barelabs.bareconnection.JsonModel,
+ * plus one TypeAdapterFactory that registers all of them. Generated adapters bind fields directly
+ * (or through getters/setters for private fields) so no reflection is used at runtime.
+ */
+@SupportedAnnotationTypes(JsonModelProcessor.JSON_MODEL)
+@SupportedOptions(JsonModelProcessor.OPTION_FACTORY)
+public class JsonModelProcessor extends AbstractProcessor {
+
+    static final String JSON_MODEL = "ca.barelabs.bareconnection.JsonModel";
+    static final String OPTION_FACTORY = "bareconnection.adapterFactory";
+    static final String DEFAULT_FACTORY = "ca.barelabs.bareconnection.generated.GeneratedTypeAdapterFactory";
+    static final String ADAPTER_SUFFIX = "_TypeAdapter";
+
+    private static final String SERIALIZED_NAME = "com.google.gson.annotations.SerializedName";
+
+    private final List<String> mAdapters = new ArrayList<>();
+    private final List<Element> mModels = new ArrayList<>();
+    private boolean mFactoryWritten;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement jsonModel = processingEnv.getElementUtils().getTypeElement(JSON_MODEL);
+        int generated = mAdapters.size();
+        if (jsonModel != null) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(jsonModel)) {
+                if (mFactoryWritten) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                            "@JsonModel class generated after the adapter factory was written", element);
+                    continue;
+                }
+                try {
+                    generateAdapter((TypeElement) element);
+                } catch (ModelException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, e.getMessage(), e.mElement);
+                } catch (IOException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to write adapter: " + e.getMessage(), element);
+                }
+            }
+        }
+        // Writing adapters always triggers another round, so the factory goes out in the first one that
+        // finds no new models. That still lets it be compiled normally, unlike a file made in the last round
+        if (!roundEnv.processingOver() && !mFactoryWritten && !mAdapters.isEmpty() && mAdapters.size() == generated) {
+            mFactoryWritten = true;
+            try {
+                generateFactory();
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to write adapter factory: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    private void generateAdapter(TypeElement model) throws IOException, ModelException {
+        validateModel(model);
+        String packageName = getPackageName(model);
+        String adapterName = getAdapterName(model);
+        String modelName = model.getQualifiedName().toString();
+        List<ModelProperty> properties = collectProperties(model, packageName);
+
+        StringBuilder sb = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            sb.append("package ").append(packageName).append(";\n\n");
+        }
+        sb.append("import com.google.gson.Gson;\n");
+        sb.append("import com.google.gson.JsonSyntaxException;\n");
+        sb.append("import com.google.gson.TypeAdapter;\n");
+        sb.append("import com.google.gson.TypeAdapterFactory;\n");
+        sb.append("import com.google.gson.reflect.TypeToken;\n");
+        sb.append("import com.google.gson.stream.JsonReader;\n");
+        sb.append("import com.google.gson.stream.JsonToken;\n");
+        sb.append("import com.google.gson.stream.JsonWriter;\n");
+        sb.append("import java.io.IOException;\n\n");
+        sb.append("// Generated by ").append(JsonModelProcessor.class.getName()).append(", do not edit.\n");
+        sb.append("public final class ").append(adapterName).append(" extends TypeAdapter<").append(modelName).append("> {\n\n");
+
+        sb.append("    public static final TypeAdapterFactory FACTORY = new TypeAdapterFactory() {\n");
+        sb.append("        @Override\n");
+        sb.append("        @SuppressWarnings(\"unchecked\")\n");
+        sb.append("        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {\n");
+        sb.append("            return type.getRawType() == ").append(modelName).append(".class ? (TypeAdapter<T>) new ")
+                .append(adapterName).append("(gson) : null;\n");
+        sb.append("        }\n");
+        sb.append("    };\n\n");
+
+        for (ModelProperty property : properties) {
+            if (property.isDelegated()) {
+                sb.append("    private final TypeAdapter<").append(property.getType()).append("> ")
+                        .append(property.getAdapterField()).append(";\n");
+            }
+        }
+        sb.append("\n    ").append(adapterName).append("(Gson gson) {\n");
+        for (ModelProperty property : properties) {
+            if (property.isDelegated()) {
+                sb.append("        ").append(property.getAdapterField()).append(" = gson.getAdapter(")
+                        .append(typeLiteral(property.getType())).append(");\n");
+            }
+        }
+        sb.append("    }\n\n");
+
+        sb.append("    @Override\n");
+        sb.append("    public void write(JsonWriter out, ").append(modelName).append(" value) throws IOException {\n");
+        sb.append("        if (value == null) {\n");
+        sb.append("            out.nullValue();\n");
+        sb.append("            return;\n");
+        sb.append("        }\n");
+        sb.append("        out.beginObject();\n");
+        for (ModelProperty property : properties) {
+            sb.append("        out.name(\"").append(escape(property.getJsonName())).append("\");\n");
+            sb.append("        ").append(writeStatement(property)).append("\n");
+        }
+        sb.append("        out.endObject();\n");
+        sb.append("    }\n\n");
+
+        sb.append("    @Override\n");
+        sb.append("    public ").append(modelName).append(" read(JsonReader in) throws IOException {\n");
+        sb.append("        if (in.peek() == JsonToken.NULL) {\n");
+        sb.append("            in.nextNull();\n");
+        sb.append("            return null;\n");
+        sb.append("        }\n");
+        sb.append("        ").append(modelName).append(" value = new ").append(modelName).append("();\n");
+        sb.append("        try {\n");
+        sb.append("            in.beginObject();\n");
+        sb.append("            while (in.hasNext()) {\n");
+        sb.append("                switch (in.nextName()) {\n");
+        for (ModelProperty property : properties) {
+            sb.append("                    case \"").append(escape(property.getJsonName())).append("\":\n");
+            for (String alternate : property.getAlternateNames()) {
+                sb.append("                    case \"").append(escape(alternate)).append("\":\n");
+            }
+            for (String line : readStatements(property)) {
+                sb.append("                        ").append(line).append("\n");
+            }
+            sb.append("                        break;\n");
+        }
+        sb.append("                    default:\n");
+        sb.append("                        in.skipValue();\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            in.endObject();\n");
+        sb.append("        } catch (NumberFormatException | IllegalStateException e) {\n");
+        sb.append("            throw new JsonSyntaxException(e);\n");
+        sb.append("        }\n");
+        sb.append("        return value;\n");
+        sb.append("    }\n");
+        if (hasCharProperty(properties)) {
+            // Same check as Gson's own char adapter
+            sb.append("\n    private static char readChar(JsonReader in) throws IOException {\n");
+            sb.append("        String string = in.nextString();\n");
+            sb.append("        if (string.length() != 1) {\n");
+            sb.append("            throw new JsonSyntaxException(\"Expecting character, got: \" + string);\n");
+            sb.append("        }\n");
+            sb.append("        return string.charAt(0);\n");
+            sb.append("    }\n");
+        }
+        sb.append("}\n");
+
+        String qualifiedAdapterName = packageName.isEmpty() ? adapterName : packageName + "." + adapterName;
+        write(qualifiedAdapterName, sb, model);
+        mAdapters.add(qualifiedAdapterName);
+        mModels.add(model);
+    }
+
+    private void generateFactory() throws IOException {
+        String factory = processingEnv.getOptions().get(OPTION_FACTORY);
+        if (factory == null || factory.isEmpty()) {
+            factory = DEFAULT_FACTORY;
+        }
+        int dot = factory.lastIndexOf('.');
+        String packageName = dot == -1 ? "" : factory.substring(0, dot);
+        String simpleName = factory.substring(dot + 1);
+
+        StringBuilder sb = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            sb.append("package ").append(packageName).append(";\n\n");
+        }
+        sb.append("import com.google.gson.Gson;\n");
+        sb.append("import com.google.gson.TypeAdapter;\n");
+        sb.append("import com.google.gson.TypeAdapterFactory;\n");
+        sb.append("import com.google.gson.reflect.TypeToken;\n\n");
+        sb.append("// Generated by ").append(JsonModelProcessor.class.getName()).append(", do not edit.\n");
+        sb.append("public final class ").append(simpleName).append(" implements TypeAdapterFactory {\n\n");
+        sb.append("    private static final TypeAdapterFactory[] FACTORIES = {\n");
+        for (String adapter : mAdapters) {
+            sb.append("        ").append(adapter).append(".FACTORY,\n");
+        }
+        sb.append("    };\n\n");
+        sb.append("    @Override\n");
+        sb.append("    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {\n");
+        sb.append("        for (TypeAdapterFactory factory : FACTORIES) {\n");
+        sb.append("            TypeAdapter<T> adapter = factory.create(gson, type);\n");
+        sb.append("            if (adapter != null) {\n");
+        sb.append("                return adapter;\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("        return null;\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+        write(factory, sb, mModels.toArray(new Element[mModels.size()]));
+    }
+
+    private void write(String qualifiedName, StringBuilder source, Element... originatingElements) throws IOException {
+        Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, originatingElements).openWriter();
+        try {
+            writer.write(source.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void validateModel(TypeElement model) throws ModelException {
+        if (model.getKind() != ElementKind.CLASS) {
+            throw new ModelException("@JsonModel can only be applied to classes", model);
+        }
+        if (model.getModifiers().contains(Modifier.ABSTRACT)) {
+            throw new ModelException("@JsonModel classes must not be abstract", model);
+        }
+        if (!model.getTypeParameters().isEmpty()) {
+            throw new ModelException("@JsonModel classes must not be generic", model);
+        }
+        for (Element element = model; element instanceof TypeElement; element = element.getEnclosingElement()) {
+            TypeElement type = (TypeElement) element;
+            if (type.getModifiers().contains(Modifier.PRIVATE)) {
+                throw new ModelException("@JsonModel classes must not be private", model);
+            }
+            if (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC)) {
+                throw new ModelException("@JsonModel classes must be top level or static nested classes", model);
+            }
+        }
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(model.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                return;
+            }
+        }
+        throw new ModelException("@JsonModel classes need a non-private no-arg constructor", model);
+    }
+
+    private List<ModelProperty> collectProperties(TypeElement model, String packageName) throws ModelException {
+        List<ModelProperty> properties = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        List<ExecutableElement> methods = ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(model));
+        // Subclass fields first, the same order Gson's reflective adapter uses
+        for (TypeElement type = model; type != null && !type.getQualifiedName().contentEquals("java.lang.Object"); type = getSuperclass(type)) {
+            for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+                Set<Modifier> modifiers = field.getModifiers();
+                if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) {
+                    continue;
+                }
+                if (containsTypeVariable(field.asType())) {
+                    throw new ModelException("@JsonModel fields must not use type variables", field);
+                }
+                String fieldName = field.getSimpleName().toString();
+                String jsonName = fieldName;
+                List<String> alternates = Collections.emptyList();
+                AnnotationMirror serializedName = getAnnotation(field, SERIALIZED_NAME);
+                if (serializedName != null) {
+                    jsonName = (String) getAnnotationValue(serializedName, "value");
+                    alternates = getStringList(getAnnotationValue(serializedName, "alternate"));
+                }
+                if (!names.add(jsonName)) {
+                    throw new ModelException(model.getQualifiedName() + " declares multiple JSON fields named " + jsonName, field);
+                }
+                String getter = null;
+                String setter = null;
+                if (!isAccessible(field, packageName)) {
+                    if (modifiers.contains(Modifier.FINAL)) {
+                        throw new ModelException("Final fields can't be bound without reflection", field);
+                    }
+                    getter = findAccessor(methods, field, packageName, true);
+                    setter = findAccessor(methods, field, packageName, false);
+                    if (getter == null || setter == null) {
+                        throw new ModelException("Field " + fieldName + " needs to be visible to " + packageName
+                                + " or have an accessible getter and setter", field);
+                    }
+                } else if (modifiers.contains(Modifier.FINAL)) {
+                    throw new ModelException("Final fields can't be bound without reflection", field);
+                }
+                properties.add(new ModelProperty(jsonName, alternates, field.asType(), fieldName, getter, setter, properties.size()));
+            }
+        }
+        return properties;
+    }
+
+    private String findAccessor(List<ExecutableElement> methods, VariableElement field, String packageName, boolean getter) {
+        String name = field.getSimpleName().toString();
+        String capitalized = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        for (ExecutableElement method : methods) {
+            String methodName = method.getSimpleName().toString();
+            if (method.getModifiers().contains(Modifier.STATIC) || !isAccessible(method, packageName)) {
+                continue;
+            }
+            if (getter) {
+                boolean named = methodName.equals("get" + capitalized)
+                        || (field.asType().getKind() == TypeKind.BOOLEAN && methodName.equals("is" + capitalized));
+                if (named && method.getParameters().isEmpty()
+                        && processingEnv.getTypeUtils().isSameType(method.getReturnType(), field.asType())) {
+                    return methodName;
+                }
+            } else if (methodName.equals("set" + capitalized) && method.getParameters().size() == 1
+                    && processingEnv.getTypeUtils().isSameType(method.getParameters().get(0).asType(), field.asType())) {
+                return methodName;
+            }
+        }
+        return null;
+    }
+
+    private boolean isAccessible(Element member, String packageName) {
+        Set<Modifier> modifiers = member.getModifiers();
+        if (modifiers.contains(Modifier.PRIVATE)) {
+            return false;
+        }
+        TypeElement owner = (TypeElement) member.getEnclosingElement();
+        if (modifiers.contains(Modifier.PUBLIC) && owner.getModifiers().contains(Modifier.PUBLIC)) {
+            return true;
+        }
+        return getPackageName(owner).equals(packageName);
+    }
+
+    private TypeElement getSuperclass(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        return superclass.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+    }
+
+    private boolean containsTypeVariable(TypeMirror type) {
+        if (type.getKind() == TypeKind.TYPEVAR) {
+            return true;
+        }
+        if (type.getKind() == TypeKind.ARRAY) {
+            return containsTypeVariable(((ArrayType) type).getComponentType());
+        }
+        if (type.getKind() == TypeKind.DECLARED) {
+            for (TypeMirror argument : ((DeclaredType) type).getTypeArguments()) {
+                if (containsTypeVariable(argument)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private String writeStatement(ModelProperty property) {
+        String value = property.getReadExpression("value");
+        switch (property.getType().getKind()) {
+            case CHAR:
+                return "out.value(String.valueOf(" + value + "));";
+            case FLOAT:
+                return "out.value((Number) " + value + ");";
+            default:
+                if (property.isDelegated()) {
+                    return property.getAdapterField() + ".write(out, " + value + ");";
+                }
+                return "out.value(" + value + ");";
+        }
+    }
+
+    private static boolean hasCharProperty(List<ModelProperty> properties) {
+        for (ModelProperty property : properties) {
+            if (!property.isDelegated() && property.getType().getKind() == TypeKind.CHAR) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<String> readStatements(ModelProperty property) {
+        List<String> lines = new ArrayList<>();
+        if (property.isDelegated()) {
+            lines.add(property.getAssignStatement("value", property.getAdapterField() + ".read(in)"));
+            return lines;
+        }
+        String read;
+        switch (property.getType().getKind()) {
+            case BOOLEAN:
+                read = "in.peek() == JsonToken.STRING ? Boolean.parseBoolean(in.nextString()) : in.nextBoolean()";
+                break;
+            case BYTE:
+                read = "(byte) in.nextInt()";
+                break;
+            case SHORT:
+                read = "(short) in.nextInt()";
+                break;
+            case INT:
+                read = "in.nextInt()";
+                break;
+            case LONG:
+                read = "in.nextLong()";
+                break;
+            case FLOAT:
+                read = "(float) in.nextDouble()";
+                break;
+            case DOUBLE:
+                read = "in.nextDouble()";
+                break;
+            case CHAR:
+                read = "readChar(in)";
+                break;
+            default:
+                read = "in.peek() == JsonToken.BOOLEAN ? Boolean.toString(in.nextBoolean()) : in.nextString()";
+                break;
+        }
+        lines.add("if (in.peek() == JsonToken.NULL) {");
+        lines.add("    in.nextNull();");
+        if (!property.isPrimitive()) {
+            lines.add("    " + property.getAssignStatement("value", "null"));
+        }
+        lines.add("} else {");
+        lines.add("    " + property.getAssignStatement("value", read));
+        lines.add("}");
+        return lines;
+    }
+
+    private String typeLiteral(TypeMirror type) {
+        boolean generic = type.getKind() == TypeKind.DECLARED && !((DeclaredType) type).getTypeArguments().isEmpty();
+        if (!generic && type.getKind() == TypeKind.ARRAY) {
+            generic = containsTypeArguments(((ArrayType) type).getComponentType());
+        }
+        if (generic) {
+            return "new TypeToken<" + type + ">() {}";
+        }
+        return processingEnv.getTypeUtils().erasure(type) + ".class";
+    }
+
+    private boolean containsTypeArguments(TypeMirror type) {
+        if (type.getKind() == TypeKind.ARRAY) {
+            return containsTypeArguments(((ArrayType) type).getComponentType());
+        }
+        return type.getKind() == TypeKind.DECLARED && !((DeclaredType) type).getTypeArguments().isEmpty();
+    }
+
+    private static AnnotationMirror getAnnotation(Element element, String annotation) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotation)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private static Object getAnnotationValue(AnnotationMirror mirror, String name) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues().entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals(name)) {
+                return entry.getValue().getValue();
+            }
+        }
+        return null;
+    }
+
+    private static List<String> getStringList(Object value) {
+        List<String> strings = new ArrayList<>();
+        if (value instanceof List) {
+            for (Object item : (List<?>) value) {
+                strings.add((String) ((AnnotationValue) item).getValue());
+            }
+        }
+        return strings;
+    }
+
+    private String getPackageName(Element element) {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(element);
+        return pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+    }
+
+    private static String getAdapterName(TypeElement model) {
+        StringBuilder name = new StringBuilder(model.getSimpleName());
+        for (Element element = model.getEnclosingElement(); element instanceof TypeElement; element = element.getEnclosingElement()) {
+            name.insert(0, element.getSimpleName() + "_");
+        }
+        return name.append(ADAPTER_SUFFIX).toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+
+    @SuppressWarnings("serial")
+    private static final class ModelException extends Exception {
+
+        private final Element mElement;
+
+        ModelException(String message, Element element) {
+            super(message);
+            mElement = element;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package ca.barelabs.bareconnection.processor;
+
+import java.util.List;
+
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+
+final class ModelProperty {
+
+    private final String mJsonName;
+    private final List<String> mAlternateNames;
+    private final TypeMirror mType;
+    private final String mFieldName;
+    private final String mGetter;
+    private final String mSetter;
+    private final int mIndex;
+
+    ModelProperty(String jsonName, List<String> alternateNames, TypeMirror type, String fieldName, String getter, String setter, int index) {
+        mJsonName = jsonName;
+        mAlternateNames = alternateNames;
+        mType = type;
+        mFieldName = fieldName;
+        mGetter = getter;
+        mSetter = setter;
+        mIndex = index;
+    }
+
+    String getJsonName() {
+        return mJsonName;
+    }
+
+    List<String> getAlternateNames() {
+        return mAlternateNames;
+    }
+
+    TypeMirror getType() {
+        return mType;
+    }
+
+    boolean isPrimitive() {
+        return mType.getKind().isPrimitive();
+    }
+
+    boolean isString() {
+        return mType.getKind() == TypeKind.DECLARED && mType.toString().equals("java.lang.String");
+    }
+
+    boolean isDelegated() {
+        return !isPrimitive() && !isString();
+    }
+
+    String getAdapterField() {
+        return "mAdapter" + mIndex;
+    }
+
+    String getReadExpression(String target) {
+        return mGetter != null ? target + "." + mGetter + "()" : target + "." + mFieldName;
+    }
+
+    String getAssignStatement(String target, String value) {
+        return mSetter != null ? target + "." + mSetter + "(" + value + ");" : target + "." + mFieldName + " = " + value + ";";
+    }
+}
@@ -0,0 +1,187 @@
+package ca.barelabs.bareconnection.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapterFactory;
+
+/**
+ * Compiles sample models with the processor and checks the generated adapters read and write the
+ * same JSON as Gson's reflective adapters.
+ */
+public class JsonModelProcessorTest {
+
+    private static final String BASE = "package models;\n"
+            + "public class Base {\n"
+            + "    private String secret;\n"
+            + "    protected long created;\n"
+            + "    public String getSecret() { return secret; }\n"
+            + "    public void setSecret(String secret) { this.secret = secret; }\n"
+            + "}\n";
+
+    private static final String PERSON = "package models;\n"
+            + "import ca.barelabs.bareconnection.JsonModel;\n"
+            + "import com.google.gson.annotations.SerializedName;\n"
+            + "import java.util.List;\n"
+            + "@JsonModel\n"
+            + "public class Person extends Base {\n"
+            + "    @SerializedName(value = \"full_name\", alternate = {\"name\", \"fullName\"})\n"
+            + "    String fullName;\n"
+            + "    int age;\n"
+            + "    boolean active;\n"
+            + "    Double score;\n"
+            + "    float ratio;\n"
+            + "    char initial;\n"
+            + "    private List<String> tags;\n"
+            + "    Address address;\n"
+            + "    transient int ignored;\n"
+            + "    static int sCount;\n"
+            + "    public List<String> getTags() { return tags; }\n"
+            + "    public void setTags(List<String> tags) { this.tags = tags; }\n"
+            + "    @JsonModel\n"
+            + "    public static class Address {\n"
+            + "        String city;\n"
+            + "        @SerializedName(\"postal_code\") int zip;\n"
+            + "    }\n"
+            + "}\n";
+
+    private static final String[] DOCUMENTS = {
+        "{\"full_name\":\"Ada\",\"age\":36,\"active\":true,\"score\":9.5,\"ratio\":0.25,\"initial\":\"A\","
+                + "\"tags\":[\"a\",\"b\"],\"address\":{\"city\":\"London\",\"postal_code\":1815},"
+                + "\"secret\":\"s3\",\"created\":1234567890123}",
+        "{\"name\":\"Alt\",\"age\":1,\"secret\":\"inherited\"}",
+        "{\"fullName\":\"Other alt\",\"score\":null,\"address\":null,\"unknown\":{\"skipped\":[1,2]}}",
+        "{}",
+    };
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("processor").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        delete(mDir);
+    }
+
+    @Test
+    public void generatedAdaptersMatchReflectiveGson() throws Exception {
+        ClassLoader loader = compile();
+        Class<?> person = loader.loadClass("models.Person");
+        TypeAdapterFactory factory = (TypeAdapterFactory) loader
+                .loadClass(JsonModelProcessor.DEFAULT_FACTORY).getConstructor().newInstance();
+        Gson reflective = new Gson();
+        Gson generated = new GsonBuilder().registerTypeAdapterFactory(factory).create();
+        assertTrue("Expected the generated adapter to be used",
+                generated.getAdapter(person).getClass().getName().equals("models.Person_TypeAdapter"));
+        for (String document : DOCUMENTS) {
+            Object expected = reflective.fromJson(document, person);
+            Object actual = generated.fromJson(document, person);
+            // Written back with the reflective adapter so only the generated read is compared
+            assertEquals(document, reflective.toJson(expected), reflective.toJson(actual));
+            assertEquals(document, reflective.toJson(expected), generated.toJson(expected));
+        }
+    }
+
+    @Test
+    public void generatedAdaptersRejectCharsThatArentOneCharacter() throws Exception {
+        ClassLoader loader = compile();
+        Class<?> person = loader.loadClass("models.Person");
+        TypeAdapterFactory factory = (TypeAdapterFactory) loader
+                .loadClass(JsonModelProcessor.DEFAULT_FACTORY).getConstructor().newInstance();
+        Gson generated = new GsonBuilder().registerTypeAdapterFactory(factory).create();
+        for (String initial : new String[] {"\"\"", "\"AB\""}) {
+            try {
+                generated.fromJson("{\"initial\":" + initial + "}", person);
+                fail("Expected " + initial + " to be rejected like Gson's char adapter does");
+            } catch (JsonSyntaxException e) {
+                assertEquals("Expecting character, got: " + initial.substring(1, initial.length() - 1), e.getMessage());
+            }
+        }
+    }
+
+    private ClassLoader compile() throws IOException {
+        File sources = new File(mDir, "src/models");
+        File generated = new File(mDir, "generated");
+        File classes = new File(mDir, "classes");
+        if (!sources.mkdirs() || !generated.mkdirs() || !classes.mkdirs()) {
+            throw new IOException("Unable to create " + mDir);
+        }
+        List<File> files = Arrays.asList(writeSource(sources, "Base", BASE), writeSource(sources, "Person", PERSON));
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8);
+        try {
+            List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"),
+                    "-d", classes.getPath(), "-s", generated.getPath());
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null,
+                    fileManager.getJavaFileObjectsFromFiles(files));
+            task.setProcessors(Arrays.asList(new JsonModelProcessor()));
+            boolean success = task.call();
+            List<String> messages = new ArrayList<>();
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                messages.add(diagnostic.getKind() + ": " + diagnostic.getMessage(null));
+            }
+            if (!success) {
+                fail("Compilation failed: " + messages);
+            }
+            for (String message : messages) {
+                if (message.contains("last round")) {
+                    fail("Unexpected warning: " + message);
+                }
+            }
+        } finally {
+            fileManager.close();
+        }
+        return new URLClassLoader(new URL[] {classes.toURI().toURL()}, getClass().getClassLoader());
+    }
+
+    private static File writeSource(File dir, String name, String source) throws IOException {
+        File file = new File(dir, name + ".java");
+        Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+        try {
+            writer.write(source);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}